@@ -1,39 +1,122 @@
 package com.roncia.elasticsearch.application;
 
-import com.google.gson.JsonArray;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.roncia.elasticsearch.clone.AdaptiveBatchSize;
+import com.roncia.elasticsearch.clone.Checkpoint;
+import com.roncia.elasticsearch.clone.CheckpointFile;
+import com.roncia.elasticsearch.clone.CloneMetrics;
+import com.roncia.elasticsearch.clone.DeadLetterFile;
+import com.roncia.elasticsearch.clone.DeletionReconciler;
+import com.roncia.elasticsearch.clone.DeltaState;
+import com.roncia.elasticsearch.clone.DeltaSync;
+import com.roncia.elasticsearch.clone.ExportDirectory;
+import com.roncia.elasticsearch.clone.ExportManifest;
+import com.roncia.elasticsearch.clone.ClonePipeline;
+import com.roncia.elasticsearch.clone.HttpEndpoint;
+import com.roncia.elasticsearch.clone.IndexVerifier;
+import com.roncia.elasticsearch.clone.ScrollQuery;
+import com.roncia.elasticsearch.clone.ShardSlices;
+import com.roncia.elasticsearch.clone.SourceLoadMonitor;
+import com.roncia.elasticsearch.clone.Throttle;
+import com.roncia.elasticsearch.clone.TransformPipeline;
+import com.roncia.elasticsearch.clone.VerifyReport;
+import com.roncia.elasticsearch.index.CloneJob;
 import com.roncia.elasticsearch.tools.com.roncia.elasticsearch.util.CommandLineUtil;
-import com.sun.jmx.snmp.Timestamp;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.config.HttpClientConfig;
+import io.searchbox.client.http.JestHttpClient;
 import io.searchbox.cluster.Health;
-import io.searchbox.core.Bulk;
-import io.searchbox.core.Bulk.Builder;
-import io.searchbox.core.Index;
-import io.searchbox.core.Search;
-import io.searchbox.core.SearchScroll;
 import io.searchbox.indices.CreateIndex;
 import io.searchbox.indices.DeleteIndex;
+import io.searchbox.indices.Optimize;
+import io.searchbox.indices.Stats;
 import io.searchbox.indices.mapping.GetMapping;
 import io.searchbox.indices.mapping.PutMapping;
 import io.searchbox.indices.settings.GetSettings;
-import io.searchbox.params.Parameters;
+import io.searchbox.indices.settings.UpdateSettings;
 import org.apache.commons.cli.*;
 import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.protocol.HttpContext;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static com.roncia.elasticsearch.tools.com.roncia.elasticsearch.util.CommandLineUtil.getIntOptionValue;
+
 
 public class IndexCloner {
 
     private static final Logger LOGGER = Logger.getLogger(IndexCloner.class.getName());
+    private static final int DEFAULT_SIZE_PAGE = 500;
+    private static final int DEFAULT_BULK_WRITERS = 4;
+    private static final int DEFAULT_BULKS_IN_FLIGHT = 2;
+    private static final int DEFAULT_QUEUE_DEPTH = 8;
+    private static final int DEFAULT_BULK_MAX_DOCS = 10000;
+    private static final int DEFAULT_BULK_MIN_KB = 512;
+    private static final int DEFAULT_BULK_MAX_KB = 16 * 1024;
+    private static final int DEFAULT_BULK_INITIAL_KB = 5 * 1024;
+    private static final int DEFAULT_BULK_TARGET_LATENCY_MS = 2000;
+    private static final int DEFAULT_BULK_RETRIES = 5;
+    private static final int DEFAULT_BULK_RETRY_DELAY_MS = 500;
+    private static final int DEFAULT_PROGRESS_INTERVAL_SEC = 10;
+    private static final int DEFAULT_MAX_CONCURRENT_JOBS = 2;
+    private static final int DEFAULT_GREEN_TIMEOUT_SEC = 600;
+    private static final int DEFAULT_KEEP_ALIVE_SEC = 60;
+    private static final int DEFAULT_TIMEOUT_SEC = 3 * 60;
+    private static final int DEFAULT_EXPORT_CHUNK_MB = 256;
+    private static final int DEFAULT_DELTA_ID_PAGE_SIZE = 5000;
+    private static final int DEFAULT_DELTA_DATE_OVERLAP_MILLIS = 60000;
+    private static final int DEFAULT_VERIFY_BUCKETS = 4096;
+    private static final int DEFAULT_VERIFY_MAX_DOCS = 1000000;
+    private static final int DEFAULT_SEARCH_QUEUE_THRESHOLD = 50;
+    private static final int DEFAULT_LOAD_POLL_SEC = 5;
+    private static final int DEFAULT_ROUTING_REFRESH_SEC = 30;
+    private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+    private static final String DEFAULT_TRANSLOG_DURABILITY = "request";
 
     /**
      * Index Cloner application main function
@@ -47,15 +130,507 @@ public class IndexCloner {
     public static void main(String args[]) throws IOException, ParseException, InterruptedException, RuntimeException {
         long time = System.currentTimeMillis();
         CommandLine cmd = getCommandLine(args);
-        String srcIndex = cmd.getOptionValue("srcIndex");
-        String dstIndex = cmd.getOptionValue("dstIndex");
+        if (cmd.hasOption("exportDir") || cmd.hasOption("importDir")) {
+            if (cmd.hasOption("exportDir")) {
+                exportIndex(cmd);
+            } else {
+                importIndex(cmd);
+            }
+            logDuration(time);
+            return;
+        }
         JestClient src = getClient("srcHost", "srcUser", "srcPwd", cmd);
         JestClient dst = getClient("dstHost", "dstUser", "dstPwd", cmd);
-        createDestinationIndexFromSource(srcIndex, dstIndex, src, dst, cmd);
-        cloneData(src, dst, srcIndex, dstIndex);
+        RunLimits limits = new RunLimits(getEndpoint(src, "srcHost", cmd), cmd);
+        try {
+            List<CloneJob> jobs = getJobs(src, cmd);
+            checkJobs(jobs, cmd);
+            if (jobs.size() == 1) {
+                cloneIndex(src, dst, jobs.get(0), cmd, limits, false);
+            } else {
+                cloneIndices(src, dst, jobs, cmd, limits);
+            }
+        } finally {
+            limits.close();
+            // also stops the idle connection reapers
+            src.shutdownClient();
+            dst.shutdownClient();
+        }
         logDuration(time);
     }
 
+    private static void cloneIndex(JestClient src, JestClient dst, CloneJob job, CommandLine cmd, RunLimits limits,
+                                   boolean multipleJobs) throws IOException, InterruptedException {
+        String srcIndex = job.getSrcIndex();
+        String dstIndex = job.getDstIndex();
+        String verify = cmd.getOptionValue("verify");
+        if ("only".equalsIgnoreCase(verify)) {
+            verifyIndex(src, dst, srcIndex, dstIndex, cmd);
+            return;
+        }
+        boolean resume = Boolean.parseBoolean(cmd.getOptionValue("resume"));
+        if (resume && multipleJobs && !getJobFile(cmd, "checkpointFile", srcIndex).exists()) {
+            logInformation("No checkpoint for " + srcIndex + ", cloning it from the start");
+            resume = false;
+        }
+        String deltaField = cmd.getOptionValue("deltaField");
+        File deltaFile = deltaField == null ? null : getDeltaStateFile(cmd, srcIndex, dstIndex);
+        DeltaState previousSync = deltaField == null ? null : getPreviousSync(deltaFile, srcIndex, dstIndex, deltaField);
+        boolean ingestMode = Boolean.parseBoolean(cmd.getOptionValue("ingestMode"));
+        JsonObject restoreSettings = ingestMode ? getRestoreSettings(getSourceIndexSettings(src, srcIndex), cmd) : null;
+        if (resume) {
+            logInformation("Skip : Copying settings, resuming from the checkpoint");
+        } else if (previousSync != null) {
+            logInformation("Skip : Copying settings, syncing the changes since " + deltaField + " "
+                    + previousSync.getHighWaterMark());
+        } else {
+            createDestinationIndexFromSource(srcIndex, dstIndex, src, dst, cmd);
+        }
+        if (ingestMode && (resume || previousSync != null || Boolean.parseBoolean(cmd.getOptionValue("keepDstIndex")))) {
+            startIngestOnExistingIndex(dst, dstIndex);
+        }
+        try {
+            if (deltaField == null) {
+                cloneData(src, dst, srcIndex, dstIndex, cmd, limits, resume, getScrollQuery(cmd));
+            } else {
+                syncData(src, dst, srcIndex, dstIndex, cmd, limits, resume, previousSync, deltaFile);
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            if (ingestMode) {
+                LOGGER.log(Level.WARNING, dstIndex + " is left with the ingest settings, resume the clone to restore "
+                        + restoreSettings);
+            }
+            throw e;
+        }
+        if (ingestMode) {
+            finishIngest(dst, dstIndex, restoreSettings, cmd);
+        }
+        if (Boolean.parseBoolean(verify)) {
+            verifyIndex(src, dst, srcIndex, dstIndex, cmd);
+        }
+    }
+
+    /**
+     * Compares the documents of the destination index with the source ones, as selected and transformed by the
+     * copy, writes the -verifyReport and fails if they differ
+     */
+    private static void verifyIndex(JestClient src, JestClient dst, String srcIndex, String dstIndex, CommandLine cmd)
+            throws IOException, InterruptedException {
+        HttpEndpoint dstEndpoint = getEndpoint(dst, "dstHost", cmd);
+        int slices = getIntOptionValue(cmd, "srcSlices", 1);
+        List<String> srcSlices = Collections.singletonList(null);
+        List<String> dstSlices = Collections.singletonList(null);
+        if (slices > 1) {
+            srcSlices = ShardSlices.preferences(slices, getSourceShards(src, srcIndex));
+            dstSlices = ShardSlices.preferences(slices, getSourceShards(dst, dstIndex));
+        }
+        VerifyReport report = new IndexVerifier(getEndpoint(src, "srcHost", cmd), srcIndex, getScrollQuery(cmd),
+                srcSlices, dstEndpoint, dstIndex, dstSlices, getTransform(cmd),
+                getIntOptionValue(cmd, "srcPageSize", DEFAULT_SIZE_PAGE),
+                getIntOptionValue(cmd, "verifyBuckets", DEFAULT_VERIFY_BUCKETS),
+                getIntOptionValue(cmd, "verifyMaxDocs", DEFAULT_VERIFY_MAX_DOCS)).verify();
+        File file = getJobFile(cmd, "verifyReport", srcIndex);
+        if (file == null) {
+            file = new File(dstIndex + "-verify.json");
+        }
+        report.write(file);
+        if (!report.isConsistent()) {
+            throw new RuntimeException("Verification of " + dstIndex + " failed: " + report + ", see " + file);
+        }
+        logInformation("Verified " + dstIndex + ": " + report);
+    }
+
+    /**
+     * Copies the documents whose -deltaField is above the high-water mark of the previous sync minus -deltaOverlap, all of them on
+     * the first sync, up to the current high-water mark, then optionally deletes the documents deleted from the
+     * source, and saves the new high-water mark
+     *
+     * @param previousSync the state of the previous sync, null on the first one
+     */
+    private static void syncData(JestClient src, JestClient dst, String srcIndex, String dstIndex, CommandLine cmd,
+                                 RunLimits limits, boolean resume, DeltaState previousSync, File deltaFile)
+            throws IOException, InterruptedException {
+        String deltaField = cmd.getOptionValue("deltaField");
+        HttpEndpoint srcEndpoint = getEndpoint(src, "srcHost", cmd);
+        ScrollQuery query = getScrollQuery(cmd);
+        String highWaterMark = DeltaSync.readHighWaterMark(srcEndpoint, srcIndex, deltaField, query);
+        if (previousSync != null) {
+            if (highWaterMark == null) {
+                highWaterMark = previousSync.getHighWaterMark();
+            }
+            // by default a minute of a date field, nothing of a sequence or version field
+            int overlap = cmd.hasOption("deltaOverlap") ? getIntOptionValue(cmd, "deltaOverlap", 0)
+                    : DeltaSync.isDate(srcEndpoint, srcIndex, deltaField) ? DEFAULT_DELTA_DATE_OVERLAP_MILLIS : 0;
+            String from = DeltaSync.overlap(previousSync.getHighWaterMark(), overlap);
+            query = query.and(DeltaSync.rangeQuery(deltaField, from, highWaterMark));
+            logInformation("Syncing " + deltaField + " in [" + from + ", " + highWaterMark + "]");
+        } else {
+            logInformation("First sync of " + srcIndex + ", copying all the documents up to " + deltaField + " "
+                    + highWaterMark);
+        }
+        long copied = cloneData(src, dst, srcIndex, dstIndex, cmd, limits, resume, query);
+        long deleted = 0;
+        if (Boolean.parseBoolean(cmd.getOptionValue("deltaDeletes"))) {
+            logInformation("Deleting from " + dstIndex + " the documents deleted from " + srcIndex);
+            File deadLetterFile = getJobFile(cmd, "deadLetterFile", srcIndex);
+            DeadLetterFile deadLetters = new DeadLetterFile(deadLetterFile != null ? deadLetterFile
+                    : new File(dstIndex + "-dead-letter.ndjson"));
+            try {
+                deleted = new DeletionReconciler(srcEndpoint, srcIndex, getScrollQuery(cmd),
+                        getEndpoint(dst, "dstHost", cmd), dstIndex, getTransform(cmd),
+                        getIntOptionValue(cmd, "deltaIdPageSize", DEFAULT_DELTA_ID_PAGE_SIZE), deadLetters).reconcile();
+            } finally {
+                deadLetters.close();
+            }
+            if (deadLetters.getCount() > 0) {
+                LOGGER.log(Level.WARNING, deadLetters.getCount() + " deletes failed, see " + deadLetters.getFile());
+            }
+        }
+        if (highWaterMark != null) {
+            new DeltaState(srcIndex, dstIndex, deltaField, highWaterMark, copied, deleted).save(deltaFile);
+            logInformation("High-water mark " + deltaField + " " + highWaterMark + " saved to " + deltaFile);
+        } else {
+            LOGGER.log(Level.WARNING, "No document of " + srcIndex + " has a " + deltaField
+                    + " field, the next sync will copy all the documents again");
+        }
+    }
+
+    /**
+     * @return the file of the high-water mark, by default [dstIndex]-delta.json
+     */
+    private static File getDeltaStateFile(CommandLine cmd, String srcIndex, String dstIndex) {
+        File file = getJobFile(cmd, "deltaStateFile", srcIndex);
+        return file != null ? file : new File(dstIndex + "-delta.json");
+    }
+
+    /**
+     * @return the state of the previous sync of the same indices and field, null if there is none
+     */
+    private static DeltaState getPreviousSync(File deltaFile, String srcIndex, String dstIndex, String deltaField)
+            throws IOException {
+        if (!deltaFile.exists()) {
+            return null;
+        }
+        DeltaState state = DeltaState.load(deltaFile);
+        if (!srcIndex.equals(state.getSrcIndex()) || !dstIndex.equals(state.getDstIndex())
+                || !deltaField.equals(state.getField())) {
+            throw new RuntimeException("The delta state " + deltaFile + " is for the sync of " + state.getSrcIndex()
+                    + " to " + state.getDstIndex() + " on " + state.getField() + ". Impossible to continue!");
+        }
+        return state;
+    }
+
+    /**
+     * Exports the source index to the chunk files and manifest of -exportDir, without destination cluster
+     */
+    private static void exportIndex(CommandLine cmd) throws IOException, InterruptedException {
+        JestClient src = getClient("srcHost", "srcUser", "srcPwd", cmd);
+        RunLimits limits = new RunLimits(getEndpoint(src, "srcHost", cmd), cmd);
+        try {
+            List<CloneJob> jobs = getJobs(src, cmd);
+            if (jobs.size() != 1) {
+                throw new RuntimeException("An export is of one index, " + jobs.size() + " match. Impossible to continue!");
+            }
+            String srcIndex = jobs.get(0).getSrcIndex();
+            ExportManifest manifest = new ExportManifest(srcIndex, getSourceIndexSettings(src, srcIndex),
+                    getSourceMapping(src, srcIndex));
+            ExportDirectory export = ExportDirectory.create(new File(cmd.getOptionValue("exportDir")), manifest);
+            logInformation("Exporting " + srcIndex + " to " + export.getDir());
+            CloneMetrics metrics = new CloneMetrics();
+            long exported = newPipeline(getEndpoint(src, "srcHost", cmd), null, srcIndex, null, cmd, limits, metrics)
+                    .exportTo(export, getIntOptionValue(cmd, "exportChunkMb", DEFAULT_EXPORT_CHUNK_MB) * 1024L * 1024L)
+                    .build().run();
+            export.writeManifest();
+            if (cmd.hasOption("metricsFile")) {
+                writeMetrics(getJobFile(cmd, "metricsFile", srcIndex), srcIndex, export.getDir().getPath(), metrics);
+            }
+            logInformation("Exported successfully " + exported + " documents in "
+                    + manifest.getChunks().size() + " chunks");
+        } finally {
+            limits.close();
+            src.shutdownClient();
+        }
+    }
+
+    /**
+     * Loads an export of -importDir into the destination index, created from the settings and mappings of the
+     * export unless -keepDstIndex, the documents being read from the chunks in parallel
+     */
+    private static void importIndex(CommandLine cmd) throws IOException, InterruptedException {
+        ExportDirectory export = ExportDirectory.open(new File(cmd.getOptionValue("importDir")));
+        ExportManifest manifest = export.getManifest();
+        String srcIndex = manifest.getSrcIndex();
+        String dstIndex = CloneJob.rename(cmd.getOptionValue("dstIndex", CloneJob.INDEX_PLACEHOLDER), srcIndex);
+        JestClient dst = getClient("dstHost", "dstUser", "dstPwd", cmd);
+        try {
+            logInformation("Importing " + export.getDir() + " (" + manifest.getDocuments() + " documents of "
+                    + srcIndex + ") to " + dstIndex);
+            boolean ingestMode = Boolean.parseBoolean(cmd.getOptionValue("ingestMode"));
+            JsonObject restoreSettings = ingestMode ? getRestoreSettings(copyOf(manifest.getSettings()), cmd) : null;
+            if (Boolean.parseBoolean(cmd.getOptionValue("keepDstIndex"))) {
+                logInformation("Skip : Copying settings");
+                if (ingestMode) {
+                    startIngestOnExistingIndex(dst, dstIndex);
+                }
+            } else {
+                createDestinationIndex(copyOf(manifest.getSettings()), manifest.getMappings(), dstIndex, dst, cmd);
+            }
+            CloneMetrics metrics = new CloneMetrics();
+            try {
+                long imported = newPipeline(null, getEndpoint(dst, "dstHost", cmd), srcIndex, dstIndex, cmd,
+                        new RunLimits(null, cmd), metrics)
+                        .importFrom(export).build().run();
+                logInformation("Imported successfully " + imported + " documents");
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                if (ingestMode) {
+                    LOGGER.log(Level.WARNING, dstIndex + " is left with the ingest settings: " + restoreSettings);
+                }
+                throw e;
+            }
+            if (cmd.hasOption("metricsFile")) {
+                writeMetrics(getJobFile(cmd, "metricsFile", srcIndex), export.getDir().getPath(), dstIndex, metrics);
+            }
+            if (ingestMode) {
+                finishIngest(dst, dstIndex, restoreSettings, cmd);
+            }
+        } finally {
+            dst.shutdownClient();
+        }
+    }
+
+    private static JsonElement copyOf(JsonElement json) {
+        return new JsonParser().parse(json.toString());
+    }
+
+    private static void startIngestOnExistingIndex(JestClient dst, String dstIndex) throws IOException {
+        JsonObject ingestSettings = new JsonObject();
+        applyIngestSettings(ingestSettings);
+        updateDestinationSettings(dst, dstIndex, ingestSettings, "Ingest settings not applied!");
+    }
+
+    /**
+     * Sets the settings of a destination index being bulk loaded: no refresh, no replica, translog synced in
+     * the background rather than on every bulk
+     *
+     * @param index the index settings to modify
+     */
+    private static void applyIngestSettings(JsonObject index) {
+        index.addProperty("refresh_interval", "-1");
+        index.addProperty("number_of_replicas", "0");
+        getTranslogSettings(index).addProperty("durability", "async");
+    }
+
+    /**
+     * @return the settings replaced by the ingest mode, as the source index has them, apart from the replicas
+     * overridden by -dstIndexReplicas
+     */
+    private static JsonObject getRestoreSettings(JsonElement srcLoad, CommandLine cmd) {
+        modifyIndexReplicaConfigurations(cmd, srcLoad);
+        JsonObject index = srcLoad.getAsJsonObject().get("settings").getAsJsonObject().get("index").getAsJsonObject();
+        JsonObject restore = new JsonObject();
+        restore.addProperty("refresh_interval", index.has("refresh_interval")
+                ? index.get("refresh_interval").getAsString() : DEFAULT_REFRESH_INTERVAL);
+        restore.addProperty("number_of_replicas", index.get("number_of_replicas").getAsString());
+        JsonObject translog = getTranslogSettings(index);
+        getTranslogSettings(restore).addProperty("durability", translog.has("durability")
+                ? translog.get("durability").getAsString() : DEFAULT_TRANSLOG_DURABILITY);
+        return restore;
+    }
+
+    private static JsonObject getTranslogSettings(JsonObject index) {
+        if (!index.has("translog")) {
+            index.add("translog", new JsonObject());
+        }
+        return index.get("translog").getAsJsonObject();
+    }
+
+    /**
+     * Ends the ingest mode once the data is copied: force merges the index while it has no replica, so that
+     * the replicas are built from the merged segments, restores the settings and waits for green
+     */
+    private static void finishIngest(JestClient dst, String dstIndex, JsonObject restoreSettings, CommandLine cmd)
+            throws IOException, InterruptedException {
+        int segments = getIntOptionValue(cmd, "forceMergeSegments", 0);
+        if (segments > 0) {
+            logInformation("Force merging " + dstIndex + " to " + segments + " segments");
+            try {
+                JestResult merge = dst.execute(new Optimize.Builder().addIndex(dstIndex).maxNumSegments(segments)
+                        .flush(true).build());
+                logResponse(merge);
+            } catch (SocketTimeoutException e) {
+                LOGGER.log(Level.WARNING, "Force merge of " + dstIndex + " still running, going on without waiting it");
+            }
+        }
+        logInformation("Restoring settings of " + dstIndex + ": " + restoreSettings);
+        updateDestinationSettings(dst, dstIndex, restoreSettings, "Settings not restored!");
+        waitForGreen(getEndpoint(dst, "dstHost", cmd), dstIndex,
+                getIntOptionValue(cmd, "greenTimeoutSec", DEFAULT_GREEN_TIMEOUT_SEC));
+    }
+
+    private static void updateDestinationSettings(JestClient dst, String dstIndex, JsonObject index, String message)
+            throws IOException {
+        JsonObject settings = new JsonObject();
+        settings.add("index", index);
+        JestResult update = dst.execute(new UpdateSettings.Builder(settings.toString()).addIndex(dstIndex).build());
+        logResponse(update);
+        if (!update.isSucceeded()) {
+            throw new RuntimeException(message + " " + update.getErrorMessage());
+        }
+    }
+
+    /**
+     * Waits for the replicas of the destination index, logging a warning rather than failing if they are not
+     * all allocated in time, e.g. on a single node cluster
+     */
+    private static void waitForGreen(HttpEndpoint dst, String dstIndex, int timeoutSeconds)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+        String status;
+        do {
+            long wait = Math.max(1, Math.min(60, (deadline - System.currentTimeMillis()) / 1000));
+            HttpEndpoint.Response response = dst.get("/_cluster/health/" + URLEncoder.encode(dstIndex, "UTF-8")
+                    + "?wait_for_status=green&timeout=" + wait + "s");
+            status = response.isSucceeded()
+                    ? new JsonParser().parse(response.getBodyAsString()).getAsJsonObject().get("status").getAsString()
+                    : "unknown";
+            if ("green".equals(status)) {
+                logInformation(dstIndex + " is green");
+                return;
+            }
+            if (!response.isSucceeded()) {
+                Thread.sleep(1000);
+            }
+        } while (System.currentTimeMillis() < deadline);
+        LOGGER.log(Level.WARNING, dstIndex + " is still " + status + " after " + timeoutSeconds + " seconds");
+    }
+
+    /**
+     * Clones the indices on a pool of -maxConcurrentJobs workers sharing the clients, largest index first.
+     * A failed clone does not stop the others, the failures are reported at the end.
+     */
+    private static void cloneIndices(final JestClient src, final JestClient dst, List<CloneJob> jobs,
+                                     final CommandLine cmd, final RunLimits limits) throws InterruptedException {
+        int maxConcurrentJobs = getIntOptionValue(cmd, "maxConcurrentJobs", DEFAULT_MAX_CONCURRENT_JOBS);
+        logInformation("Cloning " + jobs.size() + " indices, " + maxConcurrentJobs + " at a time, largest first");
+        ExecutorService pool = Executors.newFixedThreadPool(maxConcurrentJobs);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(jobs.size());
+        for (final CloneJob job : jobs) {
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    logInformation("Cloning " + job + " (" + job.getDocs() + " documents, "
+                            + job.getSizeInBytes() / (1024 * 1024) + " MB)");
+                    cloneIndex(src, dst, job, cmd, limits, true);
+                    logInformation("Cloned " + job);
+                    return null;
+                }
+            }));
+        }
+        List<CloneJob> failed = new ArrayList<CloneJob>();
+        try {
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Clone of " + jobs.get(i) + " failed", e.getCause());
+                    failed.add(jobs.get(i));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        if (!failed.isEmpty()) {
+            throw new RuntimeException(failed.size() + " of " + jobs.size() + " clones failed: " + failed);
+        }
+        logInformation("Cloned " + jobs.size() + " indices");
+    }
+
+    /**
+     * @return the clones to run, largest first, from the -jobFile or the -srcIndex pattern,
+     * renamed with the -dstIndex template
+     */
+    private static List<CloneJob> getJobs(JestClient src, CommandLine cmd) throws IOException {
+        List<String[]> entries;
+        if (cmd.hasOption("jobFile")) {
+            entries = CloneJob.readJobFile(new File(cmd.getOptionValue("jobFile")));
+        } else if (cmd.hasOption("srcIndex")) {
+            entries = Collections.singletonList(new String[]{cmd.getOptionValue("srcIndex"), null});
+        } else {
+            throw new RuntimeException("A srcIndex or jobFile argument is needed. Impossible to continue!");
+        }
+        String defaultTemplate = cmd.getOptionValue("dstIndex", CloneJob.INDEX_PLACEHOLDER);
+        if (entries.size() == 1 && !CloneJob.isPattern(entries.get(0)[0])) {
+            String srcIndex = entries.get(0)[0];
+            String template = entries.get(0)[1] != null ? entries.get(0)[1] : defaultTemplate;
+            return Collections.singletonList(new CloneJob(srcIndex, CloneJob.rename(template, srcIndex), 0, 0));
+        }
+        List<CloneJob> jobs = new ArrayList<CloneJob>();
+        for (String[] entry : entries) {
+            String template = entry[1] != null ? entry[1] : defaultTemplate;
+            JsonObject indices = getSourceIndexStats(src, entry[0]);
+            if (indices.entrySet().isEmpty()) {
+                throw new RuntimeException("No source index matches " + entry[0] + ". Impossible to continue!");
+            }
+            for (Entry<String, JsonElement> index : indices.entrySet()) {
+                JsonObject primaries = index.getValue().getAsJsonObject().get("primaries").getAsJsonObject();
+                jobs.add(new CloneJob(index.getKey(), CloneJob.rename(template, index.getKey()),
+                        primaries.get("store").getAsJsonObject().get("size_in_bytes").getAsLong(),
+                        primaries.get("docs").getAsJsonObject().get("count").getAsLong()));
+            }
+        }
+        return CloneJob.largestFirst(jobs);
+    }
+
+    /**
+     * @return the primaries docs and store stats of the indices matching the pattern, by index name
+     */
+    private static JsonObject getSourceIndexStats(JestClient src, String pattern) throws IOException {
+        Stats.Builder stats = new Stats.Builder().docs(true).store(true);
+        for (String index : pattern.split(",")) {
+            stats.addIndex(index.trim());
+        }
+        JestResult result = src.execute(stats.build());
+        JsonElement indices = result.getJsonObject() == null ? null : result.getJsonObject().get("indices");
+        if (indices == null) {
+            throw new RuntimeException("Unable to resolve the source indices " + pattern + ": "
+                    + result.getErrorMessage() + ". Impossible to continue!");
+        }
+        return indices.getAsJsonObject();
+    }
+
+    private static void checkJobs(List<CloneJob> jobs, CommandLine cmd) {
+        Set<String> dstIndices = new HashSet<String>();
+        boolean sameCluster = !Collections.disjoint(getServers("srcHost", cmd), getServers("dstHost", cmd));
+        for (CloneJob job : jobs) {
+            if (!dstIndices.add(job.getDstIndex())) {
+                throw new RuntimeException("Several indices would be cloned to " + job.getDstIndex()
+                        + ", use a dstIndex template like " + CloneJob.INDEX_PLACEHOLDER + "_copy. Impossible to continue!");
+            }
+            if (sameCluster && job.getSrcIndex().equals(job.getDstIndex())) {
+                throw new RuntimeException("The index " + job.getSrcIndex()
+                        + " would be cloned on itself. Impossible to continue!");
+            }
+        }
+        if (jobs.size() > 1) {
+            for (String option : new String[]{"checkpointFile", "deadLetterFile", "metricsFile", "deltaStateFile",
+                    "verifyReport"}) {
+                String path = cmd.getOptionValue(option);
+                if (path != null && !path.contains(CloneJob.INDEX_PLACEHOLDER)) {
+                    throw new RuntimeException("The " + option + " argument needs a " + CloneJob.INDEX_PLACEHOLDER
+                            + " placeholder to clone several indices. Impossible to continue!");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the file given by the option for the clone of the source index, null if the option is not set
+     */
+    private static File getJobFile(CommandLine cmd, String option, String srcIndex) {
+        String path = cmd.getOptionValue(option);
+        return path == null ? null : new File(CloneJob.rename(path, srcIndex));
+    }
+
     private static CommandLine getCommandLine(String[] args) throws ParseException {
         return CommandLineUtil.readCommandLine(args);
     }
@@ -73,11 +648,22 @@ public class IndexCloner {
 
     private static void copySettings(String srcIndex, String dstIndex, JestClient src, JestClient dst, CommandLine cmd) throws IOException, InterruptedException {
         logInformation("Copying settings");
-        JsonElement srcLoad = getSourceIndexSettings(src, srcIndex);
+        createDestinationIndex(getSourceIndexSettings(src, srcIndex), getSourceMapping(src, srcIndex), dstIndex, dst, cmd);
+    }
+
+    /**
+     * Replaces the destination index by a new one with the source settings, modified by the command line,
+     * and the source mappings
+     */
+    private static void createDestinationIndex(JsonElement srcLoad, JsonElement mapping, String dstIndex,
+                                               JestClient dst, CommandLine cmd) throws IOException, InterruptedException {
         modifyIndexReplicaConfigurations(cmd, srcLoad);
+        if (Boolean.parseBoolean(cmd.getOptionValue("ingestMode"))) {
+            applyIngestSettings(srcLoad.getAsJsonObject().get("settings").getAsJsonObject().get("index").getAsJsonObject());
+        }
         deleteDestinationIndex(dst, dstIndex);
         createDestinationIndexFromSourceSettings(dst, dstIndex, srcLoad);
-        applySourceMappingToDestinationIndex(src, dst, srcIndex, dstIndex);
+        applySourceMappingToDestinationIndex(mapping, dst, dstIndex);
         waitWhilstDestinationIndexIsInRedState(dst);
     }
 
@@ -86,8 +672,38 @@ public class IndexCloner {
     }
 
     private static JestClient getClient(String host, String user, String pwd, CommandLine cmd) {
-        return getAuthenticatedClient(
-                "http://" + cmd.getOptionValue(host), cmd.getOptionValue(user), cmd.getOptionValue(pwd));
+        // by default one connection per bulk in flight and per scroll slice of each concurrent clone
+        int maxConnections = getIntOptionValue(cmd, "maxConnections",
+                (getIntOptionValue(cmd, "bulkWriters", DEFAULT_BULK_WRITERS)
+                        * getIntOptionValue(cmd, "bulksInFlight", DEFAULT_BULKS_IN_FLIGHT)
+                        + getIntOptionValue(cmd, "srcSlices", 1))
+                        * getIntOptionValue(cmd, "maxConcurrentJobs", DEFAULT_MAX_CONCURRENT_JOBS));
+        return getAuthenticatedClient(getServers(host, cmd), cmd.getOptionValue(user), cmd.getOptionValue(pwd),
+                maxConnections, cmd);
+    }
+
+    /**
+     * @return the urls of the comma separated host:port of the option
+     */
+    private static List<String> getServers(String host, CommandLine cmd) {
+        List<String> servers = new ArrayList<String>();
+        for (String server : cmd.getOptionValue(host).split(",")) {
+            if (!server.trim().isEmpty()) {
+                servers.add("http://" + server.trim().toLowerCase());
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new RuntimeException("Invalid " + host + " argument! Impossible to continue!");
+        }
+        return servers;
+    }
+
+    /**
+     * The copy path sends raw requests through the async http client of the Jest client
+     */
+    private static HttpEndpoint getEndpoint(JestClient client, String host, CommandLine cmd) {
+        return new HttpEndpoint(((JestHttpClient) client).getAsyncClient(), getServers(host, cmd),
+                Boolean.parseBoolean(cmd.getOptionValue("compression")));
     }
 
     private static void waitWhilstDestinationIndexIsInRedState(JestClient dst)
@@ -100,28 +716,62 @@ public class IndexCloner {
         } while ("red".equals(clusterStatus));
     }
 
-    private static JestClient getAuthenticatedClient(String host, String user, String pwd) {
-        JestClientFactory factory = new JestClientFactory();
-        HttpClientConfig.Builder builder = new HttpClientConfig.Builder(host);
+    /**
+     * Builds a client sending requests round robin to the servers, through a pool of connections kept alive
+     * for -keepAliveSec, and gzipping the request bodies with -compression true.
+     * Its async client, used by the copy path, is replaced by one with the same pool size, timeouts and credentials.
+     */
+    private static JestClient getAuthenticatedClient(List<String> servers, String user, String pwd, int maxConnections,
+                                                     CommandLine cmd) {
+        final long keepAliveMillis = getIntOptionValue(cmd, "keepAliveSec", DEFAULT_KEEP_ALIVE_SEC) * 1000L;
+        final ConnectionKeepAliveStrategy keepAlive = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration < 0 ? keepAliveMillis : Math.min(duration, keepAliveMillis);
+            }
+        };
+        JestClientFactory factory = new JestClientFactory() {
+            @Override
+            protected HttpClientBuilder configureHttpClient(HttpClientBuilder builder) {
+                return builder.setKeepAliveStrategy(keepAlive);
+            }
+        };
+        HttpClientConfig.Builder builder = new HttpClientConfig.Builder(servers).multiThreaded(true)
+                .maxTotalConnection(maxConnections).defaultMaxTotalConnectionPerRoute(maxConnections)
+                .requestCompressionEnabled(Boolean.parseBoolean(cmd.getOptionValue("compression")))
+                .maxConnectionIdleTime(keepAliveMillis, TimeUnit.MILLISECONDS);
         if (user != null && pwd != null) {
             builder = builder.defaultCredentials(user, pwd);
         }
         //substantially high timeout to give the application a chance to response respond with adequate msg if any
-        factory.setHttpClientConfig(builder.connTimeout(3 * 60 * 1000).readTimeout(3 * 60 * 1000).build());
-        return factory.getObject();
-    }
+        int connTimeout = getIntOptionValue(cmd, "connTimeoutSec", DEFAULT_TIMEOUT_SEC) * 1000;
+        int readTimeout = getIntOptionValue(cmd, "readTimeoutSec", DEFAULT_TIMEOUT_SEC) * 1000;
+        factory.setHttpClientConfig(builder.connTimeout(connTimeout).readTimeout(readTimeout).build());
+        JestHttpClient client = (JestHttpClient) factory.getObject();
 
-    private static Builder bulkRequestBuilder(String indexDst, JsonArray hits) {
-        Builder bulk = new Builder().defaultIndex(indexDst);
-        for (JsonElement hit : hits) {
-            JsonObject h = hit.getAsJsonObject();
-            String id = h.get("_id").getAsString();
-            String t = h.get("_type").getAsString();
-            String source = h.get("_source").getAsJsonObject().toString();
-            Index index = new Index.Builder(source).index(indexDst).type(t).id(id).build();
-            bulk.addAction(index);
+        HttpAsyncClientBuilder async = HttpAsyncClients.custom()
+                .setMaxConnTotal(maxConnections).setMaxConnPerRoute(maxConnections)
+                .setKeepAliveStrategy(keepAlive)
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(connTimeout)
+                        .setConnectionRequestTimeout(connTimeout).setSocketTimeout(readTimeout).build());
+        if (user != null && pwd != null) {
+            CredentialsProvider credentials = new BasicCredentialsProvider();
+            credentials.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, pwd));
+            async.setDefaultCredentialsProvider(credentials);
         }
-        return bulk;
+        CloseableHttpAsyncClient asyncClient = async.build();
+        asyncClient.start();
+        if (client.getAsyncClient() != null) {
+            try {
+                // never started by Jest
+                client.getAsyncClient().close();
+            } catch (IOException e) {
+                LOGGER.warning("Impossible to close the unused async client: " + e.getMessage());
+            }
+        }
+        client.setAsyncClient(asyncClient);
+        return client;
     }
 
     private static JsonElement getSourceIndexSettings(JestClient src, String indexSrc) throws IOException {
@@ -134,6 +784,75 @@ public class IndexCloner {
         return srcLoad;
     }
 
+    /**
+     * @return the checkpoint to resume, a new one, or null when not checkpointing
+     */
+    private static CheckpointFile getCheckpointFile(JestClient src, String indexSrc, String indexDst,
+                                                    List<String> slicePreferences, CommandLine cmd, boolean resume)
+            throws IOException {
+        File path = getJobFile(cmd, "checkpointFile", indexSrc);
+        if (path == null) {
+            if (resume) {
+                throw new RuntimeException("Impossible to resume without a checkpointFile argument!");
+            }
+            return null;
+        }
+        String fingerprint = getSourceFingerprint(src, indexSrc, getScrollQuery(cmd));
+        if (resume) {
+            CheckpointFile checkpointFile = CheckpointFile.load(path);
+            Checkpoint checkpoint = checkpointFile.getCheckpoint();
+            if (!indexSrc.equals(checkpoint.getSrcIndex()) || !indexDst.equals(checkpoint.getDstIndex())) {
+                throw new RuntimeException("The checkpoint " + path + " is for the copy of " + checkpoint.getSrcIndex()
+                        + " to " + checkpoint.getDstIndex() + ". Impossible to resume!");
+            }
+            if (!fingerprint.equals(checkpoint.getFingerprint())) {
+                throw new RuntimeException("The settings or mappings of " + indexSrc
+                        + " changed since the checkpoint. Impossible to resume!");
+            }
+            logInformation("Resuming after " + checkpoint.getAcknowledgedDocs() + " documents");
+            return checkpointFile;
+        }
+        String sortField = cmd.getOptionValue("checkpointField");
+        if (sortField == null || sortField.trim().isEmpty()) {
+            throw new RuntimeException("A checkpointField argument is needed to checkpoint the copy!");
+        }
+        Checkpoint checkpoint = new Checkpoint(indexSrc, indexDst, fingerprint, sortField.trim(), slicePreferences);
+        return new CheckpointFile(path, checkpoint);
+    }
+
+    /**
+     * @return a SHA-1 of the source settings and mappings, which include the index uuid, and of the query
+     */
+    private static String getSourceFingerprint(JestClient src, String indexSrc, ScrollQuery query) throws IOException {
+        String settingsAndMappings = getSourceIndexSettings(src, indexSrc).toString()
+                + getSourceMapping(src, indexSrc).toString()
+                + query.getSelection();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(settingsAndMappings.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not available! " + e.getMessage());
+        }
+    }
+
+    private static AdaptiveBatchSize getBatchSize(CommandLine cmd) {
+        long minBytes = getIntOptionValue(cmd, "bulkMinKb", DEFAULT_BULK_MIN_KB) * 1024L;
+        long maxBytes = getIntOptionValue(cmd, "bulkMaxKb", DEFAULT_BULK_MAX_KB) * 1024L;
+        return new AdaptiveBatchSize(minBytes, maxBytes, DEFAULT_BULK_INITIAL_KB * 1024L,
+                getIntOptionValue(cmd, "bulkMaxDocs", DEFAULT_BULK_MAX_DOCS),
+                getIntOptionValue(cmd, "bulkTargetLatencyMs", DEFAULT_BULK_TARGET_LATENCY_MS));
+    }
+
+    private static int getSourceShards(JestClient src, String indexSrc) throws IOException {
+        JsonObject index = getSourceIndexSettings(src, indexSrc).getAsJsonObject()
+                .get("settings").getAsJsonObject().get("index").getAsJsonObject();
+        return index.get("number_of_shards").getAsInt();
+    }
+
     private static void modifyIndexReplicaConfigurations(CommandLine cmd, JsonElement srcLoad) {
         final JsonObject settings = srcLoad.getAsJsonObject().get("settings").getAsJsonObject();
         final JsonObject index = settings.get("index").getAsJsonObject();
@@ -173,11 +892,8 @@ public class IndexCloner {
         confirmResponse(create, "Index not created properly!");
     }
 
-    private static void applySourceMappingToDestinationIndex(
-            JestClient src, JestClient dst, String indexSrc, String indexDst)
+    private static void applySourceMappingToDestinationIndex(JsonElement oldMapping, JestClient dst, String indexDst)
             throws RuntimeException, IOException {
-        GetMapping getMapping = new GetMapping.Builder().addIndex(indexSrc).build();
-        JsonElement oldMapping = src.execute(getMapping).getJsonObject().get(indexSrc).getAsJsonObject().get("mappings");
         if (oldMapping instanceof JsonObject) {
             JsonObject m = (JsonObject) oldMapping;
             for (Entry<String, JsonElement> e : m.entrySet()) {
@@ -192,63 +908,180 @@ public class IndexCloner {
         logInformation("oldMapping: " + oldMapping.toString());
     }
 
+    private static JsonElement getSourceMapping(JestClient src, String indexSrc) throws IOException {
+        GetMapping getMapping = new GetMapping.Builder().addIndex(indexSrc).build();
+        return src.execute(getMapping).getJsonObject().get(indexSrc).getAsJsonObject().get("mappings");
+    }
+
     private static void confirmResponse(JestResult result, String message) {
         if (!result.getJsonObject().get("acknowledged").getAsBoolean()) {
             throw new RuntimeException(message);
         }
     }
 
-    private static void cloneData(JestClient src, JestClient dst, String indexSrc, String indexDst) throws IOException {
+    /**
+     * @param query the source documents to copy and their fields
+     * @return the number of documents written to the destination
+     */
+    private static long cloneData(JestClient src, JestClient dst, String indexSrc, String indexDst, CommandLine cmd,
+                                  RunLimits limits, boolean resume, ScrollQuery query) throws IOException, InterruptedException {
         logInformation("cloning data phase started");
 
-        int from = 0;
-        int sizePage = 100;
-        int nHits;
-        int totHits = 0;
+        List<String> slicePreferences = Collections.singletonList(null);
+        int srcSlices = getIntOptionValue(cmd, "srcSlices", 1);
+        if (srcSlices > 1) {
+            int shards = getSourceShards(src, indexSrc);
+            slicePreferences = ShardSlices.preferences(srcSlices, shards);
+            logInformation("Reading " + shards + " shards with " + slicePreferences.size() + " parallel slices");
+        }
+        CloneMetrics metrics = new CloneMetrics();
+        ClonePipeline pipeline = newPipeline(
+                getEndpoint(src, "srcHost", cmd), getEndpoint(dst, "dstHost", cmd), indexSrc, indexDst, cmd, limits,
+                metrics)
+                .slicePreferences(slicePreferences)
+                .query(query)
+                .checkpoint(getCheckpointFile(src, indexSrc, indexDst, slicePreferences, cmd, resume))
+                .build();
+        long totHits = pipeline.run();
+        if (cmd.hasOption("metricsFile")) {
+            writeMetrics(getJobFile(cmd, "metricsFile", indexSrc), indexSrc, indexDst, metrics);
+        }
 
-        String scrollId = null;
-        JestResult ret;
-        while (true) {
+        logInformation("Copied successfully " + totHits + " documents");
+        logInformation("cloning data phase finished");
+        return totHits;
+    }
 
-            // Only on first page: Query
-            if (scrollId == null) {
-                String query = "{\"size\": " + sizePage + ", \"from\": " + from + "}";
-                Search search = new Search.Builder(query).addIndex(indexSrc).setParameter(Parameters.SIZE, sizePage)
-                        .setParameter(Parameters.SCROLL, "5m").build();
-                ret = src.execute(search);
-                scrollId = ret.getJsonObject().get("_scroll_id").getAsString();
-            }
-            // Since second page: Scroll
-            else {
-                SearchScroll scroll = new SearchScroll.Builder(scrollId, "5m")
-                        .setParameter(Parameters.SIZE, sizePage).build();
+    private static void writeMetrics(File file, String indexSrc, String indexDst, CloneMetrics metrics)
+            throws IOException {
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("srcIndex", indexSrc);
+        summary.put("dstIndex", indexDst);
+        summary.putAll(metrics.toMap());
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            new GsonBuilder().setPrettyPrinting().create().toJson(summary, writer);
+        } finally {
+            writer.close();
+        }
+        logInformation("Metrics written to " + file);
+    }
 
-                ret = src.execute(scroll);
+    /**
+     * @param limits the throttles of the run, shared by its pipelines
+     * @return a pipeline builder configured by the command line, for a clone, an export or an import
+     */
+    private static ClonePipeline.Builder newPipeline(HttpEndpoint src, HttpEndpoint dst, String indexSrc,
+                                                     String indexDst, CommandLine cmd, RunLimits limits,
+                                                     CloneMetrics metrics)
+            throws IOException {
+        return new ClonePipeline.Builder(src, dst, indexSrc, indexDst)
+                .sizePage(getIntOptionValue(cmd, "srcPageSize", DEFAULT_SIZE_PAGE))
+                .bulkWriters(getIntOptionValue(cmd, "bulkWriters", DEFAULT_BULK_WRITERS))
+                .bulksInFlight(getIntOptionValue(cmd, "bulksInFlight", DEFAULT_BULKS_IN_FLIGHT))
+                .queueDepth(getIntOptionValue(cmd, "queueDepth", DEFAULT_QUEUE_DEPTH))
+                .batchSize(getBatchSize(cmd))
+                .retries(getIntOptionValue(cmd, "bulkRetries", DEFAULT_BULK_RETRIES),
+                        getIntOptionValue(cmd, "bulkRetryDelayMs", DEFAULT_BULK_RETRY_DELAY_MS))
+                .deadLetterFile(getJobFile(cmd, "deadLetterFile", indexSrc))
+                .query(getScrollQuery(cmd))
+                .transform(getTransform(cmd))
+                .throttle(limits.read, limits.write)
+                .shardRouting("true".equalsIgnoreCase(cmd.getOptionValue("shardRouting"))
+                        ? getIntOptionValue(cmd, "routingRefreshSec", DEFAULT_ROUTING_REFRESH_SEC) : 0)
+                .metrics(metrics)
+                .progressInterval(getIntOptionValue(cmd, "progressIntervalSec", DEFAULT_PROGRESS_INTERVAL_SEC));
+    }
+
+    /**
+     * @param side read or write, the prefix of the -[side]DocsPerSec and -[side]MbPerSec limits
+     */
+    private static Throttle getThrottle(CommandLine cmd, String side) {
+        return new Throttle(getIntOptionValue(cmd, side + "DocsPerSec", 0),
+                getIntOptionValue(cmd, side + "MbPerSec", 0) * 1024.0 * 1024.0);
+    }
+
+    /**
+     * The read and write limits of a run, shared by the pipelines of all its clones so that the concurrent jobs
+     * stay within them together, and with -adaptiveReads the one monitor of the source load adapting the reads
+     */
+    private static class RunLimits implements Closeable {
+
+        private final Throttle read;
+        private final Throttle write;
+        private final ScheduledExecutorService monitor;
+
+        /**
+         * @param src the source cluster, null when importing
+         */
+        RunLimits(HttpEndpoint src, CommandLine cmd) {
+            this.read = getThrottle(cmd, "read");
+            this.write = getThrottle(cmd, "write");
+            if (src != null && "true".equalsIgnoreCase(cmd.getOptionValue("adaptiveReads"))) {
+                int pollSeconds = getIntOptionValue(cmd, "loadPollSec", DEFAULT_LOAD_POLL_SEC);
+                this.monitor = Executors.newSingleThreadScheduledExecutor();
+                monitor.scheduleWithFixedDelay(new SourceLoadMonitor(src, read.getDocs(),
+                                getIntOptionValue(cmd, "searchQueueThreshold", DEFAULT_SEARCH_QUEUE_THRESHOLD)),
+                        pollSeconds, pollSeconds, TimeUnit.SECONDS);
+            } else {
+                this.monitor = null;
             }
+        }
 
-            JsonArray hits = ret.getJsonObject().get("hits").getAsJsonObject().get("hits").getAsJsonArray();
-            nHits = hits.size();
-            if (nHits == 0) {
-                break;
+        @Override
+        public void close() {
+            if (monitor != null) {
+                monitor.shutdownNow();
             }
+        }
+    }
 
-            totHits += nHits;
-            Builder bulk = bulkRequestBuilder(indexDst, hits);
+    /**
+     * @return the source documents to copy, filtered by -query and projected by -sourceIncludes/-sourceExcludes
+     */
+    private static ScrollQuery getScrollQuery(CommandLine cmd) throws IOException {
+        ScrollQuery.Builder query = new ScrollQuery.Builder()
+                .sourceIncludes(getListOptionValue(cmd, "sourceIncludes"))
+                .sourceExcludes(getListOptionValue(cmd, "sourceExcludes"))
+                .sortByDoc(!"false".equalsIgnoreCase(cmd.getOptionValue("sortByDoc")));
+        String json = cmd.getOptionValue("query");
+        if (json != null && json.startsWith("@")) {
+            json = new String(Files.readAllBytes(new File(json.substring(1)).toPath()), "UTF-8");
+        }
+        if (json != null && !json.trim().isEmpty()) {
+            query.query(json);
+        }
+        return query.build();
+    }
 
-            JestResult response = null;
-            try {
-                Bulk build = bulk.build();
-//                logInformation(new Timestamp(System.currentTimeMillis()).toString());
-                response = dst.execute(build);
-            } catch (SocketTimeoutException e) {
-                logInformation(" ------ socket exp");
-                logInformation(new Timestamp(System.currentTimeMillis()).toString());
-                e.printStackTrace();
+    private static List<String> getListOptionValue(CommandLine cmd, String option) {
+        List<String> values = new ArrayList<String>();
+        if (cmd.hasOption(option)) {
+            for (String value : cmd.getOptionValue(option).split(",")) {
+                if (!value.trim().isEmpty()) {
+                    values.add(value.trim());
+                }
             }
-//            logResponse(response);
         }
-        logInformation("Copied successfully " + totHits + " documents");
-        logInformation("cloning data phase finished");
+        return values;
+    }
+
+    /**
+     * @return the transformations of the -transformFile followed by the ; separated ones of -transform
+     */
+    private static TransformPipeline getTransform(CommandLine cmd) throws IOException {
+        List<String> operations = new ArrayList<String>();
+        if (cmd.hasOption("transformFile")) {
+            operations.addAll(TransformPipeline.readSpecFile(new File(cmd.getOptionValue("transformFile"))));
+        }
+        if (cmd.hasOption("transform")) {
+            operations.addAll(Arrays.asList(cmd.getOptionValue("transform").split(";")));
+        }
+        TransformPipeline transform = TransformPipeline.parse(operations);
+        if (!transform.isEmpty()) {
+            logInformation("Transforming the documents with " + operations);
+        }
+        return transform;
     }
 
     private static void logResponse(JestResult response) {
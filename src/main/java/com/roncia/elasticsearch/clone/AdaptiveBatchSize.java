@@ -0,0 +1,81 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Target size of the bulk requests sent to one destination cluster, adapted at runtime AIMD-style:
+ * the target grows by a fixed step after every bulk completed within the target latency, and is cut
+ * when the cluster is too slow, times out or rejects the bulk, so each cluster settles on its own best size.
+ * Shared by all the bulk writers of the same destination.
+ */
+public class AdaptiveBatchSize {
+
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveBatchSize.class.getName());
+
+    /**
+     * Number of additive steps between the min and the max size
+     */
+    private static final int STEPS = 32;
+
+    private final long minBytes;
+    private final long maxBytes;
+    private final int maxDocs;
+    private final long targetLatencyMillis;
+    private final long step;
+    private long targetBytes;
+
+    /**
+     * @param minBytes the lower bound of the target size
+     * @param maxBytes the upper bound of the target size
+     * @param initialBytes the target size of the first bulk requests
+     * @param maxDocs the max number of documents in a bulk request, whatever their size
+     * @param targetLatencyMillis the bulk latency above which the target size is reduced
+     */
+    public AdaptiveBatchSize(long minBytes, long maxBytes, long initialBytes, int maxDocs, long targetLatencyMillis) {
+        if (minBytes < 1 || maxBytes < minBytes || maxDocs < 1 || targetLatencyMillis < 1) {
+            throw new RuntimeException("Invalid bulk size limits: " + minBytes + "-" + maxBytes
+                    + " bytes, " + maxDocs + " documents, " + targetLatencyMillis + " ms");
+        }
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.maxDocs = maxDocs;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.step = Math.max(1, (maxBytes - minBytes) / STEPS);
+        this.targetBytes = Math.max(minBytes, Math.min(maxBytes, initialBytes));
+    }
+
+    /**
+     * @return true when a batch of the given size must be flushed
+     */
+    public boolean isFull(int docs, long bytes) {
+        return docs >= maxDocs || bytes >= getTargetBytes();
+    }
+
+    public synchronized long getTargetBytes() {
+        return targetBytes;
+    }
+
+    /**
+     * Additive increase after a fast bulk, gentle decrease after a slow one
+     */
+    public synchronized void onCompleted(long bytes, long latencyMillis) {
+        if (latencyMillis <= targetLatencyMillis) {
+            // only a bulk close to the target proves the cluster copes with a bigger one
+            if (bytes >= targetBytes / 2) {
+                targetBytes = Math.min(maxBytes, targetBytes + step);
+            }
+        } else {
+            targetBytes = Math.max(minBytes, targetBytes * 3 / 4);
+            LOGGER.log(Level.FINE, "Bulk took " + latencyMillis + " ms, target size reduced to " + targetBytes);
+        }
+    }
+
+    /**
+     * Multiplicative decrease after a rejected or timed out bulk
+     */
+    public synchronized void onRejected() {
+        targetBytes = Math.max(minBytes, targetBytes / 2);
+        LOGGER.log(Level.INFO, "Bulk rejected, target size reduced to " + targetBytes + " bytes");
+    }
+}
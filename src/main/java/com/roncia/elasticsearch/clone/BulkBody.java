@@ -0,0 +1,91 @@
+package com.roncia.elasticsearch.clone;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Reusable NDJSON body of a _bulk request: the sources are copied byte for byte from the scroll responses,
+ * after an index action line. Reset and refilled for every bulk sent by the same writer.
+ */
+public class BulkBody extends ByteArrayOutputStream {
+
+    private static final byte[] INDEX_ACTION = "{\"index\":{".getBytes(JsonScanner.UTF8);
+    private static final byte[] DELETE_ACTION = "{\"delete\":{".getBytes(JsonScanner.UTF8);
+    private static final byte[] INDEX = "\"_index\":\"".getBytes(JsonScanner.UTF8);
+    private static final byte[] INDEX_END = "\",".getBytes(JsonScanner.UTF8);
+    private static final byte[] TYPE = "\"_type\":\"".getBytes(JsonScanner.UTF8);
+    private static final byte[] ID = "\",\"_id\":\"".getBytes(JsonScanner.UTF8);
+    private static final byte[] ROUTING = "\",\"_routing\":\"".getBytes(JsonScanner.UTF8);
+    private static final byte[] ACTION_END = "\"}}\n".getBytes(JsonScanner.UTF8);
+
+    public BulkBody(int initialSize) {
+        super(initialSize);
+    }
+
+    /**
+     * Appends the index action of the document and its source
+     *
+     * @param index the destination index, or null to leave it to the url of the bulk
+     */
+    public void appendIndex(String index, Document document) {
+        write(INDEX_ACTION, 0, INDEX_ACTION.length);
+        if (index != null) {
+            write(INDEX, 0, INDEX.length);
+            writeEscaped(index);
+            write(INDEX_END, 0, INDEX_END.length);
+        }
+        write(TYPE, 0, TYPE.length);
+        writeEscaped(document.getType());
+        write(ID, 0, ID.length);
+        writeEscaped(document.getId());
+        if (document.getRouting() != null) {
+            write(ROUTING, 0, ROUTING.length);
+            writeEscaped(document.getRouting());
+        }
+        write(ACTION_END, 0, ACTION_END.length);
+        write(document.getBuffer(), document.getSourceOffset(), document.getSourceLength());
+        write('\n');
+    }
+
+    /**
+     * Appends the delete action of the document, without source
+     */
+    public void appendDelete(Document document) {
+        write(DELETE_ACTION, 0, DELETE_ACTION.length);
+        write(TYPE, 0, TYPE.length);
+        writeEscaped(document.getType());
+        write(ID, 0, ID.length);
+        writeEscaped(document.getId());
+        if (document.getRouting() != null) {
+            write(ROUTING, 0, ROUTING.length);
+            writeEscaped(document.getRouting());
+        }
+        write(ACTION_END, 0, ACTION_END.length);
+    }
+
+    /**
+     * @return the internal buffer, valid up to {@link #size()}, so it can be sent without copying it
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    private void writeEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                write('\\');
+                write(c);
+            } else if (c < 0x20) {
+                byte[] escape = String.format("\\u%04x", (int) c).getBytes(JsonScanner.UTF8);
+                write(escape, 0, escape.length);
+            } else if (c < 0x80) {
+                write(c);
+            } else {
+                int next = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+                byte[] utf8 = value.substring(i, next).getBytes(JsonScanner.UTF8);
+                write(utf8, 0, utf8.length);
+                i = next - 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Sends again, once their backoff expired, the documents rejected by the destination, until they are
+ * indexed or run out of attempts and go to the dead letter file. Runs until the {@link RetryQueue} is
+ * closed and empty.
+ */
+public class BulkRetrier implements Callable<Long> {
+
+    private final String indexDst;
+    private final RetryQueue retries;
+    private final BulkSender sender;
+    private final int maxRetries;
+    private final BulkBody body = new BulkBody(1024 * 1024);
+
+    /**
+     * @param maxRetries the number of retries after which a document is dead lettered
+     */
+    public BulkRetrier(String indexDst, RetryQueue retries, BulkSender sender, int maxRetries) {
+        this.indexDst = indexDst;
+        this.retries = retries;
+        this.sender = sender;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the number of documents indexed on the destination index by a retry
+     */
+    @Override
+    public Long call() throws Exception {
+        RetryQueue.Batch batch;
+        while ((batch = retries.take()) != null) {
+            body.reset();
+            for (Document document : batch.getDocuments()) {
+                body.appendIndex(indexDst, document);
+            }
+            List<Document> rejected = sender.send(body, batch.getDocuments());
+            if (rejected.isEmpty()) {
+                retries.done(batch);
+            } else if (batch.getAttempt() >= maxRetries) {
+                sender.giveUp(rejected, "still rejected after " + maxRetries + " retries");
+                retries.done(batch);
+            } else {
+                retries.retryAgain(batch, rejected);
+            }
+        }
+        return sender.getIndexed();
+    }
+}
@@ -0,0 +1,358 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a bulk and dispatches each of its documents on the outcome of its own item: indexed documents are
+ * acknowledged, documents rejected by an overloaded destination (429, 503, rejected execution, timeout) are
+ * returned to be retried, and the others are written to the dead letter file, then acknowledged.
+ * The bulks are sent without waiting: the response is dispatched by the callback of the request, on the io threads
+ * of the http client, which never block, and the documents to retry complete the future of the bulk.
+ * The {@link Throttle} paces the bulks, retries included, to the documents and bytes per second allowed on the
+ * destination. With a {@link ShardRouter}, a bulk is split in one bulk per node holding the primaries of its
+ * documents, falling back to the destination hosts when a node cannot be reached.
+ * Thread safe: the responses of the bulks of a writer are dispatched concurrently.
+ */
+public class BulkSender {
+
+    private static final Logger LOGGER = Logger.getLogger(BulkSender.class.getName());
+    private static final String REJECTED = "rejectedexecution";
+    private static final byte[] ERRORS = "errors".getBytes(JsonScanner.UTF8);
+
+    private final HttpEndpoint dst;
+    private final String indexDst;
+    private final AdaptiveBatchSize batchSize;
+    private final DeadLetterFile deadLetters;
+    private final CheckpointFile checkpointFile;
+    private final Throttle throttle;
+    private final ShardRouter router;
+    private final CloneMetrics metrics;
+    private final AtomicLong indexed = new AtomicLong();
+
+    /**
+     * @param checkpointFile the checkpoint counting the acknowledged bulks, or null when not checkpointing
+     * @param throttle the write limits, shared by the senders of the destination
+     * @param router the router of the documents to the nodes of their primaries, or null to send the bulks to dst
+     */
+    public BulkSender(HttpEndpoint dst, String indexDst, AdaptiveBatchSize batchSize, DeadLetterFile deadLetters,
+                      CheckpointFile checkpointFile, Throttle throttle, ShardRouter router, CloneMetrics metrics) {
+        this.dst = dst;
+        this.indexDst = indexDst;
+        this.batchSize = batchSize;
+        this.deadLetters = deadLetters;
+        this.checkpointFile = checkpointFile;
+        this.throttle = throttle;
+        this.router = router;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the number of documents indexed by this sender so far
+     */
+    public long getIndexed() {
+        return indexed.get();
+    }
+
+    /**
+     * Sends the bulk and waits for its response
+     *
+     * @param body the bulk body of the documents, in the same order
+     * @param documents the documents of the bulk
+     * @return the documents to retry, empty if none
+     * @throws IOException if the destination fails the whole bulk for another reason than overload
+     * @throws InterruptedException if interrupted while throttled
+     */
+    public List<Document> send(BulkBody body, List<Document> documents) throws IOException, InterruptedException {
+        return HttpEndpoint.await(sendAsync(body, documents, null));
+    }
+
+    /**
+     * Sends the bulk without waiting for its response, once the throttle lets it through
+     *
+     * @param body the bulk body of the documents, in the same order, left unchanged until the bulk completes
+     * @param documents the documents of the bulk
+     * @param callback notified with the documents to retry once the bulk is dispatched, or of the failure of the
+     *                 whole bulk for another reason than overload; or null
+     * @return the documents to retry to come, cancelling it aborts the bulk
+     * @throws InterruptedException if interrupted while throttled
+     */
+    public Future<List<Document>> sendAsync(BulkBody body, List<Document> documents,
+                                            FutureCallback<List<Document>> callback) throws InterruptedException {
+        throttle.acquire(documents.size(), body.size());
+        if (router == null) {
+            Bulk bulk = new Bulk(1, callback);
+            bulk.send(dst, body.getBuffer(), body.size(), documents);
+            return bulk;
+        }
+        Map<HttpEndpoint, List<Document>> nodes = router.group(documents);
+        Bulk bulk = new Bulk(nodes.size(), callback);
+        if (nodes.size() == 1) {
+            bulk.send(nodes.keySet().iterator().next(), body.getBuffer(), body.size(), documents);
+            return bulk;
+        }
+        for (Map.Entry<HttpEndpoint, List<Document>> node : nodes.entrySet()) {
+            BulkBody nodeBody = new BulkBody(body.size() / nodes.size() + 1024);
+            for (Document document : node.getValue()) {
+                nodeBody.appendIndex(indexDst, document);
+            }
+            bulk.send(node.getKey(), nodeBody.getBuffer(), nodeBody.size(), node.getValue());
+        }
+        return bulk;
+    }
+
+    /**
+     * The documents to retry of a bulk, complete once the bulks of all its nodes are dispatched.
+     * A response is dispatched under the lock of the bulk, and dropped once the bulk is cancelled, so that a cancelled
+     * bulk neither acknowledges nor dead letters its documents after the cancellation returned: they are sent again
+     * on resume.
+     */
+    private class Bulk extends BasicFuture<List<Document>> {
+        private final List<Future<HttpEndpoint.Response>> requests =
+                new CopyOnWriteArrayList<Future<HttpEndpoint.Response>>();
+        private final List<Document> retry = Collections.synchronizedList(new ArrayList<Document>());
+        private final AtomicInteger pending;
+
+        Bulk(int nodes, FutureCallback<List<Document>> callback) {
+            super(callback);
+            this.pending = new AtomicInteger(nodes);
+        }
+
+        /**
+         * Sends the bulk of a node, to the destination hosts instead if the node cannot be reached
+         */
+        void send(final HttpEndpoint endpoint, final byte[] body, final int length, final List<Document> documents) {
+            final long start = System.nanoTime();
+            requests.add(endpoint.postAsync("/_bulk", body, length, HttpEndpoint.NDJSON,
+                    new FutureCallback<HttpEndpoint.Response>() {
+                        @Override
+                        public void completed(HttpEndpoint.Response response) {
+                            synchronized (Bulk.this) {
+                                if (isDone()) {
+                                    return;
+                                }
+                                try {
+                                    onDispatched(dispatch(response, documents, length, System.nanoTime() - start));
+                                } catch (IOException | RuntimeException e) {
+                                    failed(e);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            if (e instanceof SocketTimeoutException) {
+                                onDispatched(onTimeout(documents));
+                            } else if ((e instanceof ConnectException || e instanceof ConnectTimeoutException)
+                                    && router != null && endpoint != router.getDefault() && !isDone()) {
+                                router.onUnreachable(endpoint);
+                                send(router.getDefault(), body, length, documents);
+                            } else {
+                                Bulk.this.failed(e);
+                            }
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            Bulk.this.cancel();
+                        }
+                    }));
+            if (isCancelled()) {
+                // cancelled while moving to the destination hosts
+                cancel(true);
+            }
+        }
+
+        private void onDispatched(List<Document> documents) {
+            retry.addAll(documents);
+            if (pending.decrementAndGet() == 0) {
+                completed(new ArrayList<Document>(retry));
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled;
+            // waits for a response being dispatched
+            synchronized (this) {
+                cancelled = super.cancel(mayInterruptIfRunning);
+            }
+            for (Future<HttpEndpoint.Response> request : requests) {
+                request.cancel(true);
+            }
+            return cancelled;
+        }
+    }
+
+    private List<Document> onTimeout(List<Document> documents) {
+        batchSize.onRejected();
+        metrics.onBulkRejected();
+        metrics.onRetried(documents.size());
+        LOGGER.log(Level.WARNING, "Bulk of " + documents.size() + " documents timed out, retrying it");
+        return new ArrayList<Document>(documents);
+    }
+
+    /**
+     * @return the documents of the bulk to retry
+     * @throws IOException if the destination failed the whole bulk for another reason than overload
+     */
+    private List<Document> dispatch(HttpEndpoint.Response response, List<Document> documents, int bytes,
+                                    long latency) throws IOException {
+        metrics.onBulk(bytes, latency);
+        if (response.getStatus() == 429 || response.getStatus() == 503) {
+            batchSize.onRejected();
+            metrics.onBulkRejected();
+            metrics.onRetried(documents.size());
+            LOGGER.log(Level.WARNING, "Bulk of " + documents.size() + " documents rejected with status "
+                    + response.getStatus() + ", retrying it");
+            return new ArrayList<Document>(documents);
+        }
+        if (!response.isSucceeded()) {
+            throw new IOException("Bulk failed with status " + response.getStatus() + ": " + response.getBodyAsString());
+        }
+        if (checkpointFile != null) {
+            checkpointFile.onBulkAcknowledged();
+        }
+        if (!hasErrors(response)) {
+            batchSize.onCompleted(bytes, TimeUnit.NANOSECONDS.toMillis(latency));
+            acknowledge(documents);
+            indexed.addAndGet(documents.size());
+            metrics.onIndexed(documents.size());
+            return Collections.emptyList();
+        }
+        return dispatchItems(response, documents, bytes, TimeUnit.NANOSECONDS.toMillis(latency));
+    }
+
+    private List<Document> dispatchItems(HttpEndpoint.Response response, List<Document> documents,
+                                         long bytes, long latencyMillis) throws IOException {
+        JsonObject json = new JsonParser().parse(new InputStreamReader(
+                new ByteArrayInputStream(response.getBody(), 0, response.getLength()), JsonScanner.UTF8)).getAsJsonObject();
+        JsonArray items = json.get("items").getAsJsonArray();
+        if (items.size() != documents.size()) {
+            throw new IOException("Bulk returned " + items.size() + " items for " + documents.size() + " documents!");
+        }
+        List<Document> retry = new ArrayList<Document>();
+        List<Document> done = new ArrayList<Document>(documents.size());
+        int failed = 0;
+        for (int i = 0; i < documents.size(); i++) {
+            Document document = documents.get(i);
+            JsonObject result = getResult(items.get(i).getAsJsonObject());
+            int status = result.has("status") ? result.get("status").getAsInt() : 500;
+            String error = result.has("error") ? result.get("error").toString() : null;
+            if (status / 100 == 2 && error == null) {
+                done.add(document);
+                indexed.incrementAndGet();
+            } else if (status == 429 || status == 503 || (error != null && isRejection(error))) {
+                retry.add(document);
+            } else {
+                deadLetters.write(indexDst, document, status, error == null ? "null" : error);
+                done.add(document);
+                failed++;
+            }
+        }
+        acknowledge(done);
+        metrics.onIndexed(done.size() - failed);
+        metrics.onDeadLettered(failed);
+        if (retry.isEmpty()) {
+            batchSize.onCompleted(bytes, latencyMillis);
+        } else {
+            batchSize.onRejected();
+            metrics.onRetried(retry.size());
+            LOGGER.log(Level.WARNING, retry.size() + " documents of the bulk rejected, retrying them");
+        }
+        if (failed > 0) {
+            LOGGER.log(Level.WARNING, failed + " documents of the bulk failed, written to " + deadLetters.getFile());
+        }
+        return retry;
+    }
+
+    /**
+     * Writes documents that cannot be retried anymore to the dead letter file, and acknowledges them
+     */
+    public void giveUp(List<Document> documents, String reason) throws IOException {
+        String error = new JsonPrimitive(reason).toString();
+        for (Document document : documents) {
+            deadLetters.write(indexDst, document, 429, error);
+        }
+        acknowledge(documents);
+        metrics.onDeadLettered(documents.size());
+        LOGGER.log(Level.WARNING, documents.size() + " documents " + reason + ", written to " + deadLetters.getFile());
+    }
+
+    /**
+     * @return the result of a bulk item, whatever its action (index, create...)
+     */
+    static JsonObject getResult(JsonObject item) {
+        for (Map.Entry<String, JsonElement> action : item.entrySet()) {
+            return action.getValue().getAsJsonObject();
+        }
+        return new JsonObject();
+    }
+
+    /**
+     * Acknowledges the documents to their pages, one call per run of documents of the same page
+     */
+    private static void acknowledge(List<Document> documents) {
+        ScrollPage page = null;
+        int run = 0;
+        for (Document document : documents) {
+            if (document.getPage() != page) {
+                if (page != null) {
+                    page.acknowledge(run);
+                }
+                page = document.getPage();
+                run = 0;
+            }
+            run++;
+        }
+        if (page != null) {
+            page.acknowledge(run);
+        }
+    }
+
+    /**
+     * @return the value of the top level errors flag, without parsing the items
+     */
+    private static boolean hasErrors(HttpEndpoint.Response response) {
+        JsonScanner json = new JsonScanner(response.getBody(), 0, response.getLength());
+        json.beginObject();
+        while (json.hasNextField()) {
+            if (json.nextFieldNameIs(ERRORS)) {
+                return json.nextBoolean();
+            }
+            json.nextFieldName();
+            json.skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Matches both es_rejected_execution_exception and EsRejectedExecutionException
+     */
+    static boolean isRejection(String error) {
+        return error.toLowerCase().replace("_", "").contains(REJECTED);
+    }
+}
@@ -0,0 +1,188 @@
+package com.roncia.elasticsearch.clone;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Consumer side of the clone pipeline: takes pages of documents from the queue, batches them and indexes each
+ * batch on the destination with a _bulk request, until the end of data marker is received.
+ * A batch is flushed when it reaches the size targeted by the {@link AdaptiveBatchSize}, or when no page
+ * arrives for a while. The sources are copied byte for byte into a bulk body, reused once its bulk completes.
+ * Up to bulksInFlight bulks are sent without waiting for their responses, which the {@link BulkSender} dispatches
+ * from their callbacks; the writer batches the next documents meanwhile, and only waits for a bulk to complete
+ * when all of them are in flight. The callbacks hand the documents rejected by the destination back to the writer,
+ * which queues them on the {@link RetryQueue}, so that a full retry queue never blocks the io threads.
+ * The documents are transformed before being batched, so the retries send the transformed documents.
+ */
+public class BulkWriter implements Callable<Long> {
+
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final String indexDst;
+    private final BlockingQueue<ScrollPage> pages;
+    private final AdaptiveBatchSize batchSize;
+    private final BulkSender sender;
+    private final RetryQueue retries;
+    private final TransformPipeline transform;
+    private final CloneMetrics metrics;
+    private final int bulksInFlight;
+    private final Semaphore inFlight;
+    private final Queue<BulkBody> bodies = new ConcurrentLinkedQueue<BulkBody>();
+    private final Queue<List<Document>> rejected = new ConcurrentLinkedQueue<List<Document>>();
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    private final Set<Future<List<Document>>> pending =
+            Collections.newSetFromMap(new ConcurrentHashMap<Future<List<Document>>, Boolean>());
+    private BulkBody body = new BulkBody(1024 * 1024);
+    private List<Document> batch = new ArrayList<Document>();
+
+    /**
+     * @param retries the queue of the documents to retry, or null to dead letter them at once
+     * @param bulksInFlight the max number of bulks of the writer waiting for their response
+     */
+    public BulkWriter(String indexDst, BlockingQueue<ScrollPage> pages, AdaptiveBatchSize batchSize,
+                      BulkSender sender, RetryQueue retries, TransformPipeline transform, CloneMetrics metrics,
+                      int bulksInFlight) {
+        this.indexDst = indexDst;
+        this.pages = pages;
+        this.batchSize = batchSize;
+        this.sender = sender;
+        this.retries = retries;
+        this.transform = transform;
+        this.metrics = metrics;
+        this.bulksInFlight = bulksInFlight;
+        this.inFlight = new Semaphore(bulksInFlight);
+    }
+
+    /**
+     * @return the number of documents indexed on the destination index at their first attempt
+     */
+    @Override
+    public Long call() throws Exception {
+        try {
+            while (true) {
+                ScrollPage page = pages.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (page == null || page == ClonePipeline.END_OF_DATA) {
+                    flush();
+                    if (page == null) {
+                        continue;
+                    }
+                    // all the bulks completed, their rejected documents queued for a retry
+                    inFlight.acquire(bulksInFlight);
+                    onCompleted();
+                    return sender.getIndexed();
+                }
+                for (Document source : page.getDocuments()) {
+                    Document document = transform.apply(source, metrics);
+                    if (document == null) {
+                        continue;
+                    }
+                    body.appendIndex(indexDst, document);
+                    batch.add(document);
+                    if (batchSize.isFull(batch.size(), body.size())) {
+                        flush();
+                    }
+                }
+            }
+        } finally {
+            // aborts the bulks in flight of a cancelled or failed writer
+            for (Future<List<Document>> bulk : pending) {
+                bulk.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Sends the batch once a bulk of the writer completes if they are all in flight
+     */
+    private void flush() throws IOException, InterruptedException {
+        onCompleted();
+        if (batch.isEmpty()) {
+            return;
+        }
+        inFlight.acquire();
+        onCompleted();
+        final BulkBody sent = body;
+        final List<Document> documents = batch;
+        BulkBody free = bodies.poll();
+        body = free != null ? free : new BulkBody(1024 * 1024);
+        batch = new ArrayList<Document>();
+        final AtomicReference<Future<List<Document>>> bulk = new AtomicReference<Future<List<Document>>>();
+        try {
+            bulk.set(sender.sendAsync(sent, documents, new FutureCallback<List<Document>>() {
+                @Override
+                public void completed(List<Document> retry) {
+                    if (!retry.isEmpty()) {
+                        rejected.add(retry);
+                    }
+                    release();
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    failure.compareAndSet(null, e);
+                    release();
+                }
+
+                @Override
+                public void cancelled() {
+                    release();
+                }
+
+                private void release() {
+                    sent.reset();
+                    bodies.add(sent);
+                    Future<List<Document>> done = bulk.get();
+                    if (done != null) {
+                        pending.remove(done);
+                    }
+                    inFlight.release();
+                }
+            }));
+        } catch (InterruptedException | RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        pending.add(bulk.get());
+        if (bulk.get().isDone()) {
+            pending.remove(bulk.get());
+        }
+    }
+
+    /**
+     * Queues the documents rejected by the completed bulks for a retry, and rethrows the failure of a bulk
+     */
+    private void onCompleted() throws IOException, InterruptedException {
+        List<Document> retry;
+        while ((retry = rejected.poll()) != null) {
+            if (retries == null) {
+                sender.giveUp(retry, "rejected with retries disabled");
+            } else {
+                retries.offer(retry);
+            }
+        }
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e != null) {
+            throw new IOException("Bulk failed!", e);
+        }
+    }
+}
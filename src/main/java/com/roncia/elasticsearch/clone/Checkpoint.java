@@ -0,0 +1,117 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable progress of a clone, saved as JSON by the {@link CheckpointFile}:
+ * for every slice the sort value of the last document indexed without gaps, plus the counters of the
+ * acknowledged documents and bulks and the fingerprint of the source settings and mappings.
+ */
+public class Checkpoint {
+
+    private String srcIndex;
+    private String dstIndex;
+    private String fingerprint;
+    private String sortField;
+    private long acknowledgedDocs;
+    private long acknowledgedBulks;
+    private List<Slice> slices = new ArrayList<Slice>();
+
+    Checkpoint() {
+    }
+
+    public Checkpoint(String srcIndex, String dstIndex, String fingerprint, String sortField, List<String> preferences) {
+        this.srcIndex = srcIndex;
+        this.dstIndex = dstIndex;
+        this.fingerprint = fingerprint;
+        this.sortField = sortField;
+        for (String preference : preferences) {
+            slices.add(new Slice(preference));
+        }
+    }
+
+    public String getSrcIndex() {
+        return srcIndex;
+    }
+
+    public String getDstIndex() {
+        return dstIndex;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getSortField() {
+        return sortField;
+    }
+
+    public long getAcknowledgedDocs() {
+        return acknowledgedDocs;
+    }
+
+    public long getAcknowledgedBulks() {
+        return acknowledgedBulks;
+    }
+
+    public List<Slice> getSlices() {
+        return slices;
+    }
+
+    void addAcknowledgedDocs(long documents) {
+        acknowledgedDocs += documents;
+    }
+
+    void addAcknowledgedBulk() {
+        acknowledgedBulks++;
+    }
+
+    /**
+     * Progress of one scroll slice
+     */
+    public static class Slice {
+        private String preference;
+        private String lastSortValue;
+        private long documents;
+        private boolean completed;
+
+        Slice() {
+        }
+
+        Slice(String preference) {
+            this.preference = preference;
+        }
+
+        /**
+         * @return the shards of the slice, or null for the whole index
+         */
+        public String getPreference() {
+            return preference;
+        }
+
+        /**
+         * @return the raw JSON sort value of the last document acknowledged without gaps, null if none yet
+         */
+        public String getLastSortValue() {
+            return lastSortValue;
+        }
+
+        public long getDocuments() {
+            return documents;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        void advance(String lastSortValue, long documents) {
+            this.lastSortValue = lastSortValue;
+            this.documents += documents;
+        }
+
+        void complete() {
+            this.completed = true;
+        }
+    }
+}
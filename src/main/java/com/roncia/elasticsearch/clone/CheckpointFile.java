@@ -0,0 +1,106 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves a {@link Checkpoint} on disk as the writers acknowledge the bulks, at most once per second,
+ * replacing the previous file atomically so a crash never leaves a truncated checkpoint.
+ */
+public class CheckpointFile {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckpointFile.class.getName());
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+
+    private final File file;
+    private final Checkpoint checkpoint;
+    private long lastFlush;
+    private boolean dirty;
+
+    public CheckpointFile(File file, Checkpoint checkpoint) {
+        this.file = file;
+        this.checkpoint = checkpoint;
+    }
+
+    public static CheckpointFile load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), JsonScanner.UTF8);
+        try {
+            return new CheckpointFile(file, GSON.fromJson(reader, Checkpoint.class));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    synchronized void onBulkAcknowledged() {
+        checkpoint.addAcknowledgedBulk();
+        dirty = true;
+        flushIfDue();
+    }
+
+    synchronized void onSliceAdvanced(Checkpoint.Slice slice, String lastSortValue, long documents) {
+        slice.advance(lastSortValue, documents);
+        checkpoint.addAcknowledgedDocs(documents);
+        dirty = true;
+        flushIfDue();
+    }
+
+    synchronized void onSliceCompleted(Checkpoint.Slice slice) {
+        slice.complete();
+        dirty = true;
+        flushIfDue();
+    }
+
+    private void flushIfDue() {
+        if (System.currentTimeMillis() - lastFlush < FLUSH_INTERVAL_MILLIS) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the checkpoint " + file, e);
+        }
+    }
+
+    /**
+     * Saves the checkpoint if anything changed since the last save
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), JsonScanner.UTF8);
+        try {
+            GSON.toJson(checkpoint, writer);
+        } finally {
+            writer.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastFlush = System.currentTimeMillis();
+        dirty = false;
+    }
+}
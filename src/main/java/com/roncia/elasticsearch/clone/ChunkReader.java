@@ -0,0 +1,239 @@
+package com.roncia.elasticsearch.clone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Producer side of an import: takes chunks of an export from the shared queue until none is left, and puts
+ * their documents on the page queue, a page at a time. A chunk is memory mapped and inflated straight from the
+ * mapping; every page holds its sources in one buffer, like a scroll response.
+ */
+public class ChunkReader implements Callable<Long> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] TYPE = "_type".getBytes(JsonScanner.UTF8);
+    private static final byte[] ID = "_id".getBytes(JsonScanner.UTF8);
+    private static final byte[] ROUTING = "_routing".getBytes(JsonScanner.UTF8);
+
+    private final Queue<File> chunks;
+    private final int sizePage;
+    private final BlockingQueue<ScrollPage> pages;
+    private final CloneMetrics metrics;
+
+    /**
+     * @param chunks the chunks left to read, shared by the readers
+     */
+    public ChunkReader(Queue<File> chunks, int sizePage, BlockingQueue<ScrollPage> pages, CloneMetrics metrics) {
+        this.chunks = chunks;
+        this.sizePage = sizePage;
+        this.pages = pages;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the number of documents read from the chunks
+     */
+    @Override
+    public Long call() throws Exception {
+        long read = 0;
+        File chunk;
+        while ((chunk = chunks.poll()) != null) {
+            read += read(chunk);
+        }
+        return read;
+    }
+
+    private long read(File chunk) throws IOException, InterruptedException {
+        RandomAccessFile file = new RandomAccessFile(chunk, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            InputStream in = new GZIPInputStream(
+                    new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())), BUFFER_SIZE);
+            LineReader lines = new LineReader(in);
+            long read = 0;
+            while (true) {
+                long start = System.nanoTime();
+                PageBuilder page = new PageBuilder();
+                while (page.size() < sizePage && page.add(lines)) {
+                    // fills the page
+                }
+                if (page.size() == 0) {
+                    return read;
+                }
+                ScrollPage scrollPage = page.build();
+                metrics.onScroll(page.size(), page.length, System.nanoTime() - start);
+                read += page.size();
+                pages.put(scrollPage);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Documents of a page, their sources appended to a growing buffer; the documents are created at the end,
+     * once the buffer does not move anymore
+     */
+    private static class PageBuilder {
+        private final List<String[]> actions = new ArrayList<String[]>();
+        private final List<int[]> ranges = new ArrayList<int[]>();
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        private int length;
+
+        int size() {
+            return actions.size();
+        }
+
+        /**
+         * @return false at the end of the chunk
+         */
+        boolean add(LineReader lines) throws IOException {
+            int start = length;
+            if (!lines.readLine(this)) {
+                return false;
+            }
+            String[] action = parseAction(buffer, start, length - start);
+            // the source overwrites its action line
+            length = start;
+            if (!lines.readLine(this)) {
+                throw new IOException("Truncated chunk: no source for the document " + action[1]);
+            }
+            actions.add(action);
+            ranges.add(new int[]{start, length - start});
+            return true;
+        }
+
+        void append(byte[] bytes, int offset, int count) {
+            if (length + count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+            }
+            System.arraycopy(bytes, offset, buffer, length, count);
+            length += count;
+        }
+
+        ScrollPage build() {
+            List<Document> documents = new ArrayList<Document>(actions.size());
+            for (int i = 0; i < actions.size(); i++) {
+                String[] action = actions.get(i);
+                documents.add(new Document(action[0], action[1], action[2], buffer, ranges.get(i)[0], ranges.get(i)[1]));
+            }
+            ScrollPage page = new ScrollPage(null, documents, null);
+            for (Document document : documents) {
+                document.setPage(page);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * @return the _type, _id and _routing, null if none, of an index action line
+     */
+    static String[] parseAction(byte[] buffer, int offset, int length) {
+        JsonScanner json = new JsonScanner(buffer, offset, length);
+        String type = null;
+        String id = null;
+        String routing = null;
+        json.beginObject();
+        json.nextFieldName();
+        json.beginObject();
+        while (json.hasNextField()) {
+            if (json.nextFieldNameIs(TYPE)) {
+                type = json.nextString();
+            } else if (json.nextFieldNameIs(ID)) {
+                id = json.nextString();
+            } else if (json.nextFieldNameIs(ROUTING)) {
+                routing = json.nextString();
+            } else {
+                json.nextFieldName();
+                json.skipValue();
+            }
+        }
+        if (type == null || id == null) {
+            throw new RuntimeException("Invalid action line: " + new String(buffer, offset, length, JsonScanner.UTF8));
+        }
+        return new String[]{type, id, routing};
+    }
+
+    /**
+     * Reads lines without their end of line
+     */
+    private static class LineReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Appends the next line to the page
+         *
+         * @return false at the end of the stream
+         */
+        boolean readLine(PageBuilder page) throws IOException {
+            boolean read = false;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer, 0, buffer.length);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return read;
+                    }
+                }
+                read = true;
+                int end = position;
+                while (end < limit && buffer[end] != '\n') {
+                    end++;
+                }
+                page.append(buffer, position, end - position);
+                position = end;
+                if (end < limit) {
+                    position++;
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static class MappedInputStream extends InputStream {
+        private final ByteBuffer mapped;
+
+        MappedInputStream(ByteBuffer mapped) {
+            this.mapped = mapped;
+        }
+
+        @Override
+        public int read() {
+            return mapped.hasRemaining() ? mapped.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!mapped.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(len, mapped.remaining());
+            mapped.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return mapped.remaining();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.roncia.elasticsearch.clone;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and latency of a clone, recorded by the readers and writers without locking:
+ * atomic counters for documents and bytes, and HdrHistogram recorders for the scroll and bulk latencies,
+ * folded into cumulative histograms when read.
+ */
+public class CloneMetrics implements CloneMetricsMXBean {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong sourceDocs = new AtomicLong(-1);
+    private final AtomicLong alreadyIndexed = new AtomicLong();
+    private final AtomicLong docsRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong docsIndexed = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong docsRetried = new AtomicLong();
+    private final AtomicLong docsDeadLettered = new AtomicLong();
+    private final AtomicLong docsSkipped = new AtomicLong();
+    private final AtomicLong bulks = new AtomicLong();
+    private final AtomicLong bulksRejected = new AtomicLong();
+    private final Recorder scrollRecorder = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder bulkRecorder = new Recorder(SIGNIFICANT_DIGITS);
+    private final Histogram scrollLatency = new Histogram(SIGNIFICANT_DIGITS);
+    private final Histogram bulkLatency = new Histogram(SIGNIFICANT_DIGITS);
+    private volatile Queue<?> queue;
+
+    /**
+     * @param sourceDocs the documents to copy, to estimate the time left
+     * @param alreadyIndexed the documents indexed by a previous run, when resuming
+     */
+    public void setSourceDocs(long sourceDocs, long alreadyIndexed) {
+        this.sourceDocs.set(sourceDocs);
+        this.alreadyIndexed.set(alreadyIndexed);
+    }
+
+    void setQueue(Queue<?> queue) {
+        this.queue = queue;
+    }
+
+    void onScroll(int documents, int bytes, long latencyNanos) {
+        docsRead.addAndGet(documents);
+        bytesRead.addAndGet(bytes);
+        scrollRecorder.recordValue(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    void onBulk(int bytes, long latencyNanos) {
+        bulks.incrementAndGet();
+        bytesWritten.addAndGet(bytes);
+        bulkRecorder.recordValue(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    void onBulkRejected() {
+        bulksRejected.incrementAndGet();
+    }
+
+    void onIndexed(int documents) {
+        docsIndexed.addAndGet(documents);
+    }
+
+    void onRetried(int documents) {
+        docsRetried.addAndGet(documents);
+    }
+
+    void onDeadLettered(int documents) {
+        docsDeadLettered.addAndGet(documents);
+    }
+
+    void onSkipped(int documents) {
+        docsSkipped.addAndGet(documents);
+    }
+
+    @Override
+    public long getSourceDocs() {
+        return sourceDocs.get();
+    }
+
+    @Override
+    public long getDocsRead() {
+        return docsRead.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getDocsIndexed() {
+        return docsIndexed.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getDocsRetried() {
+        return docsRetried.get();
+    }
+
+    @Override
+    public long getDocsDeadLettered() {
+        return docsDeadLettered.get();
+    }
+
+    @Override
+    public long getDocsSkipped() {
+        return docsSkipped.get();
+    }
+
+    @Override
+    public long getBulks() {
+        return bulks.get();
+    }
+
+    @Override
+    public long getBulksRejected() {
+        return bulksRejected.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        Queue<?> q = queue;
+        return q == null ? 0 : q.size();
+    }
+
+    @Override
+    public double getDocsPerSecond() {
+        return docsIndexed.get() / getElapsedSeconds();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesWritten.get() / getElapsedSeconds();
+    }
+
+    @Override
+    public double getScrollLatencyP50() {
+        return percentile(scrollRecorder, scrollLatency, 50);
+    }
+
+    @Override
+    public double getScrollLatencyP99() {
+        return percentile(scrollRecorder, scrollLatency, 99);
+    }
+
+    @Override
+    public double getBulkLatencyP50() {
+        return percentile(bulkRecorder, bulkLatency, 50);
+    }
+
+    @Override
+    public double getBulkLatencyP95() {
+        return percentile(bulkRecorder, bulkLatency, 95);
+    }
+
+    @Override
+    public double getBulkLatencyP99() {
+        return percentile(bulkRecorder, bulkLatency, 99);
+    }
+
+    @Override
+    public double getBulkLatencyMax() {
+        return percentile(bulkRecorder, bulkLatency, 100);
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        long total = sourceDocs.get();
+        long done = alreadyIndexed.get() + docsIndexed.get() + docsDeadLettered.get() + docsSkipped.get();
+        double rate = getDocsPerSecond();
+        if (total < 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, total - done) / rate);
+    }
+
+    public double getElapsedSeconds() {
+        return Math.max(1, System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * @return all the metrics, in the order they are reported in the end of run summary
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("elapsedSeconds", getElapsedSeconds());
+        map.put("sourceDocs", getSourceDocs());
+        map.put("docsRead", getDocsRead());
+        map.put("bytesRead", getBytesRead());
+        map.put("docsIndexed", getDocsIndexed());
+        map.put("bytesWritten", getBytesWritten());
+        map.put("docsRetried", getDocsRetried());
+        map.put("docsDeadLettered", getDocsDeadLettered());
+        map.put("docsSkipped", getDocsSkipped());
+        map.put("bulks", getBulks());
+        map.put("bulksRejected", getBulksRejected());
+        map.put("docsPerSecond", getDocsPerSecond());
+        map.put("bytesPerSecond", getBytesPerSecond());
+        map.put("scrollLatencyMsP50", getScrollLatencyP50());
+        map.put("scrollLatencyMsP99", getScrollLatencyP99());
+        map.put("bulkLatencyMsP50", getBulkLatencyP50());
+        map.put("bulkLatencyMsP95", getBulkLatencyP95());
+        map.put("bulkLatencyMsP99", getBulkLatencyP99());
+        map.put("bulkLatencyMsMax", getBulkLatencyMax());
+        return map;
+    }
+
+    /**
+     * @return the percentile in milliseconds of all the values recorded so far
+     */
+    private static double percentile(Recorder recorder, Histogram total, double percentile) {
+        synchronized (total) {
+            total.add(recorder.getIntervalHistogram());
+            if (total.getTotalCount() == 0) {
+                return 0;
+            }
+            long micros = percentile >= 100 ? total.getMaxValue() : total.getValueAtPercentile(percentile);
+            return micros / 1000.0;
+        }
+    }
+}
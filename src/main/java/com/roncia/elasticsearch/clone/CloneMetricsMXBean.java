@@ -0,0 +1,53 @@
+package com.roncia.elasticsearch.clone;
+
+/**
+ * JMX view of the {@link CloneMetrics} of a running clone. Latencies are in milliseconds.
+ */
+public interface CloneMetricsMXBean {
+
+    long getSourceDocs();
+
+    long getDocsRead();
+
+    long getBytesRead();
+
+    long getDocsIndexed();
+
+    long getBytesWritten();
+
+    long getDocsRetried();
+
+    long getDocsDeadLettered();
+
+    /**
+     * @return the documents skipped by a transformation
+     */
+    long getDocsSkipped();
+
+    long getBulks();
+
+    long getBulksRejected();
+
+    int getQueueDepth();
+
+    double getDocsPerSecond();
+
+    double getBytesPerSecond();
+
+    double getScrollLatencyP50();
+
+    double getScrollLatencyP99();
+
+    double getBulkLatencyP50();
+
+    double getBulkLatencyP95();
+
+    double getBulkLatencyP99();
+
+    double getBulkLatencyMax();
+
+    /**
+     * @return the estimated seconds left to index all the source documents, -1 when unknown
+     */
+    long getEtaSeconds();
+}
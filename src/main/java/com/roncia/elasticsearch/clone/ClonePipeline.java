@@ -0,0 +1,563 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Producer/consumer copy of the documents: one scroll reader per slice of the source shards fills a bounded
+ * queue of pages and a pool of bulk writers drains it, re-batching the documents into bulks of adaptive size,
+ * so source reads and destination writes overlap. The documents rejected by the destination are retried by
+ * a dedicated retrier with backoff, the ones refused for good are dead lettered.
+ * The queue depth bounds the number of pages held in memory.
+ * The same pipeline exports the documents to chunk files with {@link ExportWriter}s instead of bulk writers,
+ * and imports them with {@link ChunkReader}s instead of scroll readers.
+ * The writers apply the {@link TransformPipeline} to the documents on their way.
+ * Its {@link CloneMetrics} are registered as an MBean while it runs, and logged at a fixed rate.
+ * The requests of the readers and writers go through the async client of the {@link HttpEndpoint}s and are handled
+ * in its callbacks, each writer keeping up to bulksInFlight bulks in flight: when a reader or writer fails, the others are interrupted, which aborts their requests in flight, and the pipeline waits for all of
+ * them to stop before closing the dead letters and returning.
+ */
+public class ClonePipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(ClonePipeline.class.getName());
+
+    /**
+     * Max number of rejected documents waiting for a retry
+     */
+    private static final int RETRY_QUEUE_CAPACITY = 50000;
+
+    /**
+     * Max time to wait for the readers and writers to stop once the pipeline is cancelled
+     */
+    private static final int STOP_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Interval between two checks of the writers while waiting for room on the queue for the end of data
+     */
+    private static final long END_OF_DATA_WAIT_MILLIS = 500;
+
+    /**
+     * Marker put on the queue once per writer when all the scrolls are exhausted
+     */
+    static final ScrollPage END_OF_DATA = new ScrollPage(null, Collections.<Document>emptyList(), null);
+
+    private final HttpEndpoint src;
+    private final HttpEndpoint dst;
+    private final String indexSrc;
+    private final String indexDst;
+    private final int sizePage;
+    private final int bulkWriters;
+    private final int bulksInFlight;
+    private final int queueDepth;
+    private final List<String> slicePreferences;
+    private final ScrollQuery query;
+    private final AdaptiveBatchSize batchSize;
+    private final TransformPipeline transform;
+    private final Throttle readThrottle;
+    private final Throttle writeThrottle;
+    private final int routingRefreshSeconds;
+    private final CheckpointFile checkpointFile;
+    private final DeadLetterFile deadLetters;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private final CloneMetrics metrics;
+    private final int progressIntervalSeconds;
+    private final ExportDirectory exportTo;
+    private final long chunkBytes;
+    private final ExportDirectory importFrom;
+
+    private ClonePipeline(Builder builder) {
+        if (builder.sizePage < 1 || builder.bulkWriters < 1 || builder.bulksInFlight < 1 || builder.queueDepth < 1) {
+            throw new RuntimeException("Page size, bulk writers, bulks in flight and queue depth must be positive numbers!");
+        }
+        if (builder.maxRetries < 0 || builder.retryDelayMillis < 1) {
+            throw new RuntimeException("Invalid retries: " + builder.maxRetries + " every " + builder.retryDelayMillis + " ms");
+        }
+        this.src = builder.src;
+        this.dst = builder.dst;
+        this.indexSrc = builder.indexSrc;
+        this.indexDst = builder.indexDst;
+        this.sizePage = builder.sizePage;
+        this.bulkWriters = builder.bulkWriters;
+        this.bulksInFlight = builder.bulksInFlight;
+        this.queueDepth = builder.queueDepth;
+        this.slicePreferences = builder.slicePreferences;
+        this.query = builder.query;
+        this.batchSize = builder.batchSize;
+        this.transform = builder.transform;
+        this.readThrottle = builder.readThrottle;
+        this.writeThrottle = builder.writeThrottle;
+        this.routingRefreshSeconds = builder.routingRefreshSeconds;
+        this.checkpointFile = builder.checkpointFile;
+        if ((builder.exportTo != null || builder.importFrom != null) && builder.checkpointFile != null) {
+            throw new RuntimeException("An export or import cannot be checkpointed!");
+        }
+        this.deadLetters = new DeadLetterFile(builder.deadLetterFile != null ? builder.deadLetterFile
+                : new File(builder.indexDst + "-dead-letter.ndjson"));
+        this.maxRetries = builder.maxRetries;
+        this.retryDelayMillis = builder.retryDelayMillis;
+        this.metrics = builder.metrics;
+        this.progressIntervalSeconds = builder.progressIntervalSeconds;
+        this.exportTo = builder.exportTo;
+        this.chunkBytes = builder.chunkBytes;
+        this.importFrom = builder.importFrom;
+    }
+
+    /**
+     * Copies all the documents, failing fast if any reader or writer fails: the other ones are cancelled
+     *
+     * @return the number of documents written to the destination index
+     * @throws IOException if a request to the source or destination cluster fails
+     * @throws InterruptedException if interrupted while waiting for the copy to complete
+     */
+    public long run() throws IOException, InterruptedException {
+        BlockingQueue<ScrollPage> pages = new ArrayBlockingQueue<ScrollPage>(queueDepth);
+        boolean resumed = checkpointFile != null && checkpointFile.getCheckpoint().getAcknowledgedDocs() > 0;
+        List<Callable<Long>> readerTasks = newReaders(pages);
+        int readers = readerTasks.size();
+        if (readers == 0) {
+            LOGGER.log(Level.INFO, "All the slices are already copied");
+            return 0;
+        }
+        RetryQueue retries = maxRetries > 0 && exportTo == null ? new RetryQueue(RETRY_QUEUE_CAPACITY, retryDelayMillis) : null;
+        long sourceDocs = importFrom != null ? importFrom.getManifest().getDocuments() : countSource();
+        metrics.setSourceDocs(sourceDocs, resumed ? checkpointFile.getCheckpoint().getAcknowledgedDocs() : 0);
+        metrics.setQueue(pages);
+        ObjectName mbean = registerMetrics();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        if (progressIntervalSeconds > 0) {
+            reporter.scheduleAtFixedRate(new ProgressReporter(getTarget(), metrics), progressIntervalSeconds,
+                    progressIntervalSeconds, TimeUnit.SECONDS);
+        }
+        ShardRouter router = routingRefreshSeconds > 0 && exportTo == null ? ShardRouter.create(dst, indexDst) : null;
+        if (router != null) {
+            reporter.scheduleWithFixedDelay(router, routingRefreshSeconds, routingRefreshSeconds, TimeUnit.SECONDS);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(bulkWriters + readers + 1);
+        CompletionService<Long> completion = new ExecutorCompletionService<Long>(executor);
+        try {
+            List<Future<Long>> scrolls = new ArrayList<Future<Long>>(readers);
+            for (Callable<Long> reader : readerTasks) {
+                scrolls.add(completion.submit(reader));
+            }
+            List<Future<Long>> writers = new ArrayList<Future<Long>>(bulkWriters);
+            for (int i = 0; i < bulkWriters; i++) {
+                writers.add(completion.submit(exportTo != null
+                        ? new ExportWriter(exportTo, i, pages, chunkBytes, transform, metrics)
+                        : new BulkWriter(indexDst, pages, batchSize, newSender(router), retries, transform, metrics,
+                        bulksInFlight)));
+            }
+            int tasks = readers + bulkWriters;
+            if (retries != null) {
+                completion.submit(new BulkRetrier(indexDst, retries, newSender(router), maxRetries));
+                tasks++;
+            }
+
+            long read = 0;
+            long written = 0;
+            int pendingReaders = readers;
+            int pendingWriters = bulkWriters;
+            for (int i = 0; i < tasks; i++) {
+                Future<Long> done = completion.take();
+                if (scrolls.contains(done)) {
+                    read += getResult(done);
+                    if (--pendingReaders == 0) {
+                        putEndOfData(pages, writers);
+                    }
+                } else {
+                    written += getResult(done);
+                    if (writers.contains(done) && --pendingWriters == 0 && retries != null) {
+                        retries.close();
+                    }
+                }
+            }
+            LOGGER.log(Level.INFO, "Read " + read + " documents, written " + written + " documents");
+            if (deadLetters.getCount() > 0) {
+                LOGGER.log(Level.WARNING, deadLetters.getCount() + " documents failed, see " + deadLetters.getFile());
+            }
+            if (checkpointFile != null) {
+                checkpointFile.flush();
+                LOGGER.log(Level.INFO, "Checkpoint " + checkpointFile.getFile() + ": "
+                        + checkpointFile.getCheckpoint().getAcknowledgedDocs() + " documents acknowledged");
+            }
+            if (!resumed && metrics.getSourceDocs() >= 0 && metrics.getSourceDocs() != read) {
+                LOGGER.log(Level.WARNING, "Read " + read + " documents but the source index counts "
+                        + metrics.getSourceDocs() + " documents");
+            }
+            new ProgressReporter(getTarget(), metrics).run();
+            return written;
+        } finally {
+            stop(reporter);
+            stop(executor);
+            if (checkpointFile != null) {
+                // a failed or cancelled clone keeps the progress acknowledged since the last save, to resume it
+                try {
+                    checkpointFile.flush();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Unable to save the checkpoint " + checkpointFile.getFile(), e);
+                }
+            }
+            deadLetters.close();
+            unregisterMetrics(mbean);
+        }
+    }
+
+    /**
+     * Puts the end of data once per writer, rethrowing the failure of the writers instead of waiting forever for
+     * room on a queue no writer drains anymore
+     */
+    private static void putEndOfData(BlockingQueue<ScrollPage> pages, List<Future<Long>> writers)
+            throws IOException, InterruptedException {
+        for (int w = 0; w < writers.size(); w++) {
+            while (!pages.offer(END_OF_DATA, END_OF_DATA_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                int stopped = 0;
+                for (Future<Long> writer : writers) {
+                    if (writer.isDone()) {
+                        getResult(writer);
+                        stopped++;
+                    }
+                }
+                if (stopped == writers.size()) {
+                    throw new RuntimeException("All the writers stopped before the end of the data!");
+                }
+            }
+        }
+    }
+
+    /**
+     * Interrupts the tasks still running, aborting their pending requests, and waits for them to stop
+     */
+    static void stop(ExecutorService executor) {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.log(Level.WARNING, "Readers or writers still running " + STOP_TIMEOUT_SECONDS
+                        + " seconds after being stopped");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private BulkSender newSender(ShardRouter router) {
+        return new BulkSender(dst, indexDst, batchSize, deadLetters, checkpointFile, writeThrottle, router, metrics);
+    }
+
+    /**
+     * @return the readers of the chunks when importing, otherwise the scroll readers of the slices still to copy
+     */
+    private List<Callable<Long>> newReaders(BlockingQueue<ScrollPage> pages) {
+        List<Callable<Long>> readers = new ArrayList<Callable<Long>>();
+        if (importFrom != null) {
+            Queue<File> chunks = new ConcurrentLinkedQueue<File>(importFrom.getChunkFiles());
+            int chunkReaders = Math.min(bulkWriters, chunks.size());
+            for (int i = 0; i < chunkReaders; i++) {
+                readers.add(new ChunkReader(chunks, sizePage, pages, metrics));
+            }
+            return readers;
+        }
+        String sortField = checkpointFile == null ? null : checkpointFile.getCheckpoint().getSortField();
+        for (SliceProgress slice : getPendingSlices()) {
+            readers.add(new ScrollReader(src, indexSrc, slice, sortField, query, sizePage, readThrottle, pages,
+                    metrics));
+        }
+        return readers;
+    }
+
+    /**
+     * @return the destination index, or export directory, in the logs and the MBean name
+     */
+    private String getTarget() {
+        return exportTo != null ? exportTo.getDir().getPath() : indexDst;
+    }
+
+    /**
+     * @return the progress of the slices still to copy, all of them unless resuming a checkpoint
+     */
+    private List<SliceProgress> getPendingSlices() {
+        List<SliceProgress> slices = new ArrayList<SliceProgress>();
+        if (checkpointFile == null) {
+            for (String preference : slicePreferences) {
+                slices.add(new SliceProgress(new Checkpoint.Slice(preference), null));
+            }
+            return slices;
+        }
+        for (Checkpoint.Slice slice : checkpointFile.getCheckpoint().getSlices()) {
+            if (!slice.isCompleted()) {
+                slices.add(new SliceProgress(slice, checkpointFile));
+            }
+        }
+        return slices;
+    }
+
+    /**
+     * @return the number of documents of the source index matching the query, -1 if they cannot be counted
+     */
+    private long countSource() throws IOException {
+        String path = "/" + URLEncoder.encode(indexSrc, "UTF-8") + "/_count";
+        byte[] count = query.isFiltered() ? query.toCountBody().getBytes(JsonScanner.UTF8) : null;
+        HttpEndpoint.Response response = count == null ? src.get(path)
+                : src.post(path, count, count.length, HttpEndpoint.JSON);
+        if (!response.isSucceeded()) {
+            LOGGER.log(Level.WARNING, "Unable to count the source documents: " + response.getBodyAsString());
+            return -1;
+        }
+        JsonObject result = new JsonParser().parse(response.getBodyAsString()).getAsJsonObject();
+        return result.get("count").getAsLong();
+    }
+
+    private ObjectName registerMetrics() {
+        try {
+            ObjectName name = new ObjectName(ClonePipeline.class.getPackage().getName()
+                    + ":type=CloneMetrics,index=" + ObjectName.quote(getTarget()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+            return name;
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register the clone metrics MBean", e);
+            return null;
+        }
+    }
+
+    private static void unregisterMetrics(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to unregister the clone metrics MBean", e);
+        }
+    }
+
+    private static long getResult(Future<Long> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Clone pipeline failed!", cause);
+        }
+    }
+
+    public static class Builder {
+        private final HttpEndpoint src;
+        private final HttpEndpoint dst;
+        private final String indexSrc;
+        private final String indexDst;
+        private int sizePage = 100;
+        private int bulkWriters = 4;
+        private int bulksInFlight = 2;
+        private int queueDepth = 8;
+        private List<String> slicePreferences = Collections.singletonList(null);
+        private ScrollQuery query = ScrollQuery.ALL;
+        private AdaptiveBatchSize batchSize = new AdaptiveBatchSize(512 * 1024, 16 * 1024 * 1024, 5 * 1024 * 1024,
+                10000, 2000);
+        private TransformPipeline transform = TransformPipeline.NONE;
+        private Throttle readThrottle = Throttle.NONE;
+        private Throttle writeThrottle = Throttle.NONE;
+        private int routingRefreshSeconds;
+        private CheckpointFile checkpointFile;
+        private File deadLetterFile;
+        private int maxRetries = 5;
+        private long retryDelayMillis = 500;
+        private CloneMetrics metrics = new CloneMetrics();
+        private int progressIntervalSeconds = 10;
+        private ExportDirectory exportTo;
+        private long chunkBytes;
+        private ExportDirectory importFrom;
+
+        /**
+         * @param src the source cluster, null when importing
+         * @param dst the destination cluster, null when exporting
+         * @param indexDst the destination index, null when exporting
+         */
+        public Builder(HttpEndpoint src, HttpEndpoint dst, String indexSrc, String indexDst) {
+            this.src = src;
+            this.dst = dst;
+            this.indexSrc = indexSrc;
+            this.indexDst = indexDst;
+        }
+
+        public Builder sizePage(int sizePage) {
+            this.sizePage = sizePage;
+            return this;
+        }
+
+        public Builder bulkWriters(int bulkWriters) {
+            this.bulkWriters = bulkWriters;
+            return this;
+        }
+
+        /**
+         * @param bulksInFlight the max number of bulks each writer sends without waiting for their response
+         */
+        public Builder bulksInFlight(int bulksInFlight) {
+            this.bulksInFlight = bulksInFlight;
+            return this;
+        }
+
+        public Builder queueDepth(int queueDepth) {
+            this.queueDepth = queueDepth;
+            return this;
+        }
+
+        /**
+         * @param slicePreferences one search preference per scroll slice, see {@link ShardSlices}
+         */
+        public Builder slicePreferences(List<String> slicePreferences) {
+            this.slicePreferences = slicePreferences;
+            return this;
+        }
+
+        /**
+         * @param query the source documents to copy and their fields, by default all of them
+         */
+        public Builder query(ScrollQuery query) {
+            this.query = query;
+            return this;
+        }
+
+        /**
+         * @param batchSize the bulk size controller, shared by all the writers of the destination
+         */
+        public Builder batchSize(AdaptiveBatchSize batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @param transform the transformations applied to the documents by the writers
+         */
+        public Builder transform(TransformPipeline transform) {
+            this.transform = transform;
+            return this;
+        }
+
+        /**
+         * @param readThrottle the documents and bytes per second read from the source, by all the readers, shared
+         *                     with the other pipelines of a run to limit them together, and adapted to the load of
+         *                     the source by a {@link SourceLoadMonitor} if any
+         * @param writeThrottle the documents and bytes per second written to the destination, by all the writers,
+         *                      shared with the other pipelines of a run
+         */
+        public Builder throttle(Throttle readThrottle, Throttle writeThrottle) {
+            this.readThrottle = readThrottle;
+            this.writeThrottle = writeThrottle;
+            return this;
+        }
+
+        /**
+         * @param routingRefreshSeconds the interval between two reads of the routing table of the destination index,
+         *                              to send the bulks straight to the nodes of the primaries; 0 to send them to
+         *                              the destination hosts
+         */
+        public Builder shardRouting(int routingRefreshSeconds) {
+            this.routingRefreshSeconds = routingRefreshSeconds;
+            return this;
+        }
+
+        /**
+         * @param checkpointFile the checkpoint to save the progress to, whose slices replace the slice
+         *                       preferences; when resuming, only its slices not completed yet are copied
+         */
+        public Builder checkpoint(CheckpointFile checkpointFile) {
+            this.checkpointFile = checkpointFile;
+            return this;
+        }
+
+        /**
+         * @param deadLetterFile the NDJSON file collecting the documents refused by the destination,
+         *                       by default [dstIndex]-dead-letter.ndjson
+         */
+        public Builder deadLetterFile(File deadLetterFile) {
+            this.deadLetterFile = deadLetterFile;
+            return this;
+        }
+
+        /**
+         * @param maxRetries the number of retries of a rejected document, 0 to dead letter it at once
+         * @param retryDelayMillis the delay before the first retry, doubled at every attempt
+         */
+        public Builder retries(int maxRetries, long retryDelayMillis) {
+            this.maxRetries = maxRetries;
+            this.retryDelayMillis = retryDelayMillis;
+            return this;
+        }
+
+        /**
+         * @param metrics the metrics to record the clone to, to read them once it is over
+         */
+        public Builder metrics(CloneMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param progressIntervalSeconds the interval between two progress logs, 0 to log only at the end
+         */
+        public Builder progressInterval(int progressIntervalSeconds) {
+            this.progressIntervalSeconds = progressIntervalSeconds;
+            return this;
+        }
+
+        /**
+         * @param exportTo the directory to write the documents to, instead of a destination cluster
+         * @param chunkBytes the uncompressed size of the chunk files
+         */
+        public Builder exportTo(ExportDirectory exportTo, long chunkBytes) {
+            this.exportTo = exportTo;
+            this.chunkBytes = chunkBytes;
+            return this;
+        }
+
+        /**
+         * @param importFrom the export to read the documents from, instead of a source cluster
+         */
+        public Builder importFrom(ExportDirectory importFrom) {
+            this.importFrom = importFrom;
+            return this;
+        }
+
+        public ClonePipeline build() {
+            return new ClonePipeline(this);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonPrimitive;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * NDJSON file collecting the documents the destination refused for good, one line per document with its
+ * metadata, the status and error of the refusal and the original _source, null for a delete. Created on the first
+ * failure only.
+ */
+public class DeadLetterFile {
+
+    private static final byte[] NULL = "null".getBytes(JsonScanner.UTF8);
+
+    private final File file;
+    private OutputStream out;
+    private long count;
+
+    public DeadLetterFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Appends the document, flushing it to disk before returning so it can be acknowledged
+     *
+     * @param error the raw JSON error returned by the destination
+     */
+    public void write(String index, Document document, int status, String error) throws IOException {
+        write(index, document, status, error, false);
+    }
+
+    /**
+     * Appends the failed delete of the document, with a null _source
+     *
+     * @param error the raw JSON error returned by the destination
+     */
+    public void writeDelete(String index, Document document, int status, String error) throws IOException {
+        write(index, document, status, error, true);
+    }
+
+    private synchronized void write(String index, Document document, int status, String error, boolean delete)
+            throws IOException {
+        if (out == null) {
+            out = new BufferedOutputStream(new FileOutputStream(file, true));
+        }
+        String metadata = "{\"_index\":" + quote(index) + ",\"_type\":" + quote(document.getType())
+                + ",\"_id\":" + quote(document.getId()) + ",\"status\":" + status + ",\"error\":" + error + ",\"_source\":";
+        out.write(metadata.getBytes(JsonScanner.UTF8));
+        if (delete) {
+            out.write(NULL);
+        } else {
+            out.write(document.getBuffer(), document.getSourceOffset(), document.getSourceLength());
+        }
+        out.write('}');
+        out.write('\n');
+        out.flush();
+        count++;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private static String quote(String value) {
+        return new JsonPrimitive(value).toString();
+    }
+}
@@ -0,0 +1,229 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes from the destination the documents deleted from the source since they were copied, which a delta
+ * sync cannot see. The _type and _id of every source document are scrolled without their source and kept
+ * as a sorted array of 64 bits hashes, 8 bytes per document, then the destination ids are scrolled and those
+ * whose hash is not in the array are bulk deleted.
+ * A hash collision can only leave a deleted document in place, never delete a live one.
+ * Every item of the bulk deletes is checked: the deletes rejected by an overloaded destination are retried with
+ * backoff, the ones refused for good are written to the dead letter file.
+ * When the copy transforms the documents, the source documents are read with their source and transformed
+ * the same way before being hashed, so a renamed _type or a changed _id is the one of the destination; the
+ * documents the transform skips keep their original _type and _id.
+ */
+public class DeletionReconciler {
+
+    private static final Logger LOGGER = Logger.getLogger(DeletionReconciler.class.getName());
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_DELAY_MILLIS = 500;
+
+    private final HttpEndpoint src;
+    private final String indexSrc;
+    private final ScrollQuery srcQuery;
+    private final HttpEndpoint dst;
+    private final String indexDst;
+    private final TransformPipeline transform;
+    private final int sizePage;
+    private final DeadLetterFile deadLetters;
+
+    /**
+     * @param srcQuery the source documents copied, the destination ones not matching it are deleted too
+     * @param transform the transformations applied by the copy to the documents
+     * @param deadLetters the file collecting the deletes refused by the destination
+     */
+    public DeletionReconciler(HttpEndpoint src, String indexSrc, ScrollQuery srcQuery, HttpEndpoint dst,
+                              String indexDst, TransformPipeline transform, int sizePage, DeadLetterFile deadLetters) {
+        this.src = src;
+        this.indexSrc = indexSrc;
+        this.srcQuery = srcQuery;
+        this.dst = dst;
+        this.indexDst = indexDst;
+        this.transform = transform;
+        this.sizePage = sizePage;
+        this.deadLetters = deadLetters;
+    }
+
+    /**
+     * @return the number of documents deleted from the destination
+     * @throws IOException if a scroll or a bulk fails
+     * @throws InterruptedException if interrupted while waiting to retry rejected deletes
+     */
+    public long reconcile() throws IOException, InterruptedException {
+        long[] srcIds = readSourceIds();
+        LOGGER.log(Level.INFO, "Read " + srcIds.length + " ids from " + indexSrc);
+        BulkBody body = new BulkBody(sizePage * 64);
+        List<Document> pending = new ArrayList<Document>();
+        long deleted = 0;
+        long checked = 0;
+        Scroll scroll = newIdScroll(dst, indexDst, null);
+        try {
+            List<Document> documents;
+            while (!(documents = scroll.next()).isEmpty()) {
+                for (Document document : documents) {
+                    if (Arrays.binarySearch(srcIds, hash(document)) < 0) {
+                        body.appendDelete(document);
+                        pending.add(document);
+                    }
+                }
+                checked += documents.size();
+                if (pending.size() >= sizePage) {
+                    deleted += delete(body, pending);
+                    pending = new ArrayList<Document>();
+                }
+            }
+        } finally {
+            scroll.close();
+        }
+        if (!pending.isEmpty()) {
+            deleted += delete(body, pending);
+        }
+        LOGGER.log(Level.INFO, "Checked " + checked + " ids of " + indexDst + ", deleted " + deleted + " documents");
+        return deleted;
+    }
+
+    private long[] readSourceIds() throws IOException {
+        long[] ids = new long[Math.max(sizePage, 1024)];
+        int count = 0;
+        CloneMetrics metrics = new CloneMetrics();
+        Scroll scroll = transform.isEmpty() ? newIdScroll(src, indexSrc, srcQuery.toQuery())
+                : new Scroll(src, indexSrc, null, srcQuery.toSearchBody(sizePage, null, null), sizePage, true);
+        try {
+            List<Document> documents;
+            while (!(documents = scroll.next()).isEmpty()) {
+                if (count + documents.size() > ids.length) {
+                    ids = Arrays.copyOf(ids, Math.max(ids.length * 2, count + documents.size()));
+                }
+                for (Document document : documents) {
+                    Document transformed = transform.isEmpty() ? document : transform.apply(document, metrics);
+                    ids[count++] = hash(transformed != null ? transformed : document);
+                }
+            }
+        } finally {
+            scroll.close();
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Sends the deletes, retrying with backoff the ones rejected by an overloaded destination, and dead lettering
+     * the ones refused for good
+     *
+     * @return the number of documents deleted, the ones already missing on the destination not counted
+     */
+    private long delete(BulkBody body, List<Document> documents) throws IOException, InterruptedException {
+        long deleted = 0;
+        List<Document> pending = documents;
+        for (int attempt = 0; ; attempt++) {
+            List<Document> rejected = new ArrayList<Document>();
+            deleted += send(body, pending, rejected);
+            if (rejected.isEmpty()) {
+                return deleted;
+            }
+            if (attempt == MAX_RETRIES) {
+                String error = new JsonPrimitive("rejected " + (MAX_RETRIES + 1) + " times").toString();
+                for (Document document : rejected) {
+                    deadLetters.writeDelete(indexDst, document, 429, error);
+                }
+                LOGGER.log(Level.WARNING, rejected.size() + " deletes still rejected, written to " + deadLetters.getFile());
+                return deleted;
+            }
+            LOGGER.log(Level.WARNING, rejected.size() + " deletes rejected, retrying them");
+            TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS << attempt);
+            for (Document document : rejected) {
+                body.appendDelete(document);
+            }
+            pending = rejected;
+        }
+    }
+
+    /**
+     * @param rejected the documents to retry, rejected by an overloaded destination
+     * @return the number of documents deleted
+     */
+    private long send(BulkBody body, List<Document> documents, List<Document> rejected) throws IOException {
+        HttpEndpoint.Response response = dst.post("/" + URLEncoder.encode(indexDst, "UTF-8") + "/_bulk",
+                body.getBuffer(), body.size(), HttpEndpoint.NDJSON);
+        body.reset();
+        if (response.getStatus() == 429 || response.getStatus() == 503) {
+            rejected.addAll(documents);
+            return 0;
+        }
+        if (!response.isSucceeded()) {
+            throw new IOException("Bulk delete failed with status " + response.getStatus() + ": "
+                    + response.getBodyAsString());
+        }
+        JsonArray items = new JsonParser().parse(new InputStreamReader(new ByteArrayInputStream(response.getBody(), 0,
+                response.getLength()), JsonScanner.UTF8)).getAsJsonObject().get("items").getAsJsonArray();
+        if (items.size() != documents.size()) {
+            throw new IOException("Bulk delete returned " + items.size() + " items for " + documents.size() + " documents!");
+        }
+        long deleted = 0;
+        int failed = 0;
+        for (int i = 0; i < documents.size(); i++) {
+            JsonObject result = BulkSender.getResult(items.get(i).getAsJsonObject());
+            int status = result.has("status") ? result.get("status").getAsInt() : 500;
+            String error = result.has("error") ? result.get("error").toString() : null;
+            if (status / 100 == 2 && error == null) {
+                deleted++;
+            } else if (status == 404 && error == null) {
+                // already missing on the destination
+                continue;
+            } else if (status == 429 || status == 503 || (error != null && BulkSender.isRejection(error))) {
+                rejected.add(documents.get(i));
+            } else {
+                deadLetters.writeDelete(indexDst, documents.get(i), status, error == null ? "null" : error);
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            LOGGER.log(Level.WARNING, failed + " deletes failed, written to " + deadLetters.getFile());
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the FNV-1a hash of the _type and _id of the document
+     */
+    static long hash(Document document) {
+        long hash = FNV_OFFSET;
+        hash = hash(hash, document.getType());
+        hash = (hash ^ 0xffff) * FNV_PRIME;
+        return hash(hash, document.getId());
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private Scroll newIdScroll(HttpEndpoint endpoint, String index, String query) {
+        String body = "{\"size\": " + sizePage + ", \"_source\": false"
+                + (query == null ? "" : ", \"query\": " + query) + "}";
+        return new Scroll(endpoint, index, null, body, sizePage, false);
+    }
+}
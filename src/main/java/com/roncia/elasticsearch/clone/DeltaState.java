@@ -0,0 +1,101 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * High-water mark of a delta sync, saved as JSON between two runs: the greatest value of the delta field
+ * copied to the destination, as a JSON value, plus the counters of the last run.
+ * The next run copies only the documents whose delta field is greater.
+ */
+public class DeltaState {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+
+    private String srcIndex;
+    private String dstIndex;
+    private String field;
+    private String highWaterMark;
+    private long syncedAt;
+    private long copiedDocs;
+    private long deletedDocs;
+
+    DeltaState() {
+    }
+
+    public DeltaState(String srcIndex, String dstIndex, String field, String highWaterMark, long copiedDocs,
+                      long deletedDocs) {
+        this.srcIndex = srcIndex;
+        this.dstIndex = dstIndex;
+        this.field = field;
+        this.highWaterMark = highWaterMark;
+        this.syncedAt = System.currentTimeMillis();
+        this.copiedDocs = copiedDocs;
+        this.deletedDocs = deletedDocs;
+    }
+
+    public static DeltaState load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), JsonScanner.UTF8);
+        try {
+            return GSON.fromJson(reader, DeltaState.class);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replaces the file atomically, so a crash never loses the previous high-water mark
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), JsonScanner.UTF8);
+        try {
+            GSON.toJson(this, writer);
+        } finally {
+            writer.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String getSrcIndex() {
+        return srcIndex;
+    }
+
+    public String getDstIndex() {
+        return dstIndex;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the greatest delta field value copied, as JSON, e.g. 1445385600000 for a date
+     */
+    public String getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getSyncedAt() {
+        return syncedAt;
+    }
+
+    public long getCopiedDocs() {
+        return copiedDocs;
+    }
+
+    public long getDeletedDocs() {
+        return deletedDocs;
+    }
+}
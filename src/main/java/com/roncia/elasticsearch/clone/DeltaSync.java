@@ -0,0 +1,125 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queries of a delta sync, which copies only the documents modified since the previous run according to a
+ * timestamp, or any increasing, field.
+ * The high-water mark is read as the first sort value of the source sorted descending on the field, so a
+ * date is the exact epoch milliseconds rather than the rounded double of a max aggregation.
+ * The source is refreshed first, and the mark is read from the documents matching the query of the sync only.
+ * The next run can start an overlap before the mark: a document written with a value below the mark after it was
+ * read, or later in the same millisecond, is copied by the next run anyway.
+ * Copying a document again updates it in place by _id.
+ */
+public class DeltaSync {
+
+    /**
+     * Sort values of a document without the field, depending on its type
+     */
+    private static final List<String> MISSING_VALUES = Arrays.asList("null",
+            String.valueOf(Long.MIN_VALUE), "\"" + Long.MIN_VALUE + "\"", "-Infinity");
+
+    private DeltaSync() {
+    }
+
+    /**
+     * @param query the documents synced, the mark being read from them only
+     * @return the greatest value of the field in the documents of the source index, as JSON, or null if no
+     * document has it
+     * @throws IOException if the source cannot be searched
+     */
+    public static String readHighWaterMark(HttpEndpoint src, String indexSrc, String field, ScrollQuery query)
+            throws IOException {
+        String index = URLEncoder.encode(indexSrc, "UTF-8");
+        HttpEndpoint.Response refresh = src.post("/" + index + "/_refresh", new byte[0], 0, HttpEndpoint.JSON);
+        if (!refresh.isSucceeded()) {
+            throw new IOException("Unable to refresh " + indexSrc + ": " + refresh.getBodyAsString());
+        }
+        byte[] search = ("{\"size\": 1, \"_source\": false"
+                + (query.toQuery() == null ? "" : ", \"query\": " + query.toQuery())
+                + ", \"sort\": [{" + json(field) + ": {\"order\": \"desc\", \"missing\": \"_last\"}}]}")
+                .getBytes(JsonScanner.UTF8);
+        HttpEndpoint.Response response = src.post("/" + index + "/_search", search, search.length, HttpEndpoint.JSON);
+        if (!response.isSucceeded()) {
+            throw new IOException("Unable to read the high-water mark of " + field + ": " + response.getBodyAsString());
+        }
+        String mark = ScrollResponseParser.parse(response.getBody(), response.getLength(), false).getLastSortValue();
+        // sorted last, a document without the field only comes first when none has it
+        return mark == null || MISSING_VALUES.contains(mark) ? null : mark;
+    }
+
+    /**
+     * @return true if the field is mapped as a date in any type of the source index
+     * @throws IOException if the mapping cannot be read
+     */
+    public static boolean isDate(HttpEndpoint src, String indexSrc, String field) throws IOException {
+        HttpEndpoint.Response response = src.get("/" + URLEncoder.encode(indexSrc, "UTF-8") + "/_mapping/field/"
+                + URLEncoder.encode(field, "UTF-8"));
+        if (!response.isSucceeded()) {
+            throw new IOException("Unable to read the mapping of " + field + ": " + response.getBodyAsString());
+        }
+        return isDate(new JsonParser().parse(response.getBodyAsString()));
+    }
+
+    /**
+     * @param mapping the response of _mapping/field, index, then mappings and type up to 6.x, then field
+     */
+    static boolean isDate(JsonElement mapping) {
+        if (!mapping.isJsonObject()) {
+            return false;
+        }
+        for (Map.Entry<String, JsonElement> entry : mapping.getAsJsonObject().entrySet()) {
+            if ("mapping".equals(entry.getKey()) && entry.getValue().isJsonObject()) {
+                for (Map.Entry<String, JsonElement> leaf : entry.getValue().getAsJsonObject().entrySet()) {
+                    JsonElement type = leaf.getValue().getAsJsonObject().get("type");
+                    if (type != null && "date".equals(type.getAsString())) {
+                        return true;
+                    }
+                }
+            } else if (isDate(entry.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param from the start of this run, inclusive, see {@link #overlap(String, long)}
+     * @param upTo the high-water mark of this run, inclusive, so that documents modified during the copy are
+     *             left to the next run
+     * @return the range query of the documents to copy
+     */
+    public static String rangeQuery(String field, String from, String upTo) {
+        return "{\"range\": {" + json(field) + ": {\"gte\": " + from + ", \"lte\": " + upTo + "}}}";
+    }
+
+    /**
+     * @param mark the high-water mark of the previous run
+     * @param overlap the amount, in the unit of the field, the run starts before the previous mark
+     * @return the start of the run, the mark itself when it is not a number
+     */
+    public static String overlap(String mark, long overlap) {
+        try {
+            return String.valueOf(Long.parseLong(mark) - overlap);
+        } catch (NumberFormatException e) {
+            try {
+                return String.valueOf(Double.parseDouble(mark) - overlap);
+            } catch (NumberFormatException notNumber) {
+                return mark;
+            }
+        }
+    }
+
+    private static String json(String value) {
+        return new JsonPrimitive(value).toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.roncia.elasticsearch.clone;
+
+/**
+ * A document read from the source index, ready to be indexed on the destination.
+ * The source is not copied: it is the byte range of the _source object in the scroll response it was read from.
+ */
+public class Document {
+
+    /**
+     * Approximate size of the bulk action line written before each source
+     */
+    private static final int ACTION_OVERHEAD = 64;
+
+    private final String type;
+    private final String id;
+    private final String routing;
+    private final byte[] buffer;
+    private final int sourceOffset;
+    private final int sourceLength;
+    private ScrollPage page;
+
+    public Document(String type, String id, byte[] buffer, int sourceOffset, int sourceLength) {
+        this(type, id, null, buffer, sourceOffset, sourceLength);
+    }
+
+    /**
+     * @param routing the custom _routing of the document, or null when routed by its _id
+     */
+    public Document(String type, String id, String routing, byte[] buffer, int sourceOffset, int sourceLength) {
+        this.type = type;
+        this.id = id;
+        this.routing = routing;
+        this.buffer = buffer;
+        this.sourceOffset = sourceOffset;
+        this.sourceLength = sourceLength;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the custom _routing of the document, or null when routed by its _id
+     */
+    public String getRouting() {
+        return routing;
+    }
+
+    /**
+     * @return the buffer holding the _source, starting at {@link #getSourceOffset()}
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getSourceOffset() {
+        return sourceOffset;
+    }
+
+    public int getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * @return the scroll page this document was read from, to acknowledge it once indexed
+     */
+    public ScrollPage getPage() {
+        return page;
+    }
+
+    void setPage(ScrollPage page) {
+        this.page = page;
+    }
+
+    /**
+     * @return the _source decoded as a String, only meant for logging and tests
+     */
+    public String getSource() {
+        return new String(buffer, sourceOffset, sourceLength, JsonScanner.UTF8);
+    }
+
+    /**
+     * @return the approximate number of bytes this document adds to a bulk request
+     */
+    public int getBulkSize() {
+        return ACTION_OVERHEAD + type.length() + id.length() + (routing == null ? 0 : routing.length()) + sourceLength;
+    }
+}
@@ -0,0 +1,18 @@
+package com.roncia.elasticsearch.clone;
+
+/**
+ * Transformation of the documents between the source and the destination, applied by the writers, so on
+ * several threads at once: implementations must be thread safe, and should prepare everything they can
+ * when created rather than for every document.
+ * A custom transformation is declared as class:[name] in a -transform spec, and needs a public no-arg
+ * constructor.
+ */
+public interface DocumentTransform {
+
+    /**
+     * @param document the document read from the source, its _source being the byte range of its buffer
+     * @return the same document if unchanged, a new {@link Document} with another type, id or source,
+     * or null to skip the document
+     */
+    Document transform(Document document);
+}
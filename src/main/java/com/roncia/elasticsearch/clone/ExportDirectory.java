@@ -0,0 +1,115 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Directory of an export: the gzipped NDJSON chunks written by the {@link ExportWriter}s and the
+ * {@link ExportManifest} listing them, written last so that an export without manifest is known to be incomplete.
+ */
+public class ExportDirectory {
+
+    public static final String MANIFEST = "manifest.json";
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final File dir;
+    private final ExportManifest manifest;
+
+    private ExportDirectory(File dir, ExportManifest manifest) {
+        this.dir = dir;
+        this.manifest = manifest;
+    }
+
+    /**
+     * @param manifest the manifest of the export, without chunks yet
+     * @return the directory to export to, created if needed
+     */
+    public static ExportDirectory create(File dir, ExportManifest manifest) {
+        if (new File(dir, MANIFEST).exists()) {
+            throw new RuntimeException("The directory " + dir + " already holds an export. Impossible to continue!");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("Unable to create the directory " + dir + ". Impossible to continue!");
+        }
+        return new ExportDirectory(dir, manifest);
+    }
+
+    /**
+     * @return the export of the directory, read from its manifest
+     */
+    public static ExportDirectory open(File dir) throws IOException {
+        File file = new File(dir, MANIFEST);
+        if (!file.exists()) {
+            throw new RuntimeException("No " + MANIFEST + " in " + dir + ", the export is missing or incomplete. "
+                    + "Impossible to continue!");
+        }
+        Reader reader = new InputStreamReader(new FileInputStream(file), JsonScanner.UTF8);
+        try {
+            return new ExportDirectory(dir, GSON.fromJson(reader, ExportManifest.class));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public ExportManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return the file of a new chunk of a writer
+     */
+    File newChunk(int writer, int sequence) {
+        return new File(dir, String.format("chunk-%02d-%05d.ndjson.gz", writer, sequence));
+    }
+
+    synchronized void addChunk(File chunk, long documents, long bytes) {
+        manifest.addChunk(new ExportManifest.Chunk(chunk.getName(), documents, bytes));
+    }
+
+    /**
+     * @return the chunk files, the largest first
+     */
+    List<File> getChunkFiles() {
+        List<ExportManifest.Chunk> chunks = new ArrayList<ExportManifest.Chunk>(manifest.getChunks());
+        Collections.sort(chunks, new Comparator<ExportManifest.Chunk>() {
+            @Override
+            public int compare(ExportManifest.Chunk a, ExportManifest.Chunk b) {
+                return a.getBytes() == b.getBytes() ? 0 : a.getBytes() > b.getBytes() ? -1 : 1;
+            }
+        });
+        List<File> files = new ArrayList<File>();
+        for (ExportManifest.Chunk chunk : chunks) {
+            files.add(new File(dir, chunk.getFile()));
+        }
+        return files;
+    }
+
+    /**
+     * Writes the manifest, which completes the export
+     */
+    public synchronized void writeManifest() throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, MANIFEST)), JsonScanner.UTF8);
+        try {
+            GSON.toJson(manifest, writer);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonElement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Description of an export, saved as JSON next to its chunks: the settings and mappings of the exported index
+ * and the chunks holding its documents
+ */
+public class ExportManifest {
+
+    private String srcIndex;
+    private JsonElement settings;
+    private JsonElement mappings;
+    private long documents;
+    private List<Chunk> chunks = new ArrayList<Chunk>();
+
+    public ExportManifest(String srcIndex, JsonElement settings, JsonElement mappings) {
+        this.srcIndex = srcIndex;
+        this.settings = settings;
+        this.mappings = mappings;
+    }
+
+    public String getSrcIndex() {
+        return srcIndex;
+    }
+
+    /**
+     * @return the settings of the exported index, as returned by the get settings api for the index
+     */
+    public JsonElement getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the mappings of the exported index by type
+     */
+    public JsonElement getMappings() {
+        return mappings;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    void addChunk(Chunk chunk) {
+        chunks.add(chunk);
+        documents += chunk.documents;
+    }
+
+    /**
+     * A gzipped NDJSON file of index actions without _index, each followed by its source
+     */
+    public static class Chunk {
+        private String file;
+        private long documents;
+        private long bytes;
+
+        public Chunk(String file, long documents, long bytes) {
+            this.file = file;
+            this.documents = documents;
+            this.bytes = bytes;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return the size of the uncompressed chunk
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.roncia.elasticsearch.clone;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Consumer side of an export: takes pages of documents from the queue and appends them to its own chunk files,
+ * in the _bulk format without _index so that they can be loaded in any index, gzipped.
+ * A new chunk is started when the current one reaches the chunk size, uncompressed.
+ * The documents are exported transformed.
+ */
+public class ExportWriter implements Callable<Long> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ExportDirectory export;
+    private final int writer;
+    private final BlockingQueue<ScrollPage> pages;
+    private final long chunkBytes;
+    private final CloneMetrics metrics;
+    private final TransformPipeline transform;
+    private final BulkBody body = new BulkBody(1024 * 1024);
+    private OutputStream out;
+    private File chunk;
+    private int sequence;
+    private long chunkDocuments;
+    private long chunkSize;
+    private long written;
+
+    /**
+     * @param writer the number of the writer, naming its chunks
+     * @param chunkBytes the uncompressed size of a chunk
+     */
+    public ExportWriter(ExportDirectory export, int writer, BlockingQueue<ScrollPage> pages, long chunkBytes,
+                        TransformPipeline transform, CloneMetrics metrics) {
+        this.export = export;
+        this.writer = writer;
+        this.pages = pages;
+        this.chunkBytes = chunkBytes;
+        this.metrics = metrics;
+        this.transform = transform;
+    }
+
+    /**
+     * @return the number of documents exported
+     */
+    @Override
+    public Long call() throws Exception {
+        try {
+            while (true) {
+                ScrollPage page = pages.take();
+                if (page == ClonePipeline.END_OF_DATA) {
+                    closeChunk();
+                    return written;
+                }
+                write(page);
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private void write(ScrollPage page) throws IOException {
+        long start = System.nanoTime();
+        body.reset();
+        int documents = 0;
+        for (Document source : page.getDocuments()) {
+            Document document = transform.apply(source, metrics);
+            if (document != null) {
+                body.appendIndex(null, document);
+                documents++;
+            }
+        }
+        if (out == null) {
+            chunk = export.newChunk(writer, sequence++);
+            out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(chunk), BUFFER_SIZE), BUFFER_SIZE);
+        }
+        body.writeTo(out);
+        chunkDocuments += documents;
+        chunkSize += body.size();
+        written += documents;
+        page.acknowledge(documents);
+        metrics.onBulk(body.size(), System.nanoTime() - start);
+        metrics.onIndexed(documents);
+        if (chunkSize >= chunkBytes) {
+            closeChunk();
+        }
+    }
+
+    private void closeChunk() throws IOException {
+        if (out == null) {
+            return;
+        }
+        out.close();
+        out = null;
+        export.addChunk(chunk, chunkDocuments, chunkSize);
+        chunkDocuments = 0;
+        chunkSize = 0;
+    }
+}
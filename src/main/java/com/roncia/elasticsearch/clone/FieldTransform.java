@@ -0,0 +1,235 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The built-in transformations, compiled into one tree of field rules applied in a single streaming pass
+ * over the _source: include, exclude, rename and redact fields by dotted path, plus rename types.
+ * The field names are compared as raw bytes while scanning the source with a {@link JsonScanner}, the values
+ * without rule are copied byte for byte, so a document costs one buffer copy and no parsing into objects.
+ * The rules below a field apply to the objects of an array as well. All the paths are names of the source.
+ */
+public class FieldTransform implements DocumentTransform {
+
+    private static final byte[] NULL = "null".getBytes(JsonScanner.UTF8);
+
+    private final Rule root;
+    private final Map<String, String> types;
+    private final ThreadLocal<Output> output = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    private FieldTransform(Builder builder) {
+        this.root = builder.root.compile();
+        this.types = new HashMap<String, String>(builder.types);
+    }
+
+    @Override
+    public Document transform(Document document) {
+        String type = types.containsKey(document.getType()) ? types.get(document.getType()) : document.getType();
+        if (root.names.length == 0) {
+            return type.equals(document.getType()) ? document : new Document(type, document.getId(),
+                    document.getRouting(), document.getBuffer(), document.getSourceOffset(), document.getSourceLength());
+        }
+        Output out = output.get();
+        out.reset();
+        JsonScanner json = new JsonScanner(document.getBuffer(), document.getSourceOffset(), document.getSourceLength());
+        rewrite(json, document.getBuffer(), root, out);
+        return new Document(type, document.getId(), document.getRouting(), Arrays.copyOf(out.buffer(), out.size()), 0,
+                out.size());
+    }
+
+    private static void rewrite(JsonScanner json, byte[] buf, Rule rule, Output out) {
+        byte next = json.peek();
+        if (next == '{') {
+            rewriteObject(json, buf, rule, out);
+        } else if (next == '[') {
+            json.beginArray();
+            out.write('[');
+            boolean first = true;
+            while (json.hasNextElement()) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                rewrite(json, buf, rule, out);
+            }
+            out.write(']');
+        } else {
+            copyValue(json, buf, out);
+        }
+    }
+
+    private static void rewriteObject(JsonScanner json, byte[] buf, Rule rule, Output out) {
+        json.beginObject();
+        out.write('{');
+        boolean first = true;
+        while (json.hasNextField()) {
+            int nameStart = json.position();
+            int index = json.nextFieldNameIndex(rule.names);
+            Rule field = index < 0 ? null : rule.children[index];
+            if (field == null ? rule.includesOnly : field.exclude || (rule.includesOnly && !field.included)) {
+                json.skipValue();
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            if (field == null) {
+                json.skipValue();
+                out.write(buf, nameStart, json.offset() - nameStart);
+                continue;
+            }
+            if (field.renameTo != null) {
+                out.write(field.renameTo, 0, field.renameTo.length);
+                out.write(':');
+            } else {
+                out.write(buf, nameStart, json.position() - nameStart);
+            }
+            if (field.redact) {
+                json.skipValue();
+                out.write(NULL, 0, NULL.length);
+            } else if (field.names.length > 0) {
+                rewrite(json, buf, field, out);
+            } else {
+                copyValue(json, buf, out);
+            }
+        }
+        out.write('}');
+    }
+
+    private static void copyValue(JsonScanner json, byte[] buf, Output out) {
+        int start = json.position();
+        json.skipValue();
+        out.write(buf, start, json.offset() - start);
+    }
+
+    /**
+     * Rules of a field, and of its sub fields by name
+     */
+    private static final class Rule {
+        private final Map<String, Rule> fields = new LinkedHashMap<String, Rule>();
+        private byte[][] names;
+        private Rule[] children;
+        private boolean exclude;
+        private boolean redact;
+        private boolean included;
+        private boolean includeAll;
+        private boolean includesOnly;
+        private byte[] renameTo;
+
+        private Rule field(String name) {
+            if (!fields.containsKey(name)) {
+                fields.put(name, new Rule());
+            }
+            return fields.get(name);
+        }
+
+        private Rule compile() {
+            names = new byte[fields.size()][];
+            children = new Rule[fields.size()];
+            int i = 0;
+            for (Map.Entry<String, Rule> field : fields.entrySet()) {
+                names[i] = field.getKey().getBytes(JsonScanner.UTF8);
+                children[i] = field.getValue().compile();
+                includesOnly |= children[i].included;
+                i++;
+            }
+            includesOnly &= !includeAll;
+            return this;
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+        private Output() {
+            super(4096);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+
+    public static class Builder {
+        private final Rule root = new Rule();
+        private final Map<String, String> types = new HashMap<String, String>();
+
+        /**
+         * Keeps only the included fields, and their parents, once a field is included
+         */
+        public Builder include(String path) {
+            Rule rule = root;
+            for (String name : split(path)) {
+                rule = rule.field(name);
+                rule.included = true;
+            }
+            rule.includeAll = true;
+            return this;
+        }
+
+        public Builder exclude(String path) {
+            rule(path).exclude = true;
+            return this;
+        }
+
+        /**
+         * @param name the new name of the field, in the same object
+         */
+        public Builder rename(String path, String name) {
+            if (name.isEmpty() || name.contains(".")) {
+                throw new RuntimeException("Invalid new name " + name + " of " + path + ", it must be a plain field name!");
+            }
+            rule(path).renameTo = new JsonPrimitive(name).toString().getBytes(JsonScanner.UTF8);
+            return this;
+        }
+
+        /**
+         * Replaces the value of the field by null, which fits any mapping
+         */
+        public Builder redact(String path) {
+            rule(path).redact = true;
+            return this;
+        }
+
+        public Builder renameType(String type, String newType) {
+            types.put(type, newType);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return root.fields.isEmpty() && types.isEmpty();
+        }
+
+        public FieldTransform build() {
+            return new FieldTransform(this);
+        }
+
+        private Rule rule(String path) {
+            Rule rule = root;
+            for (String name : split(path)) {
+                rule = rule.field(name);
+            }
+            return rule;
+        }
+
+        private static String[] split(String path) {
+            String[] names = path.trim().split("\\.");
+            for (String name : names) {
+                if (name.isEmpty()) {
+                    throw new RuntimeException("Invalid field path " + path + "!");
+                }
+            }
+            return names;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.roncia.elasticsearch.clone;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Raw REST access to a cluster, for the requests of the copy path whose bodies are handled as bytes
+ * instead of going through Jest and Gson. Uses the async http client of the Jest client of the same cluster:
+ * the blocking calls wait on the future of the request, and a request whose caller is interrupted is aborted at
+ * once, so cancelling a clone does not wait for its pending scrolls and bulks.
+ * Requests are sent round robin to the nodes of the cluster, moving to the next node when the connection is
+ * refused, and their bodies can be gzipped; gzipped responses are decompressed.
+ */
+public class HttpEndpoint {
+
+    static final ContentType JSON = ContentType.create("application/json", JsonScanner.UTF8);
+    static final ContentType NDJSON = ContentType.create("application/x-ndjson", JsonScanner.UTF8);
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final List<String> servers;
+    private final boolean gzipRequests;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param httpClient the started async http client of the Jest client of the cluster
+     * @param server the base url of the cluster, e.g. http://localhost:9200
+     */
+    public HttpEndpoint(CloseableHttpAsyncClient httpClient, String server) {
+        this(httpClient, Collections.singletonList(server), false);
+    }
+
+    /**
+     * @param httpClient the started async http client of the Jest client of the cluster
+     * @param servers the base urls of the nodes of the cluster, e.g. http://node1:9200
+     * @param gzipRequests true to gzip the request bodies
+     */
+    public HttpEndpoint(CloseableHttpAsyncClient httpClient, List<String> servers, boolean gzipRequests) {
+        if (servers.isEmpty()) {
+            throw new RuntimeException("No server for the http endpoint!");
+        }
+        this.httpClient = httpClient;
+        this.servers = new ArrayList<String>(servers.size());
+        for (String server : servers) {
+            this.servers.add(server.endsWith("/") ? server.substring(0, server.length() - 1) : server);
+        }
+        this.gzipRequests = gzipRequests;
+    }
+
+    /**
+     * @param address the host:port of a node of the cluster, as published in its http info
+     * @return an endpoint sending all the requests to that node, with the scheme and http client of this one
+     */
+    public HttpEndpoint forNode(String address) {
+        String server = servers.get(0);
+        String scheme = server.contains("://") ? server.substring(0, server.indexOf("://") + 3) : "http://";
+        return new HttpEndpoint(httpClient, Collections.singletonList(scheme + address), gzipRequests);
+    }
+
+    /**
+     * @throws InterruptedIOException if interrupted while waiting for the response, the request being aborted
+     */
+    public Response get(String path) throws IOException {
+        return await(getAsync(path));
+    }
+
+    /**
+     * @throws InterruptedIOException if interrupted while waiting for the response, the request being aborted
+     */
+    public Response post(String path, byte[] body, int length, ContentType contentType) throws IOException {
+        return await(postAsync(path, body, length, contentType));
+    }
+
+    /**
+     * @return the response to come, cancelling it aborts the request
+     */
+    public Future<Response> getAsync(String path) {
+        return getAsync(path, null);
+    }
+
+    /**
+     * @param callback notified on the io threads of the client once the response is read, or null
+     * @return the response to come, cancelling it aborts the request
+     */
+    public Future<Response> getAsync(final String path, FutureCallback<Response> callback) {
+        return execute(callback, new Request() {
+            @Override
+            public HttpRequestBase create(String server) {
+                return new HttpGet(server + path);
+            }
+        });
+    }
+
+    /**
+     * @return the response to come, cancelling it aborts the request
+     */
+    public Future<Response> deleteAsync(final String path) {
+        return execute(null, new Request() {
+            @Override
+            public HttpRequestBase create(String server) {
+                return new HttpDelete(server + path);
+            }
+        });
+    }
+
+    /**
+     * @return the response to come, cancelling it aborts the request
+     */
+    public Future<Response> postAsync(String path, byte[] body, int length, ContentType contentType) {
+        return postAsync(path, body, length, contentType, null);
+    }
+
+    /**
+     * @param body the body, sent without being copied: it must not change until the response
+     * @param callback notified on the io threads of the client once the response is read, or null
+     * @return the response to come, cancelling it aborts the request
+     */
+    public Future<Response> postAsync(final String path, byte[] body, int length, final ContentType contentType,
+                                      FutureCallback<Response> callback) {
+        final byte[] content;
+        final int contentLength;
+        if (gzipRequests) {
+            content = gzip(body, length);
+            contentLength = content.length;
+        } else {
+            content = body;
+            contentLength = length;
+        }
+        return execute(callback, new Request() {
+            @Override
+            public HttpRequestBase create(String server) {
+                HttpPost post = new HttpPost(server + path);
+                post.setEntity(new NByteArrayEntity(content, 0, contentLength, contentType));
+                if (gzipRequests) {
+                    post.setHeader("Content-Encoding", "gzip");
+                }
+                return post;
+            }
+        });
+    }
+
+    /**
+     * Waits for a response, aborting the request if interrupted
+     */
+    public static <T> T await(Future<T> response) throws IOException {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request aborted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Sends the request to the next node, or to the following ones if the connection is refused: such a request
+     * never reached a node, so it can be sent again whatever it does
+     */
+    private Future<Response> execute(FutureCallback<Response> callback, final Request request) {
+        final int first = next.getAndIncrement();
+        final Failover response = new Failover(callback);
+        response.send(request, first, 0);
+        return response;
+    }
+
+    /**
+     * The response of the request to the current node, moving to the next node when the connection is refused
+     */
+    private class Failover extends BasicFuture<Response> {
+        private volatile Future<Response> attempt;
+
+        Failover(FutureCallback<Response> callback) {
+            super(callback);
+        }
+
+        void send(final Request request, final int first, final int i) {
+            String server = servers.get(((first + i) % servers.size() + servers.size()) % servers.size());
+            HttpRequestBase httpRequest = request.create(server);
+            httpRequest.setHeader("Accept-Encoding", "gzip");
+            attempt = httpClient.execute(HttpAsyncMethods.create(httpRequest), new ResponseConsumer(),
+                    new FutureCallback<Response>() {
+                        @Override
+                        public void completed(Response result) {
+                            Failover.this.completed(result);
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            if (e instanceof ConnectException && i < servers.size() - 1 && !isCancelled()) {
+                                send(request, first, i + 1);
+                            } else {
+                                Failover.this.failed(e);
+                            }
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            Failover.this.cancel();
+                        }
+                    });
+            if (isCancelled()) {
+                // cancelled while moving to the next node
+                attempt.cancel(true);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<Response> current = attempt;
+            if (cancelled && current != null) {
+                current.cancel(true);
+            }
+            return cancelled;
+        }
+    }
+
+    private interface Request {
+        HttpRequestBase create(String server);
+    }
+
+    /**
+     * Reads the body straight into a buffer of its content length, decompressing it at the end if gzipped
+     */
+    private static class ResponseConsumer extends AbstractAsyncResponseConsumer<Response> {
+        private int status;
+        private boolean gzipped;
+        private byte[] body = new byte[0];
+        private int length;
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            status = response.getStatusLine().getStatusCode();
+            Header encoding = response.getFirstHeader("Content-Encoding");
+            gzipped = encoding != null && "gzip".equalsIgnoreCase(encoding.getValue());
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+            long contentLength = entity.getContentLength();
+            body = new byte[contentLength > 0 ? (int) contentLength : 8192];
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            while (!decoder.isCompleted()) {
+                if (length == body.length) {
+                    // only grow the buffer if the body is really longer than expected
+                    body = Arrays.copyOf(body, Math.max(8192, body.length * 2));
+                }
+                int read = decoder.read(ByteBuffer.wrap(body, length, body.length - length));
+                if (read <= 0) {
+                    break;
+                }
+                length += read;
+            }
+        }
+
+        @Override
+        protected Response buildResult(HttpContext context) throws IOException {
+            if (!gzipped) {
+                return new Response(status, body, length);
+            }
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(body, 0, length));
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(8192, length * 4));
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return new Response(status, out.toByteArray(), out.size());
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        protected void releaseResources() {
+        }
+    }
+
+    private static byte[] gzip(byte[] body, int length) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(512, length / 4));
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(body, 0, length);
+            gzip.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Impossible to gzip the request body! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Status and body of a response, the body being the first length bytes of the buffer
+     */
+    public static class Response {
+        private final int status;
+        private final byte[] body;
+        private final int length;
+
+        Response(int status, byte[] body, int length) {
+            this.status = status;
+            this.body = body;
+            this.length = length;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public boolean isSucceeded() {
+            return status / 100 == 2;
+        }
+
+        public String getBodyAsString() {
+            return new String(body, 0, length, JsonScanner.UTF8);
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that the destination index holds the same documents as the source, in bounded memory.
+ * Both indices are scrolled in parallel, one scroll per slice of their shards, and every document is hashed,
+ * _type, _id and _source, into one of a fixed number of buckets chosen by the hash of its _type and _id.
+ * A bucket digest is the sum of the hashes of its documents, so the scrolls need no common order.
+ * Only when some buckets differ, a second pass scrolls the ids of the indices again, without their source, and
+ * reads by ids the documents of those buckets only, to list the missing, extra and differing ones.
+ * The source documents are transformed as by the copy before being hashed, and the destination is refreshed
+ * first.
+ */
+public class IndexVerifier {
+
+    private static final Logger LOGGER = Logger.getLogger(IndexVerifier.class.getName());
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Side src;
+    private final Side dst;
+    private final TransformPipeline transform;
+    private final int sizePage;
+    private final int buckets;
+    private final int maxDocuments;
+
+    /**
+     * @param srcSlices the search preferences of the slices of the source, see {@link ShardSlices}
+     * @param dstSlices the search preferences of the slices of the destination
+     * @param buckets the number of buckets of the first pass
+     * @param maxDocuments the max number of documents of the differing buckets kept by the second pass,
+     *                     per index, beyond which the differences are counted by bucket only
+     */
+    public IndexVerifier(HttpEndpoint src, String indexSrc, ScrollQuery srcQuery, List<String> srcSlices,
+                         HttpEndpoint dst, String indexDst, List<String> dstSlices, TransformPipeline transform,
+                         int sizePage, int buckets, int maxDocuments) {
+        this.src = new Side(src, indexSrc, srcSlices, srcQuery, true);
+        this.dst = new Side(dst, indexDst, dstSlices, srcQuery.unfiltered(), false);
+        this.transform = transform;
+        this.sizePage = sizePage;
+        this.buckets = buckets;
+        this.maxDocuments = maxDocuments;
+    }
+
+    /**
+     * @return the differences between the indices
+     * @throws IOException if a request to either index fails
+     * @throws InterruptedException if interrupted while the indices are scrolled
+     */
+    public VerifyReport verify() throws IOException, InterruptedException {
+        VerifyReport report = new VerifyReport(src.index, dst.index);
+        // the last documents copied are searchable only once refreshed
+        dst.endpoint.post("/" + URLEncoder.encode(dst.index, "UTF-8") + "/_refresh", new byte[0], 0, HttpEndpoint.JSON);
+        report.setSrcDocs(count(src));
+        report.setDstDocs(count(dst));
+        LOGGER.log(Level.INFO, "Verifying " + report.getSrcDocs() + " documents of " + src.index + " against "
+                + report.getDstDocs() + " documents of " + dst.index + " in " + buckets + " buckets");
+        long[][] srcDigest = newDigest();
+        long[][] dstDigest = newDigest();
+        List<Callable<long[][]>> tasks = new ArrayList<Callable<long[][]>>();
+        for (final Side side : new Side[]{src, dst}) {
+            for (final String slice : side.slices) {
+                tasks.add(new Callable<long[][]>() {
+                    @Override
+                    public long[][] call() throws Exception {
+                        return digest(side, slice);
+                    }
+                });
+            }
+        }
+        List<long[][]> digests = runAll(tasks);
+        for (int i = 0; i < digests.size(); i++) {
+            add(i < src.slices.size() ? srcDigest : dstDigest, digests.get(i));
+        }
+        BitSet differing = new BitSet(buckets);
+        for (int b = 0; b < buckets; b++) {
+            if (srcDigest[0][b] != dstDigest[0][b] || srcDigest[1][b] != dstDigest[1][b]) {
+                differing.set(b);
+            }
+        }
+        report.setBuckets(buckets, differing.cardinality());
+        if (!differing.isEmpty()) {
+            LOGGER.log(Level.INFO, differing.cardinality() + " buckets differ, reading their documents again");
+            drillDown(differing, report);
+        }
+        return report;
+    }
+
+    /**
+     * Lists the documents of the differing buckets: the ids of both indices are scrolled without their source,
+     * and only the documents of those buckets are then read with their source, by ids.
+     * The source documents are scrolled with their source when a transform, which may change their ids, needs it.
+     */
+    private void drillDown(final BitSet differing, VerifyReport report) throws IOException, InterruptedException {
+        final AtomicBoolean truncated = new AtomicBoolean();
+        final Map<Side, ConcurrentMap<String, Long>> documents = new HashMap<Side, ConcurrentMap<String, Long>>();
+        final Map<Side, ConcurrentMap<String, String>> ids = new HashMap<Side, ConcurrentMap<String, String>>();
+        List<Callable<Void>> scans = new ArrayList<Callable<Void>>();
+        for (final Side side : new Side[]{src, dst}) {
+            documents.put(side, new ConcurrentHashMap<String, Long>());
+            ids.put(side, new ConcurrentHashMap<String, String>());
+            final boolean withSource = side.transformed && !transform.isEmpty();
+            for (final String slice : side.slices) {
+                scans.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        collect(side, slice, differing, withSource ? documents.get(side) : null, ids.get(side),
+                                truncated);
+                        return null;
+                    }
+                });
+            }
+        }
+        runAll(scans);
+        if (truncated.get()) {
+            report.setTruncated(true);
+            return;
+        }
+        List<Callable<Void>> fetches = new ArrayList<Callable<Void>>();
+        for (final Side side : new Side[]{src, dst}) {
+            if (!ids.get(side).isEmpty()) {
+                fetches.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        fetch(side, ids.get(side), documents.get(side));
+                        return null;
+                    }
+                });
+            }
+        }
+        runAll(fetches);
+        ConcurrentMap<String, Long> dstDocuments = documents.get(dst);
+        Map<String, Long> sorted = new TreeMap<String, Long>(documents.get(src));
+        for (Map.Entry<String, Long> document : sorted.entrySet()) {
+            Long hash = dstDocuments.remove(document.getKey());
+            if (hash == null) {
+                report.getMissing().add(document.getKey());
+            } else if (!hash.equals(document.getValue())) {
+                report.getDiffering().add(document.getKey());
+            }
+        }
+        report.getExtra().addAll(new TreeMap<String, Long>(dstDocuments).keySet());
+    }
+
+    /**
+     * Runs the scans of the slices in parallel, failing fast: the first one failing cancels the others, aborting
+     * their pending requests, rather than waiting for them
+     *
+     * @return the results of the tasks, in their order
+     */
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException, InterruptedException {
+        if (tasks.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+            for (Callable<T> task : tasks) {
+                futures.add(completion.submit(task));
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                getResult(completion.take());
+            }
+            List<T> results = new ArrayList<T>(tasks.size());
+            for (Future<T> future : futures) {
+                results.add(getResult(future));
+            }
+            return results;
+        } finally {
+            ClonePipeline.stop(executor);
+        }
+    }
+
+    /**
+     * @return the digest of the documents of the slice, by bucket
+     */
+    private long[][] digest(Side side, String slice) throws IOException {
+        long[][] digest = newDigest();
+        CloneMetrics metrics = new CloneMetrics();
+        Scroll scroll = new Scroll(side.endpoint, side.index, slice, side.query.toSearchBody(sizePage, null, null),
+                sizePage, true);
+        try {
+            List<Document> page;
+            while (!(page = scroll.next()).isEmpty()) {
+                for (Document read : page) {
+                    Document document = side.transformed ? transform.apply(read, metrics) : read;
+                    if (document != null) {
+                        long key = DeletionReconciler.hash(document);
+                        int bucket = bucket(key);
+                        digest[0][bucket] += hash(key, document);
+                        digest[1][bucket]++;
+                    }
+                }
+            }
+            return digest;
+        } finally {
+            scroll.close();
+        }
+    }
+
+    /**
+     * Collects the documents of the slice in the differing buckets, up to maxDocuments per index
+     *
+     * @param documents the hashes of the documents, by _type/_id, to scroll them with their source,
+     *                  or null to scroll their ids only
+     * @param ids the _id of the documents to read with their source, by _type/_id, when scrolling the ids only
+     */
+    private void collect(Side side, String slice, BitSet differing, ConcurrentMap<String, Long> documents,
+                         ConcurrentMap<String, String> ids, AtomicBoolean truncated) throws IOException {
+        CloneMetrics metrics = new CloneMetrics();
+        String body = documents != null ? side.query.toSearchBody(sizePage, null, null)
+                : side.query.toIdsSearchBody(sizePage);
+        Scroll scroll = new Scroll(side.endpoint, side.index, slice, body, sizePage, documents != null);
+        try {
+            List<Document> page;
+            while (!(page = scroll.next()).isEmpty() && !truncated.get()) {
+                for (Document read : page) {
+                    Document document = documents != null ? transform.apply(read, metrics) : read;
+                    if (document == null) {
+                        continue;
+                    }
+                    long key = DeletionReconciler.hash(document);
+                    if (!differing.get(bucket(key))) {
+                        continue;
+                    }
+                    if (ids.size() + (documents != null ? documents.size() : 0) >= maxDocuments) {
+                        truncated.set(true);
+                        return;
+                    }
+                    String name = document.getType() + "/" + document.getId();
+                    if (documents != null) {
+                        documents.put(name, hash(key, document));
+                    } else {
+                        ids.put(name, document.getId());
+                    }
+                }
+            }
+        } finally {
+            scroll.close();
+        }
+    }
+
+    /**
+     * Reads the documents of the ids with their source, a page of ids at a time
+     *
+     * @param ids the _id of the documents, by _type/_id
+     * @param documents the hashes of the documents read, by _type/_id
+     */
+    private void fetch(Side side, Map<String, String> ids, ConcurrentMap<String, Long> documents) throws IOException {
+        List<String> names = new ArrayList<String>(ids.keySet());
+        for (int from = 0; from < names.size(); from += sizePage) {
+            JsonArray values = new JsonArray();
+            for (String name : names.subList(from, Math.min(names.size(), from + sizePage))) {
+                values.add(new JsonPrimitive(ids.get(name)));
+            }
+            String body = side.query.and("{\"ids\": {\"values\": " + values + "}}").toSearchBody(sizePage, null, null);
+            Scroll scroll = new Scroll(side.endpoint, side.index, null, body, sizePage, true);
+            try {
+                List<Document> page;
+                while (!(page = scroll.next()).isEmpty()) {
+                    for (Document document : page) {
+                        // the same _id in another _type, outside of the differing buckets, is left out
+                        String name = document.getType() + "/" + document.getId();
+                        if (ids.containsKey(name)) {
+                            documents.put(name, hash(DeletionReconciler.hash(document), document));
+                        }
+                    }
+                }
+            } finally {
+                scroll.close();
+            }
+        }
+    }
+
+    private int bucket(long key) {
+        return (int) ((key >>> 1) % buckets);
+    }
+
+    private long[][] newDigest() {
+        return new long[][]{new long[buckets], new long[buckets]};
+    }
+
+    private static void add(long[][] total, long[][] digest) {
+        for (int b = 0; b < total[0].length; b++) {
+            total[0][b] += digest[0][b];
+            total[1][b] += digest[1][b];
+        }
+    }
+
+    /**
+     * @return the FNV-1a hash of the _source bytes, seeded with the hash of the _type and _id, and mixed
+     * so that the sums of the hashes of a bucket do not cancel out
+     */
+    static long hash(long key, Document document) {
+        long hash = key;
+        byte[] buffer = document.getBuffer();
+        int end = document.getSourceOffset() + document.getSourceLength();
+        for (int i = document.getSourceOffset(); i < end; i++) {
+            hash = (hash ^ (buffer[i] & 0xff)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static long count(Side side) throws IOException {
+        String path = "/" + URLEncoder.encode(side.index, "UTF-8") + "/_count";
+        byte[] body = side.query.isFiltered() ? side.query.toCountBody().getBytes(JsonScanner.UTF8) : null;
+        HttpEndpoint.Response response = body == null ? side.endpoint.get(path)
+                : side.endpoint.post(path, body, body.length, HttpEndpoint.JSON);
+        if (!response.isSucceeded()) {
+            throw new IOException("Unable to count the documents of " + side.index + ": " + response.getBodyAsString());
+        }
+        return new JsonParser().parse(response.getBodyAsString()).getAsJsonObject().get("count").getAsLong();
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Verification failed!", cause);
+        }
+    }
+
+    /**
+     * One of the two indices compared
+     */
+    private static final class Side {
+        private final HttpEndpoint endpoint;
+        private final String index;
+        private final List<String> slices;
+        private final ScrollQuery query;
+        private final boolean transformed;
+
+        private Side(HttpEndpoint endpoint, String index, List<String> slices, ScrollQuery query, boolean transformed) {
+            this.endpoint = endpoint;
+            this.index = index;
+            this.slices = slices.isEmpty() ? Collections.<String>singletonList(null) : slices;
+            this.query = query;
+            this.transformed = transformed;
+        }
+    }
+}
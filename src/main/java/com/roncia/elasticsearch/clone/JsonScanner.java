@@ -0,0 +1,299 @@
+package com.roncia.elasticsearch.clone;
+
+import java.nio.charset.Charset;
+
+/**
+ * Minimal pull scanner over UTF-8 encoded JSON bytes.
+ * It never builds an object tree: values are either decoded one by one (strings, literals) or skipped,
+ * and the byte range of any skipped value can be read back from the scanner position.
+ */
+public class JsonScanner {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] buf;
+    private final int end;
+    private int pos;
+
+    public JsonScanner(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * @return the offset of the next value, after any whitespace
+     */
+    public int position() {
+        skipWhitespace();
+        return pos;
+    }
+
+    /**
+     * @return the current offset, e.g. right after the last value consumed
+     */
+    public int offset() {
+        return pos;
+    }
+
+    /**
+     * @return the next significant byte, without consuming it
+     */
+    public byte peek() {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error("Unexpected end of JSON");
+        }
+        return buf[pos];
+    }
+
+    public void beginObject() {
+        expect('{');
+    }
+
+    public void beginArray() {
+        expect('[');
+    }
+
+    /**
+     * Consumes the separator before the next field, or the end of the object
+     *
+     * @return false when the end of the current object is reached
+     */
+    public boolean hasNextField() {
+        return hasNext('}');
+    }
+
+    /**
+     * Consumes the separator before the next element, or the end of the array
+     *
+     * @return false when the end of the current array is reached
+     */
+    public boolean hasNextElement() {
+        return hasNext(']');
+    }
+
+    /**
+     * @return the name of the next field, positioned on its value
+     */
+    public String nextFieldName() {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * @return true if the next field name is exactly the given one, consuming it only in that case
+     */
+    public boolean nextFieldNameIs(byte[] name) {
+        skipWhitespace();
+        int start = pos + 1;
+        if (buf[pos] != '"' || start + name.length >= end || buf[start + name.length] != '"') {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buf[start + i] != name[i]) {
+                return false;
+            }
+        }
+        pos = start + name.length + 1;
+        expect(':');
+        return true;
+    }
+
+    /**
+     * Consumes the name of the next field, comparing its raw bytes, without decoding it
+     *
+     * @param names the candidate names, UTF-8 encoded
+     * @return the index of the name of the field among the candidates, -1 if none
+     */
+    public int nextFieldNameIndex(byte[][] names) {
+        expect('"');
+        int start = pos;
+        while (pos < end && buf[pos] != '"') {
+            if (buf[pos] == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            throw error("Unterminated string");
+        }
+        int length = pos - start;
+        pos++;
+        expect(':');
+        for (int n = 0; n < names.length; n++) {
+            byte[] name = names[n];
+            if (name.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && buf[start + i] == name[i]) {
+                i++;
+            }
+            if (i == length) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    public String nextString() {
+        expect('"');
+        int start = pos;
+        boolean escaped = false;
+        while (pos < end && buf[pos] != '"') {
+            if (buf[pos] == '\\') {
+                escaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            throw error("Unterminated string");
+        }
+        pos++;
+        return escaped ? unescape(start, pos - 1) : new String(buf, start, pos - 1 - start, UTF8);
+    }
+
+    /**
+     * @return the next string, or null for a JSON null
+     */
+    public String nextStringOrNull() {
+        if (peek() == 'n') {
+            skipValue();
+            return null;
+        }
+        return nextString();
+    }
+
+    public boolean nextBoolean() {
+        skipWhitespace();
+        int start = pos;
+        skipValue();
+        if (pos - start == 4 && buf[start] == 't') {
+            return true;
+        }
+        if (pos - start == 5 && buf[start] == 'f') {
+            return false;
+        }
+        throw error("Expected a boolean");
+    }
+
+    public long nextLong() {
+        skipWhitespace();
+        int start = pos;
+        skipValue();
+        try {
+            return Long.parseLong(new String(buf, start, pos - start, UTF8));
+        } catch (NumberFormatException e) {
+            throw error("Expected a number");
+        }
+    }
+
+    /**
+     * Skips the next value, whatever its type, including nested objects and arrays
+     */
+    public void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            skipString();
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = buf[pos];
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0 && pos < end);
+            if (depth > 0) {
+                throw error("Unterminated " + (char) b);
+            }
+        } else {
+            while (pos < end && !isDelimiter(buf[pos])) {
+                pos++;
+            }
+        }
+    }
+
+    private void skipString() {
+        pos++;
+        while (pos < end && buf[pos] != '"') {
+            if (buf[pos] == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            throw error("Unterminated string");
+        }
+        pos++;
+    }
+
+    private boolean hasNext(char close) {
+        byte b = peek();
+        if (b == close) {
+            pos++;
+            return false;
+        }
+        if (b == ',') {
+            pos++;
+        }
+        return true;
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && (buf[pos] == ' ' || buf[pos] == '\n' || buf[pos] == '\r' || buf[pos] == '\t')) {
+            pos++;
+        }
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private String unescape(int start, int stop) {
+        StringBuilder s = new StringBuilder(stop - start);
+        int run = start;
+        for (int i = start; i < stop; i++) {
+            if (buf[i] != '\\') {
+                continue;
+            }
+            s.append(new String(buf, run, i - run, UTF8));
+            char c = (char) buf[++i];
+            switch (c) {
+                case 'b': s.append('\b'); break;
+                case 'f': s.append('\f'); break;
+                case 'n': s.append('\n'); break;
+                case 'r': s.append('\r'); break;
+                case 't': s.append('\t'); break;
+                case 'u':
+                    s.append((char) Integer.parseInt(new String(buf, i + 1, 4, UTF8), 16));
+                    i += 4;
+                    break;
+                default: s.append(c);
+            }
+            run = i + 1;
+        }
+        s.append(new String(buf, run, stop - run, UTF8));
+        return s.toString();
+    }
+
+    private RuntimeException error(String message) {
+        return new RuntimeException(message + " at offset " + pos + " of the JSON response!");
+    }
+}
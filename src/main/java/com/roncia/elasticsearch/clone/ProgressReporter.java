@@ -0,0 +1,40 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs the progress of a clone at a fixed rate: throughput since the start, bulk latency percentiles,
+ * depth of the page queue and time left.
+ */
+public class ProgressReporter implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ProgressReporter.class.getName());
+
+    private final String indexDst;
+    private final CloneMetrics metrics;
+
+    public ProgressReporter(String indexDst, CloneMetrics metrics) {
+        this.indexDst = indexDst;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void run() {
+        long eta = metrics.getEtaSeconds();
+        LOGGER.log(Level.INFO, String.format(Locale.ROOT,
+                "%s: %d/%s docs indexed, %.0f docs/s, %.2f MB/s, bulk p50 %.0f ms p99 %.0f ms, "
+                        + "scroll p99 %.0f ms, queue %d, retried %d, failed %d, ETA %s",
+                indexDst, metrics.getDocsIndexed(),
+                metrics.getSourceDocs() < 0 ? "?" : String.valueOf(metrics.getSourceDocs()),
+                metrics.getDocsPerSecond(), metrics.getBytesPerSecond() / (1024 * 1024),
+                metrics.getBulkLatencyP50(), metrics.getBulkLatencyP99(), metrics.getScrollLatencyP99(),
+                metrics.getQueueDepth(), metrics.getDocsRetried(), metrics.getDocsDeadLettered(),
+                eta < 0 ? "?" : formatSeconds(eta)));
+    }
+
+    static String formatSeconds(long seconds) {
+        return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,71 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by the threads of one side of the copy: permits accumulate at the rate, up to one second
+ * worth of burst, and a caller taking more permits than available runs into debt and sleeps it off, so that a
+ * large bulk is let through at once and the following calls wait for it.
+ * The rate can be changed while running, 0 meaning unlimited.
+ */
+public class RateLimiter {
+
+    private double rate;
+    private double permits;
+    private long lastNanos = System.nanoTime();
+    private long acquired;
+
+    /**
+     * @param rate the permits per second, 0 for unlimited
+     */
+    public RateLimiter(double rate) {
+        this.rate = Math.max(0, rate);
+        this.permits = this.rate;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the permits taken since the creation, limited or not
+     */
+    public synchronized long getAcquired() {
+        return acquired;
+    }
+
+    public synchronized void setRate(double rate) {
+        refill();
+        this.rate = Math.max(0, rate);
+        this.permits = Math.min(permits, this.rate);
+    }
+
+    /**
+     * Takes the permits, sleeping until the bucket is refilled if they were not available
+     *
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    public void acquire(long count) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            acquired += count;
+            if (rate <= 0) {
+                return;
+            }
+            refill();
+            permits -= count;
+            waitNanos = permits >= 0 ? 0 : (long) (-permits / rate * 1e9);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            permits = Math.min(rate, permits + (now - lastNanos) / 1e9 * rate);
+        }
+        lastNanos = now;
+    }
+}
@@ -0,0 +1,132 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue of the documents rejected by the destination, each batch becoming available again after
+ * an exponential backoff with jitter. The bound is a number of documents: writers block when it is reached,
+ * while a batch retried again keeps the room it already had, so the retries can never dead lock the queue.
+ */
+public class RetryQueue {
+
+    private static final long MAX_DELAY_MILLIS = 60 * 1000;
+    private static final long POLL_MILLIS = 100;
+
+    private final DelayQueue<Batch> batches = new DelayQueue<Batch>();
+    private final Semaphore room;
+    private final int capacity;
+    private final long baseDelayMillis;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Random random = new Random();
+    private volatile boolean closed;
+
+    /**
+     * @param capacity the max number of documents waiting for a retry
+     * @param baseDelayMillis the delay before the first retry, doubled at every attempt
+     */
+    public RetryQueue(int capacity, long baseDelayMillis) {
+        this.capacity = capacity;
+        this.room = new Semaphore(capacity);
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    /**
+     * Queues documents for their first retry, waiting for room in the queue
+     */
+    public void offer(List<Document> documents) throws InterruptedException {
+        int permits = Math.min(documents.size(), capacity);
+        room.acquire(permits);
+        outstanding.incrementAndGet();
+        batches.put(new Batch(documents, 1, permits, delay(1)));
+    }
+
+    /**
+     * Queues again the documents of a batch failing its retry, within the room the batch already had
+     */
+    public void retryAgain(Batch batch, List<Document> documents) {
+        int permits = Math.min(batch.permits, documents.size());
+        room.release(batch.permits - permits);
+        int attempt = batch.attempt + 1;
+        batches.put(new Batch(documents, attempt, permits, delay(attempt)));
+    }
+
+    /**
+     * @return the next batch due for a retry, or null once the queue is closed and every batch is done
+     */
+    public Batch take() throws InterruptedException {
+        while (true) {
+            Batch batch = batches.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (batch != null) {
+                return batch;
+            }
+            if (closed && outstanding.get() == 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Releases a batch whose documents were all indexed or dead lettered
+     */
+    public void done(Batch batch) {
+        room.release(batch.permits);
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * No more documents will be offered: {@link #take()} returns null once the pending batches are done
+     */
+    public void close() {
+        closed = true;
+    }
+
+    private long delay(int attempt) {
+        long delay = Math.min(MAX_DELAY_MILLIS, baseDelayMillis << Math.min(attempt - 1, 20));
+        synchronized (random) {
+            // equal jitter: half of the backoff is fixed, the other half random
+            return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        }
+    }
+
+    /**
+     * Documents retried together, with the number of attempts already made
+     */
+    public static class Batch implements Delayed {
+        private final List<Document> documents;
+        private final int attempt;
+        private final int permits;
+        private final long dueMillis;
+
+        Batch(List<Document> documents, int attempt, int permits, long delayMillis) {
+            this.documents = documents;
+            this.attempt = attempt;
+            this.permits = permits;
+            this.dueMillis = System.currentTimeMillis() + delayMillis;
+        }
+
+        public List<Document> getDocuments() {
+            return documents;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the primary shards of an index and of the http address of the nodes holding them, read from the
+ * cluster state, routing a document to its shard like Elasticsearch 2.0 and later do: Murmur3 hash of its
+ * _routing, or of its _id, modulo the routing shards, with the offset of the routing partitions.
+ */
+public class RoutingTable {
+
+    private final int shards;
+    private final int routingShards;
+    private final int partitionSize;
+    private final String[] primaryAddresses;
+
+    RoutingTable(int routingShards, int partitionSize, String[] primaryAddresses) {
+        if (routingShards % primaryAddresses.length != 0) {
+            throw new RuntimeException(routingShards + " routing shards are not a multiple of "
+                    + primaryAddresses.length + " shards. Impossible to route the documents!");
+        }
+        this.shards = primaryAddresses.length;
+        this.routingShards = routingShards;
+        this.partitionSize = partitionSize;
+        this.primaryAddresses = primaryAddresses;
+    }
+
+    /**
+     * @param state the response of _cluster/state/metadata,routing_table/[index]
+     * @param nodes the response of _nodes/http
+     * @throws RuntimeException if the index was created before 2.0, when the shards were not routed by Murmur3
+     */
+    static RoutingTable parse(String index, JsonObject state, JsonObject nodes) {
+        JsonObject metadata = state.getAsJsonObject("metadata").getAsJsonObject("indices").getAsJsonObject(index);
+        JsonObject table = state.getAsJsonObject("routing_table").getAsJsonObject("indices").getAsJsonObject(index);
+        if (metadata == null || table == null) {
+            throw new RuntimeException("No index " + index + " in the cluster state. Impossible to route the documents!");
+        }
+        JsonObject settings = metadata.getAsJsonObject("settings");
+        String created = getSetting(settings, "index.version.created");
+        if (created != null && Integer.parseInt(created) < 2000000) {
+            throw new RuntimeException("The index " + index + " was created before 2.0, its documents are not "
+                    + "routed by Murmur3. Impossible to route them!");
+        }
+
+        Map<String, String> addresses = new HashMap<String, String>();
+        for (Map.Entry<String, JsonElement> node : nodes.getAsJsonObject("nodes").entrySet()) {
+            JsonObject http = node.getValue().getAsJsonObject().getAsJsonObject("http");
+            if (http != null && http.has("publish_address")) {
+                addresses.put(node.getKey(), parseAddress(http.get("publish_address").getAsString()));
+            }
+        }
+        JsonObject shardCopies = table.getAsJsonObject("shards");
+        String[] primaryAddresses = new String[shardCopies.entrySet().size()];
+        for (Map.Entry<String, JsonElement> shard : shardCopies.entrySet()) {
+            for (JsonElement copy : shard.getValue().getAsJsonArray()) {
+                JsonObject routing = copy.getAsJsonObject();
+                String shardState = routing.get("state").getAsString();
+                if (routing.get("primary").getAsBoolean() && !routing.get("node").isJsonNull()
+                        && ("STARTED".equals(shardState) || "RELOCATING".equals(shardState))) {
+                    primaryAddresses[Integer.parseInt(shard.getKey())] = addresses.get(routing.get("node").getAsString());
+                }
+            }
+        }
+        int routingShards = metadata.has("routing_num_shards") ? metadata.get("routing_num_shards").getAsInt()
+                : primaryAddresses.length;
+        String partitionSize = getSetting(settings, "index.routing_partition_size");
+        return new RoutingTable(routingShards, partitionSize == null ? 1 : Integer.parseInt(partitionSize),
+                primaryAddresses);
+    }
+
+    /**
+     * @return the number of primary shards of the index
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the host:port of the node holding the primary of the shard, null if it is not started
+     */
+    public String getPrimaryAddress(int shard) {
+        return primaryAddresses[shard];
+    }
+
+    /**
+     * @param routing the custom _routing of the document, or null when routed by its _id
+     * @return the shard of the document
+     */
+    public int shardOf(String id, String routing) {
+        int hash;
+        if (routing == null) {
+            hash = hash(id);
+        } else if (partitionSize > 1) {
+            hash = hash(routing) + floorMod(hash(id), partitionSize);
+        } else {
+            hash = hash(routing);
+        }
+        return floorMod(hash, routingShards) / (routingShards / shards);
+    }
+
+    /**
+     * Murmur3 x86 32 bits hash, seed 0, of the UTF-16 little endian chars of the routing, as Elasticsearch hashes
+     * it
+     */
+    static int hash(String routing) {
+        int length = routing.length() * 2;
+        int h1 = 0;
+        int i = 0;
+        for (; i + 1 < routing.length(); i += 2) {
+            int k1 = routing.charAt(i) | routing.charAt(i + 1) << 16;
+            k1 *= 0xcc9e2d51;
+            k1 = Integer.rotateLeft(k1, 15);
+            k1 *= 0x1b873593;
+            h1 ^= k1;
+            h1 = Integer.rotateLeft(h1, 13);
+            h1 = h1 * 5 + 0xe6546b64;
+        }
+        if (i < routing.length()) {
+            // odd number of chars: 2 bytes left
+            int k1 = routing.charAt(i);
+            k1 *= 0xcc9e2d51;
+            k1 = Integer.rotateLeft(k1, 15);
+            k1 *= 0x1b873593;
+            h1 ^= k1;
+        }
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+
+    private static int floorMod(int value, int divisor) {
+        int mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+
+    /**
+     * @return the value of the setting, whether the settings are nested (2.0 and later) or flat
+     */
+    private static String getSetting(JsonObject settings, String name) {
+        if (settings == null) {
+            return null;
+        }
+        if (settings.has(name)) {
+            return settings.get(name).getAsString();
+        }
+        JsonElement value = settings;
+        for (String key : name.split("\\.")) {
+            if (!value.isJsonObject() || !value.getAsJsonObject().has(key)) {
+                return null;
+            }
+            value = value.getAsJsonObject().get(key);
+        }
+        return value.getAsString();
+    }
+
+    /**
+     * @return the host:port of a publish address, e.g. 10.0.0.1:9200 of 10.0.0.1:9200, node1/10.0.0.1:9200
+     * or inet[/10.0.0.1:9200]
+     */
+    static String parseAddress(String publishAddress) {
+        String address = publishAddress;
+        if (address.startsWith("inet[") && address.endsWith("]")) {
+            address = address.substring(5, address.length() - 1);
+        }
+        return address.substring(address.indexOf('/') + 1);
+    }
+}
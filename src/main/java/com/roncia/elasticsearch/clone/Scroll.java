@@ -0,0 +1,71 @@
+package com.roncia.elasticsearch.clone;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.List;
+
+/**
+ * A plain sequential scroll of an index, for the passes reading an index outside of the copy pipeline.
+ * Not thread safe: one scroll per thread. Closing it clears the scroll on the cluster.
+ */
+class Scroll implements Closeable {
+
+    private final HttpEndpoint endpoint;
+    private final String index;
+    private final String preference;
+    private final String body;
+    private final int size;
+    private final boolean withSource;
+    private String scrollId;
+
+    /**
+     * @param preference the shards to read, e.g. _shards:0,2, or null for all of them
+     * @param body the body of the first search request
+     * @param withSource false when the body excludes the _source to read only the ids
+     */
+    Scroll(HttpEndpoint endpoint, String index, String preference, String body, int size, boolean withSource) {
+        this.endpoint = endpoint;
+        this.index = index;
+        this.preference = preference;
+        this.body = body;
+        this.size = size;
+        this.withSource = withSource;
+    }
+
+    /**
+     * @return the documents of the next page, empty at the end of the scroll
+     * @throws IOException if the search fails
+     */
+    List<Document> next() throws IOException {
+        HttpEndpoint.Response response;
+        if (scrollId == null) {
+            byte[] query = body.getBytes(JsonScanner.UTF8);
+            String path = "/" + URLEncoder.encode(index, "UTF-8") + "/_search?scroll=" + ScrollReader.SCROLL_TIME
+                    + "&size=" + size;
+            if (preference != null) {
+                path += "&preference=" + URLEncoder.encode(preference, "UTF-8");
+            }
+            response = endpoint.post(path, query, query.length, HttpEndpoint.JSON);
+        } else {
+            response = endpoint.get("/_search/scroll?scroll=" + ScrollReader.SCROLL_TIME + "&scroll_id="
+                    + URLEncoder.encode(scrollId, "UTF-8"));
+        }
+        if (!response.isSucceeded()) {
+            throw new IOException("Scroll of " + index + " failed with status " + response.getStatus() + ": "
+                    + response.getBodyAsString());
+        }
+        ScrollPage page = ScrollResponseParser.parse(response.getBody(), response.getLength(), withSource);
+        scrollId = page.getScrollId();
+        return page.getDocuments();
+    }
+
+    /**
+     * Clears the scroll context, without waiting for the cluster
+     */
+    @Override
+    public void close() throws IOException {
+        ScrollReader.clearScroll(endpoint, scrollId);
+        scrollId = null;
+    }
+}
@@ -0,0 +1,57 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One page of a scroll: the id to fetch the next page and the documents of this one.
+ * Counts down its documents as the writers acknowledge them, and reports to the progress of its slice
+ * once all of them are indexed.
+ */
+public class ScrollPage {
+
+    private final String scrollId;
+    private final List<Document> documents;
+    private final String lastSortValue;
+    private final AtomicInteger pending;
+    private SliceProgress progress;
+
+    public ScrollPage(String scrollId, List<Document> documents, String lastSortValue) {
+        this.scrollId = scrollId;
+        this.documents = documents;
+        this.lastSortValue = lastSortValue;
+        this.pending = new AtomicInteger(documents.size());
+    }
+
+    public String getScrollId() {
+        return scrollId;
+    }
+
+    public List<Document> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return the raw JSON sort value of the last hit of the page, or null if the scroll is not sorted
+     */
+    public String getLastSortValue() {
+        return lastSortValue;
+    }
+
+    void setProgress(SliceProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Marks some documents of the page as durably indexed on the destination
+     */
+    public void acknowledge(int documents) {
+        if (pending.addAndGet(-documents) == 0 && progress != null) {
+            progress.onPageAcknowledged();
+        }
+    }
+
+    boolean isAcknowledged() {
+        return pending.get() == 0;
+    }
+}
@@ -0,0 +1,206 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The search bodies of the copy, built in one place so that the filtering and projection happen on the source
+ * shards: the query clauses that all documents must match (the -query, the range of a delta sync, the resume
+ * point of a checkpointed slice), the _source includes and excludes, and the sort, on the checkpoint field
+ * or else on _doc, the cheapest order to scroll.
+ * Immutable: {@link #and(String)} returns a new query.
+ */
+public class ScrollQuery {
+
+    public static final ScrollQuery ALL = new Builder().build();
+
+    private final List<String> clauses;
+    private final List<String> sourceIncludes;
+    private final List<String> sourceExcludes;
+    private final boolean sortByDoc;
+
+    private ScrollQuery(List<String> clauses, List<String> sourceIncludes, List<String> sourceExcludes,
+                        boolean sortByDoc) {
+        this.clauses = Collections.unmodifiableList(clauses);
+        this.sourceIncludes = sourceIncludes;
+        this.sourceExcludes = sourceExcludes;
+        this.sortByDoc = sortByDoc;
+    }
+
+    /**
+     * @param clause a JSON query clause the documents must match too
+     */
+    public ScrollQuery and(String clause) {
+        List<String> all = new ArrayList<String>(clauses);
+        all.add(clause);
+        return new ScrollQuery(all, sourceIncludes, sourceExcludes, sortByDoc);
+    }
+
+    /**
+     * @return a query of all the documents and their whole _source, sorted the same way
+     */
+    public ScrollQuery unfiltered() {
+        return new ScrollQuery(new ArrayList<String>(), Collections.<String>emptyList(),
+                Collections.<String>emptyList(), sortByDoc);
+    }
+
+    /**
+     * @return the JSON query matching all the clauses, or null to match all the documents
+     */
+    public String toQuery() {
+        if (clauses.isEmpty()) {
+            return null;
+        }
+        if (clauses.size() == 1) {
+            return clauses.get(0);
+        }
+        StringBuilder bool = new StringBuilder("{\"bool\": {\"must\": [");
+        for (int i = 0; i < clauses.size(); i++) {
+            bool.append(i == 0 ? "" : ", ").append(clauses.get(i));
+        }
+        return bool.append("]}}").toString();
+    }
+
+    /**
+     * @return the body of the _count request of the documents to copy
+     */
+    public String toCountBody() {
+        String query = toQuery();
+        return query == null ? null : "{\"query\": " + query + "}";
+    }
+
+    /**
+     * @param size the number of documents per page
+     * @param sortField the field to sort on to checkpoint the scroll, or null
+     * @param resumeValue the sort value to restart a checkpointed slice from, or null
+     * @return the body of the first search request of a scroll
+     */
+    public String toSearchBody(int size, String sortField, String resumeValue) {
+        ScrollQuery query = this;
+        String field = sortField == null ? null : new JsonPrimitive(sortField).toString();
+        if (resumeValue != null) {
+            // gte rather than gt: documents sharing the last value are indexed again by _id, never skipped.
+            // The documents without the field sort last, so they are copied again rather than dropped
+            query = and("{\"bool\": {\"should\": [{\"range\": {" + field + ": {\"gte\": " + resumeValue + "}}}, "
+                    + "{\"bool\": {\"must_not\": {\"exists\": {\"field\": " + field + "}}}}]}}");
+        }
+        StringBuilder body = new StringBuilder("{\"size\": ").append(size);
+        if (query.toQuery() != null) {
+            body.append(", \"query\": ").append(query.toQuery());
+        }
+        if (!sourceIncludes.isEmpty() || !sourceExcludes.isEmpty()) {
+            JsonObject source = new JsonObject();
+            source.add("includes", toArray(sourceIncludes));
+            source.add("excludes", toArray(sourceExcludes));
+            body.append(", \"_source\": ").append(source);
+        }
+        if (field != null) {
+            body.append(", \"sort\": [{").append(field).append(": \"asc\"}]");
+        } else if (sortByDoc) {
+            body.append(", \"sort\": [\"_doc\"]");
+        }
+        return body.append("}").toString();
+    }
+
+    /**
+     * @param size the number of documents per page
+     * @return the body of the first search request of a scroll of the ids of the documents, without their _source
+     */
+    public String toIdsSearchBody(int size) {
+        StringBuilder body = new StringBuilder("{\"size\": ").append(size).append(", \"_source\": false");
+        if (toQuery() != null) {
+            body.append(", \"query\": ").append(toQuery());
+        }
+        if (sortByDoc) {
+            body.append(", \"sort\": [\"_doc\"]");
+        }
+        return body.append("}").toString();
+    }
+
+    public boolean isFiltered() {
+        return !clauses.isEmpty();
+    }
+
+    /**
+     * @return the query clauses and the _source filtering, empty when copying whole documents
+     */
+    public String getSelection() {
+        if (clauses.isEmpty() && sourceIncludes.isEmpty() && sourceExcludes.isEmpty()) {
+            return "";
+        }
+        return toQuery() + sourceIncludes + sourceExcludes;
+    }
+
+    private static JsonArray toArray(List<String> values) {
+        JsonArray array = new JsonArray();
+        for (String value : values) {
+            array.add(new JsonPrimitive(value));
+        }
+        return array;
+    }
+
+    public static class Builder {
+        private final List<String> clauses = new ArrayList<String>();
+        private List<String> sourceIncludes = Collections.emptyList();
+        private List<String> sourceExcludes = Collections.emptyList();
+        private boolean sortByDoc = true;
+
+        /**
+         * @param query a JSON query clause, e.g. {"range": {"date": {"gte": "now-1M"}}}, or a search body
+         *              holding it in its "query" field
+         */
+        public Builder query(String query) {
+            JsonElement json;
+            try {
+                json = new JsonParser().parse(query);
+            } catch (JsonSyntaxException e) {
+                throw new RuntimeException("Invalid query " + query + ": " + e.getMessage());
+            }
+            if (!json.isJsonObject()) {
+                throw new RuntimeException("Invalid query " + query + ", expected a JSON object!");
+            }
+            JsonObject object = json.getAsJsonObject();
+            if (object.entrySet().size() == 1 && object.has("query")) {
+                object = object.get("query").getAsJsonObject();
+            }
+            clauses.add(object.toString());
+            return this;
+        }
+
+        /**
+         * @param sourceIncludes the fields, or wildcard patterns, of the _source to copy, all if empty
+         */
+        public Builder sourceIncludes(List<String> sourceIncludes) {
+            this.sourceIncludes = sourceIncludes;
+            return this;
+        }
+
+        /**
+         * @param sourceExcludes the fields, or wildcard patterns, of the _source not to copy
+         */
+        public Builder sourceExcludes(List<String> sourceExcludes) {
+            this.sourceExcludes = sourceExcludes;
+            return this;
+        }
+
+        /**
+         * @param sortByDoc false to scroll unsorted rather than on _doc, for clusters before 2.1
+         */
+        public Builder sortByDoc(boolean sortByDoc) {
+            this.sortByDoc = sortByDoc;
+            return this;
+        }
+
+        public ScrollQuery build() {
+            return new ScrollQuery(clauses, sourceIncludes, sourceExcludes, sortByDoc);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.roncia.elasticsearch.clone;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Producer side of the clone pipeline: scrolls the source index, or one slice of its shards, and puts every
+ * page of documents on the queue.
+ * Blocks when the queue is full, so a slow destination throttles the reads.
+ * When checkpointing, the scroll is sorted on the checkpoint field, and a resumed slice restarts from the
+ * last sort value it checkpointed.
+ * The {@link ScrollQuery} filters and projects the documents on the source shards, and the {@link Throttle}
+ * paces the pages put on the queue to the documents and bytes per second allowed on the source.
+ * The pages are requested by a chain of callbacks: the callback of a page parses it, hands it to the reader and
+ * asks the next page at once, unless {@link #READ_AHEAD_PAGES} pages are already read or asked and not yet on the
+ * queue, in which case the reader resumes the chain once it queued a page. So the source prepares the next page
+ * while the previous one waits for room on the queue, and the reader thread only waits for the queue and the
+ * throttle. The pending scroll is aborted if the reader is cancelled, and the scroll is cleared once the reader is
+ * done, whether it completed, failed or was cancelled.
+ */
+public class ScrollReader implements Callable<Long> {
+
+    private static final Logger LOGGER = Logger.getLogger(ScrollReader.class.getName());
+
+    static final String SCROLL_TIME = "5m";
+
+    /**
+     * Max number of pages of the reader read or asked to the source and not yet put on the queue
+     */
+    static final int READ_AHEAD_PAGES = 2;
+
+    private final HttpEndpoint src;
+    private final String indexSrc;
+    private final SliceProgress progress;
+    private final String preference;
+    private final String sortField;
+    private final ScrollQuery query;
+    private final int sizePage;
+    private final Throttle throttle;
+    private final BlockingQueue<ScrollPage> pages;
+    private final CloneMetrics metrics;
+    private final BlockingQueue<Fetched> fetched = new LinkedBlockingQueue<Fetched>();
+    private final Semaphore readAhead = new Semaphore(READ_AHEAD_PAGES);
+    private final AtomicReference<String> paused = new AtomicReference<String>();
+    private final AtomicReference<Future<HttpEndpoint.Response>> pending =
+            new AtomicReference<Future<HttpEndpoint.Response>>();
+    private final AtomicReference<String> scrollId = new AtomicReference<String>();
+    private volatile boolean closed;
+
+    /**
+     * @param progress the progress of the slice to read; its preference gives the shards to read,
+     *                 e.g. _shards:0,2, or null to scroll the whole index
+     * @param sortField the field to sort the scroll on to checkpoint it, or null to scroll unsorted
+     * @param query the documents to read and their fields
+     * @param throttle the read limits, shared by the readers of the source
+     */
+    public ScrollReader(HttpEndpoint src, String indexSrc, SliceProgress progress, String sortField, ScrollQuery query,
+                        int sizePage, Throttle throttle, BlockingQueue<ScrollPage> pages, CloneMetrics metrics) {
+        this.src = src;
+        this.indexSrc = indexSrc;
+        this.progress = progress;
+        this.preference = progress.getSlice().getPreference();
+        this.sortField = sortField;
+        this.query = query;
+        this.sizePage = sizePage;
+        this.throttle = throttle;
+        this.pages = pages;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the number of documents read from the source index
+     */
+    @Override
+    public Long call() throws Exception {
+        long totHits = 0;
+        String path = "/" + encode(indexSrc) + "/_search?scroll=" + SCROLL_TIME + "&size=" + sizePage;
+        if (preference != null) {
+            path += "&preference=" + encode(preference);
+        }
+        String resumeValue = sortField == null ? null : progress.getSlice().getLastSortValue();
+        byte[] body = query.toSearchBody(sizePage, sortField, resumeValue).getBytes(JsonScanner.UTF8);
+        readAhead.acquire();
+        pending.set(src.postAsync(path, body, body.length, HttpEndpoint.JSON, new PageCallback()));
+        try {
+            while (true) {
+                Fetched next = fetched.take();
+                ScrollPage page = next.getPage();
+                List<Document> documents = page.getDocuments();
+                if (documents.isEmpty()) {
+                    LOGGER.log(Level.INFO, "Read " + totHits + " documents from " + (preference == null ? "all shards" : preference));
+                    progress.onReaderFinished();
+                    return totHits;
+                }
+                throttle.acquire(documents.size(), next.length);
+                totHits += documents.size();
+                progress.register(page);
+                pages.put(page);
+                readAhead.release();
+                resume();
+            }
+        } finally {
+            // aborts the pending scroll of a cancelled or failed reader
+            closed = true;
+            Future<HttpEndpoint.Response> scroll = pending.get();
+            if (scroll != null) {
+                scroll.cancel(true);
+            }
+            clearScroll(src, scrollId.get());
+        }
+    }
+
+    /**
+     * Asks the next page of a scroll paused by the read ahead limit, if a page was queued since
+     */
+    private void resume() {
+        String id = paused.get();
+        if (id != null && readAhead.tryAcquire()) {
+            if (paused.compareAndSet(id, null)) {
+                next(id);
+            } else {
+                readAhead.release();
+            }
+        }
+    }
+
+    private void next(String id) {
+        try {
+            pending.set(src.getAsync("/_search/scroll?scroll=" + SCROLL_TIME + "&scroll_id=" + encode(id),
+                    new PageCallback()));
+        } catch (IOException | RuntimeException e) {
+            fetched.add(new Fetched(null, 0, e));
+        }
+    }
+
+    /**
+     * Parses a page on the io thread, hands it to the reader and chains the request of the next page
+     */
+    private class PageCallback implements FutureCallback<HttpEndpoint.Response> {
+
+        private final long startNanos = System.nanoTime();
+
+        @Override
+        public void completed(HttpEndpoint.Response response) {
+            ScrollPage page;
+            try {
+                page = read(response, startNanos);
+            } catch (IOException | RuntimeException e) {
+                failed(e);
+                return;
+            }
+            scrollId.set(page.getScrollId());
+            fetched.add(new Fetched(page, response.getLength(), null));
+            if (closed) {
+                // the reader stopped meanwhile, and may have cleared the previous scroll id only
+                try {
+                    clearScroll(src, page.getScrollId());
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Scroll not cleared", e);
+                }
+                return;
+            }
+            if (page.getDocuments().isEmpty()) {
+                return;
+            }
+            paused.set(page.getScrollId());
+            // the reader may have queued a page, and released its permit, since the permits were checked
+            resume();
+        }
+
+        @Override
+        public void failed(Exception e) {
+            fetched.add(new Fetched(null, 0, e));
+        }
+
+        @Override
+        public void cancelled() {
+            fetched.add(new Fetched(null, 0, new CancellationException("Scroll aborted")));
+        }
+    }
+
+    /**
+     * A page read by the callbacks, or the failure of its request
+     */
+    private static class Fetched {
+        private final ScrollPage page;
+        private final int length;
+        private final Exception failure;
+
+        Fetched(ScrollPage page, int length, Exception failure) {
+            this.page = page;
+            this.length = length;
+            this.failure = failure;
+        }
+
+        ScrollPage getPage() throws IOException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure != null) {
+                throw new IOException("Scroll failed!", failure);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Frees the scroll context on the source without waiting for it, so that it does not count against the open
+     * scroll contexts of the source until it expires; it expires anyway if the request fails
+     *
+     * @param scrollId the id of the scroll, null if it was not opened
+     */
+    static void clearScroll(HttpEndpoint endpoint, String scrollId) throws IOException {
+        if (scrollId != null) {
+            endpoint.deleteAsync("/_search/scroll?scroll_id=" + encode(scrollId));
+        }
+    }
+
+    private ScrollPage read(HttpEndpoint.Response response, long startNanos) throws IOException {
+        if (!response.isSucceeded()) {
+            throw new IOException("Scroll failed with status " + response.getStatus() + ": " + response.getBodyAsString());
+        }
+        ScrollPage page = ScrollResponseParser.parse(response.getBody(), response.getLength());
+        metrics.onScroll(page.getDocuments().size(), response.getLength(), System.nanoTime() - startNanos);
+        return page;
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+}
@@ -0,0 +1,118 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a search or scroll response, extracting the scroll id and, for every hit, the _type, the _id and the
+ * byte range of the _source, plus the sort value of the last hit. Nothing else of the response is decoded.
+ */
+public class ScrollResponseParser {
+
+    private static final byte[] SCROLL_ID = "_scroll_id".getBytes(JsonScanner.UTF8);
+    private static final byte[] HITS = "hits".getBytes(JsonScanner.UTF8);
+    private static final byte[] TYPE = "_type".getBytes(JsonScanner.UTF8);
+    private static final byte[] ID = "_id".getBytes(JsonScanner.UTF8);
+    private static final byte[] ROUTING = "_routing".getBytes(JsonScanner.UTF8);
+    private static final byte[] SOURCE = "_source".getBytes(JsonScanner.UTF8);
+    private static final byte[] SORT = "sort".getBytes(JsonScanner.UTF8);
+
+    private ScrollResponseParser() {
+    }
+
+    /**
+     * @param body the response body, referenced by the returned documents
+     * @param length the number of bytes of the body
+     * @return the scroll id and the documents of the page
+     */
+    public static ScrollPage parse(byte[] body, int length) {
+        return parse(body, length, true);
+    }
+
+    /**
+     * @param withSource false to accept hits without _source, searched with "_source": false to read
+     *                   only the ids, whose documents then have an empty source
+     */
+    public static ScrollPage parse(byte[] body, int length, boolean withSource) {
+        JsonScanner json = new JsonScanner(body, 0, length);
+        String scrollId = null;
+        List<Document> documents = new ArrayList<Document>();
+        int[] lastSort = {-1, 0};
+        json.beginObject();
+        while (json.hasNextField()) {
+            if (json.nextFieldNameIs(SCROLL_ID)) {
+                scrollId = json.nextString();
+            } else if (json.nextFieldNameIs(HITS)) {
+                parseHits(json, body, documents, lastSort, withSource);
+            } else {
+                json.nextFieldName();
+                json.skipValue();
+            }
+        }
+        String lastSortValue = lastSort[0] < 0 ? null : new String(body, lastSort[0], lastSort[1], JsonScanner.UTF8);
+        ScrollPage page = new ScrollPage(scrollId, documents, lastSortValue);
+        for (Document document : documents) {
+            document.setPage(page);
+        }
+        return page;
+    }
+
+    private static void parseHits(JsonScanner json, byte[] body, List<Document> documents, int[] lastSort,
+                                  boolean withSource) {
+        json.beginObject();
+        while (json.hasNextField()) {
+            if (json.nextFieldNameIs(HITS)) {
+                json.beginArray();
+                while (json.hasNextElement()) {
+                    documents.add(parseHit(json, body, lastSort, withSource));
+                }
+            } else {
+                json.nextFieldName();
+                json.skipValue();
+            }
+        }
+    }
+
+    /**
+     * @param lastSort receives offset and length of the first sort value of the hit, if sorted
+     */
+    private static Document parseHit(JsonScanner json, byte[] body, int[] lastSort, boolean withSource) {
+        String type = null;
+        String id = null;
+        String routing = null;
+        int sourceOffset = -1;
+        int sourceLength = 0;
+        json.beginObject();
+        while (json.hasNextField()) {
+            if (json.nextFieldNameIs(TYPE)) {
+                type = json.nextString();
+            } else if (json.nextFieldNameIs(ID)) {
+                id = json.nextString();
+            } else if (json.nextFieldNameIs(ROUTING)) {
+                routing = json.nextString();
+            } else if (json.nextFieldNameIs(SOURCE)) {
+                sourceOffset = json.position();
+                json.skipValue();
+                sourceLength = json.offset() - sourceOffset;
+            } else if (json.nextFieldNameIs(SORT)) {
+                json.beginArray();
+                lastSort[0] = json.position();
+                json.skipValue();
+                lastSort[1] = json.offset() - lastSort[0];
+                while (json.hasNextElement()) {
+                    json.skipValue();
+                }
+            } else {
+                json.nextFieldName();
+                json.skipValue();
+            }
+        }
+        if (sourceOffset < 0 && !withSource) {
+            return new Document(type, id, routing, body, 0, 0);
+        }
+        if (sourceOffset < 0) {
+            throw new RuntimeException("The document " + id + " has no _source. Impossible to copy it!");
+        }
+        return new Document(type, id, routing, body, sourceOffset, sourceLength);
+    }
+}
@@ -0,0 +1,144 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Groups the documents of a bulk by the node holding the primary of their shard, so that each node receives only
+ * the documents it indexes, without going through a coordinating node. Documents whose primary is not started, or
+ * on a node that cannot be reached, go to the destination endpoint as usual.
+ * The routing table is read again when run, every few seconds, to follow the relocated shards.
+ */
+public class ShardRouter implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ShardRouter.class.getName());
+
+    private final HttpEndpoint dst;
+    private final String indexDst;
+    private final ConcurrentMap<String, HttpEndpoint> nodes = new ConcurrentHashMap<String, HttpEndpoint>();
+    private final Set<String> unreachable = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile RoutingTable table;
+
+    private ShardRouter(HttpEndpoint dst, String indexDst) {
+        this.dst = dst;
+        this.indexDst = indexDst;
+    }
+
+    /**
+     * @return the router of the documents of the destination index, or null if its shards cannot be routed
+     */
+    public static ShardRouter create(HttpEndpoint dst, String indexDst) {
+        ShardRouter router = new ShardRouter(dst, indexDst);
+        try {
+            router.refresh();
+            return router;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Bulks sent to " + indexDst + " without shard routing: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the routing table again, logging the primaries that moved
+     *
+     * @throws IOException if the cluster state or the nodes cannot be read
+     */
+    public void refresh() throws IOException {
+        String index = URLEncoder.encode(indexDst, "UTF-8");
+        RoutingTable refreshed = RoutingTable.parse(indexDst,
+                read("/_cluster/state/metadata,routing_table/" + index), read("/_nodes/http"));
+        RoutingTable previous = table;
+        int moved = 0;
+        for (int shard = 0; previous != null && shard < refreshed.getShards(); shard++) {
+            String address = refreshed.getPrimaryAddress(shard);
+            String before = previous.getPrimaryAddress(shard);
+            if (address == null ? before != null : !address.equals(before)) {
+                moved++;
+            }
+        }
+        table = refreshed;
+        if (previous == null) {
+            LOGGER.log(Level.INFO, "Bulks sent to the primaries of the " + refreshed.getShards() + " shards of " + indexDst);
+        } else if (moved > 0) {
+            LOGGER.log(Level.INFO, moved + " primaries of " + indexDst + " moved, routing table refreshed");
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Impossible to refresh the routing table of " + indexDst + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the documents grouped by the endpoint of the node holding their primary, in their order
+     */
+    public Map<HttpEndpoint, List<Document>> group(List<Document> documents) {
+        RoutingTable routing = table;
+        Map<HttpEndpoint, List<Document>> groups = new LinkedHashMap<HttpEndpoint, List<Document>>();
+        for (Document document : documents) {
+            String address = routing.getPrimaryAddress(routing.shardOf(document.getId(), document.getRouting()));
+            HttpEndpoint endpoint = address == null || unreachable.contains(address) ? dst : getNode(address);
+            List<Document> group = groups.get(endpoint);
+            if (group == null) {
+                group = new ArrayList<Document>();
+                groups.put(endpoint, group);
+            }
+            group.add(document);
+        }
+        return groups;
+    }
+
+    /**
+     * Sends the following bulks of the node to the destination endpoint instead, e.g. when its published address
+     * is not reachable from here
+     */
+    public void onUnreachable(HttpEndpoint node) {
+        for (Map.Entry<String, HttpEndpoint> entry : nodes.entrySet()) {
+            if (entry.getValue() == node && unreachable.add(entry.getKey())) {
+                LOGGER.log(Level.WARNING, "Node " + entry.getKey() + " unreachable, its bulks of " + indexDst
+                        + " go through the destination hosts");
+            }
+        }
+    }
+
+    /**
+     * @return the destination endpoint, which documents are grouped to when they cannot be routed
+     */
+    public HttpEndpoint getDefault() {
+        return dst;
+    }
+
+    private HttpEndpoint getNode(String address) {
+        HttpEndpoint node = nodes.get(address);
+        if (node == null) {
+            nodes.putIfAbsent(address, dst.forNode(address));
+            node = nodes.get(address);
+        }
+        return node;
+    }
+
+    private JsonObject read(String path) throws IOException {
+        HttpEndpoint.Response response = dst.get(path);
+        if (!response.isSucceeded()) {
+            throw new IOException(path + " failed with status " + response.getStatus() + ": " + response.getBodyAsString());
+        }
+        return new JsonParser().parse(response.getBodyAsString()).getAsJsonObject();
+    }
+}
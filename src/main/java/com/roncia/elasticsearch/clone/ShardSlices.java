@@ -0,0 +1,44 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the shards of the source index into independent slices, each one read by its own scroll
+ * through a preference=_shards:X,Y request parameter.
+ */
+public class ShardSlices {
+
+    private ShardSlices() {
+    }
+
+    /**
+     * Assigns the shards round robin to the slices, e.g. 2 slices over 5 shards gives _shards:0,2,4 and _shards:1,3
+     *
+     * @param slices the number of slices requested, capped to the number of shards
+     * @param shards the number of primary shards of the source index
+     * @return one search preference per slice, or a single null preference when the index is not sliced
+     */
+    public static List<String> preferences(int slices, int shards) {
+        if (slices < 1 || shards < 1) {
+            throw new RuntimeException("Slices and shards must be positive numbers!");
+        }
+        if (slices == 1) {
+            return Collections.singletonList(null);
+        }
+        int n = Math.min(slices, shards);
+        List<String> preferences = new ArrayList<String>(n);
+        for (int slice = 0; slice < n; slice++) {
+            StringBuilder preference = new StringBuilder("_shards:");
+            for (int shard = slice; shard < shards; shard += n) {
+                if (shard != slice) {
+                    preference.append(',');
+                }
+                preference.append(shard);
+            }
+            preferences.add(preference.toString());
+        }
+        return preferences;
+    }
+}
@@ -0,0 +1,62 @@
+package com.roncia.elasticsearch.clone;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Tracks the pages of one slice in the order they were read. Writers acknowledge pages out of order,
+ * so the slice checkpoint only advances over the leading pages that are fully acknowledged: every document
+ * before the checkpointed sort value is then durably indexed.
+ */
+public class SliceProgress {
+
+    private final Checkpoint.Slice slice;
+    private final CheckpointFile checkpointFile;
+    private final Deque<ScrollPage> inFlight = new ArrayDeque<ScrollPage>();
+    private boolean readerFinished;
+
+    /**
+     * @param checkpointFile the file to report the progress to, or null when not checkpointing
+     */
+    public SliceProgress(Checkpoint.Slice slice, CheckpointFile checkpointFile) {
+        this.slice = slice;
+        this.checkpointFile = checkpointFile;
+    }
+
+    public Checkpoint.Slice getSlice() {
+        return slice;
+    }
+
+    /**
+     * Must be called before the page is handed to the writers
+     */
+    synchronized void register(ScrollPage page) {
+        page.setProgress(this);
+        inFlight.addLast(page);
+    }
+
+    synchronized void onPageAcknowledged() {
+        String lastSortValue = null;
+        long documents = 0;
+        while (!inFlight.isEmpty() && inFlight.peekFirst().isAcknowledged()) {
+            ScrollPage page = inFlight.pollFirst();
+            lastSortValue = page.getLastSortValue();
+            documents += page.getDocuments().size();
+        }
+        if (documents > 0 && checkpointFile != null) {
+            checkpointFile.onSliceAdvanced(slice, lastSortValue, documents);
+        }
+        completeIfDone();
+    }
+
+    synchronized void onReaderFinished() {
+        readerFinished = true;
+        completeIfDone();
+    }
+
+    private void completeIfDone() {
+        if (readerFinished && inFlight.isEmpty() && checkpointFile != null) {
+            checkpointFile.onSliceCompleted(slice);
+        }
+    }
+}
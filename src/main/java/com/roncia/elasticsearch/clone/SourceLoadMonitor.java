@@ -0,0 +1,116 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapts the documents read per second to the load of the source cluster, polling the search thread pool of its
+ * nodes: the rate is halved when searches are rejected or queue up beyond the threshold, and raised by a fifth at
+ * every quiet poll, up to the configured limit, or back to unlimited when there is none.
+ * Without a configured limit, the first back off starts from the read throughput measured since the last poll.
+ * One monitor adapts the limiter shared by all the clones of a run, measuring what they read together.
+ */
+public class SourceLoadMonitor implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(SourceLoadMonitor.class.getName());
+
+    static final double MIN_DOCS_PER_SECOND = 10;
+    private static final double BACK_OFF = 0.5;
+    private static final double RAMP_UP = 1.2;
+
+    private final HttpEndpoint src;
+    private final RateLimiter limiter;
+    private final double maxDocsPerSecond;
+    private final int queueThreshold;
+    private long lastRejected = -1;
+    private long lastDocsRead;
+    private long lastNanos = System.nanoTime();
+
+    /**
+     * @param limiter the documents limiter of the readers, whose permits taken measure the documents read
+     * @param queueThreshold the searches queued on the source nodes above which the reads back off
+     */
+    public SourceLoadMonitor(HttpEndpoint src, RateLimiter limiter, int queueThreshold) {
+        this.src = src;
+        this.limiter = limiter;
+        this.maxDocsPerSecond = limiter.getRate();
+        this.queueThreshold = queueThreshold;
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long docsRead = limiter.getAcquired();
+        double docsPerSecond = (docsRead - lastDocsRead) / ((now - lastNanos) / 1e9);
+        lastDocsRead = docsRead;
+        lastNanos = now;
+        try {
+            HttpEndpoint.Response response = src.get("/_nodes/stats/thread_pool");
+            if (!response.isSucceeded()) {
+                throw new IOException("status " + response.getStatus());
+            }
+            long[] stats = readSearchPool(response.getBody(), response.getLength());
+            onStats(stats[0], stats[1], docsPerSecond);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Impossible to read the thread pool stats of the source: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param queue the searches queued on all the source nodes
+     * @param rejected the searches rejected by all the source nodes since they started
+     * @param docsPerSecond the documents read per second since the last poll
+     */
+    void onStats(long queue, long rejected, double docsPerSecond) {
+        boolean rejecting = lastRejected >= 0 && rejected > lastRejected;
+        lastRejected = rejected;
+        double rate = limiter.getRate();
+        if (rejecting || queue > queueThreshold) {
+            double from = rate > 0 ? rate : Math.max(docsPerSecond, MIN_DOCS_PER_SECOND);
+            double backedOff = Math.max(MIN_DOCS_PER_SECOND, from * BACK_OFF);
+            limiter.setRate(backedOff);
+            LOGGER.log(Level.WARNING, String.format(Locale.ROOT,
+                    "Source overloaded (%d searches queued, %s), reads limited to %.0f docs/s",
+                    queue, rejecting ? "rejecting" : "not rejecting", backedOff));
+        } else if (rate > 0 && rate != maxDocsPerSecond) {
+            double raised = rate * RAMP_UP;
+            if (maxDocsPerSecond > 0) {
+                limiter.setRate(Math.min(maxDocsPerSecond, raised));
+            } else {
+                // Unlimited again once the limit is well above what the source delivers anyway
+                limiter.setRate(raised > 2 * docsPerSecond ? 0 : raised);
+            }
+        }
+    }
+
+    /**
+     * @return the searches queued and rejected, summed over the nodes of a nodes stats response
+     * @throws IOException if the response has no nodes
+     */
+    static long[] readSearchPool(byte[] body, int length) throws IOException {
+        JsonObject json = new JsonParser().parse(new InputStreamReader(
+                new ByteArrayInputStream(body, 0, length), JsonScanner.UTF8)).getAsJsonObject();
+        if (!json.has("nodes")) {
+            throw new IOException("no nodes in the stats");
+        }
+        long[] stats = new long[2];
+        for (Map.Entry<String, JsonElement> node : json.getAsJsonObject("nodes").entrySet()) {
+            JsonObject pools = node.getValue().getAsJsonObject().getAsJsonObject("thread_pool");
+            JsonObject search = pools == null ? null : pools.getAsJsonObject("search");
+            if (search != null) {
+                stats[0] += search.has("queue") ? search.get("queue").getAsLong() : 0;
+                stats[1] += search.has("rejected") ? search.get("rejected").getAsLong() : 0;
+            }
+        }
+        return stats;
+    }
+}
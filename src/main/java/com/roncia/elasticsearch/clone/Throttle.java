@@ -0,0 +1,37 @@
+package com.roncia.elasticsearch.clone;
+
+/**
+ * Limits of the documents and bytes per second read from the source or written to the destination.
+ */
+public class Throttle {
+
+    public static final Throttle NONE = new Throttle(0, 0);
+
+    private final RateLimiter docs;
+    private final RateLimiter bytes;
+
+    /**
+     * @param docsPerSecond the max documents per second, 0 for unlimited
+     * @param bytesPerSecond the max bytes per second, 0 for unlimited
+     */
+    public Throttle(double docsPerSecond, double bytesPerSecond) {
+        this.docs = new RateLimiter(docsPerSecond);
+        this.bytes = new RateLimiter(bytesPerSecond);
+    }
+
+    /**
+     * @return the documents limiter, whose rate the {@link SourceLoadMonitor} adapts
+     */
+    public RateLimiter getDocs() {
+        return docs;
+    }
+
+    public RateLimiter getBytes() {
+        return bytes;
+    }
+
+    public void acquire(int documents, long length) throws InterruptedException {
+        docs.acquire(documents);
+        bytes.acquire(length);
+    }
+}
@@ -0,0 +1,143 @@
+package com.roncia.elasticsearch.clone;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The transformations applied by the writers to every document, compiled once from a spec: one operation
+ * per line of a file, or separated by ; on the command line:
+ * <pre>
+ * include:title,cast.name
+ * exclude:internal,user.password
+ * rename:user.mail=email,title=name
+ * redact:user.phone
+ * type:movie=film
+ * class:com.acme.MyTransform
+ * </pre>
+ * All the field operations are merged into one {@link FieldTransform}, applied first, whatever their order;
+ * the custom transformations follow in their order.
+ */
+public class TransformPipeline {
+
+    public static final TransformPipeline NONE = new TransformPipeline(Collections.<DocumentTransform>emptyList());
+
+    private final DocumentTransform[] transforms;
+
+    public TransformPipeline(List<DocumentTransform> transforms) {
+        this.transforms = transforms.toArray(new DocumentTransform[transforms.size()]);
+    }
+
+    /**
+     * @param operations the operations, blank lines and lines starting with # being ignored
+     */
+    public static TransformPipeline parse(List<String> operations) {
+        FieldTransform.Builder fields = new FieldTransform.Builder();
+        List<DocumentTransform> custom = new ArrayList<DocumentTransform>();
+        for (String line : operations) {
+            String operation = line.trim();
+            if (operation.isEmpty() || operation.startsWith("#")) {
+                continue;
+            }
+            int colon = operation.indexOf(':');
+            if (colon < 0) {
+                throw new RuntimeException("Invalid transform " + operation + ", expected [operation]:[fields]!");
+            }
+            String name = operation.substring(0, colon).trim();
+            for (String argument : operation.substring(colon + 1).split(",")) {
+                if (!argument.trim().isEmpty()) {
+                    add(fields, custom, name, argument.trim());
+                }
+            }
+        }
+        List<DocumentTransform> transforms = new ArrayList<DocumentTransform>();
+        if (!fields.isEmpty()) {
+            transforms.add(fields.build());
+        }
+        transforms.addAll(custom);
+        return new TransformPipeline(transforms);
+    }
+
+    public static List<String> readSpecFile(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), JsonScanner.UTF8));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void add(FieldTransform.Builder fields, List<DocumentTransform> custom, String operation,
+                            String argument) {
+        if ("include".equals(operation)) {
+            fields.include(argument);
+        } else if ("exclude".equals(operation)) {
+            fields.exclude(argument);
+        } else if ("redact".equals(operation)) {
+            fields.redact(argument);
+        } else if ("rename".equals(operation)) {
+            String[] names = pair(operation, argument);
+            fields.rename(names[0], names[1]);
+        } else if ("type".equals(operation)) {
+            String[] types = pair(operation, argument);
+            fields.renameType(types[0], types[1]);
+        } else if ("class".equals(operation)) {
+            custom.add(newInstance(argument));
+        } else {
+            throw new RuntimeException("Unknown transform " + operation
+                    + ", expected include, exclude, rename, redact, type or class!");
+        }
+    }
+
+    private static String[] pair(String operation, String argument) {
+        String[] pair = argument.split("=");
+        if (pair.length != 2 || pair[0].trim().isEmpty() || pair[1].trim().isEmpty()) {
+            throw new RuntimeException("Invalid " + operation + " " + argument + ", expected [from]=[to]!");
+        }
+        return new String[]{pair[0].trim(), pair[1].trim()};
+    }
+
+    private static DocumentTransform newInstance(String className) {
+        try {
+            return Class.forName(className).asSubclass(DocumentTransform.class).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+            throw new RuntimeException("Unable to create the transform " + className + ": " + cause);
+        }
+    }
+
+    public boolean isEmpty() {
+        return transforms.length == 0;
+    }
+
+    /**
+     * @return the transformed document, reporting to the page of the original one, or null if skipped,
+     * the skipped document being acknowledged to its page
+     */
+    Document apply(Document document, CloneMetrics metrics) {
+        Document transformed = document;
+        for (int i = 0; i < transforms.length && transformed != null; i++) {
+            transformed = transforms[i].transform(transformed);
+        }
+        if (transformed == null) {
+            if (document.getPage() != null) {
+                document.getPage().acknowledge(1);
+            }
+            metrics.onSkipped(1);
+        } else if (transformed != document) {
+            transformed.setPage(document.getPage());
+        }
+        return transformed;
+    }
+}
@@ -0,0 +1,108 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of an {@link IndexVerifier} run, written as JSON: the document counts of both indices, the buckets
+ * whose digests differ, and the _type/_id of the documents missing from the destination, extra in the
+ * destination, or with a different _source. The id lists are empty, and truncated set, when the differing
+ * buckets hold too many documents to drill into.
+ */
+public class VerifyReport {
+
+    private final String srcIndex;
+    private final String dstIndex;
+    private long srcDocs;
+    private long dstDocs;
+    private int buckets;
+    private int differingBuckets;
+    private boolean truncated;
+    private final List<String> missing = new ArrayList<String>();
+    private final List<String> extra = new ArrayList<String>();
+    private final List<String> differing = new ArrayList<String>();
+
+    public VerifyReport(String srcIndex, String dstIndex) {
+        this.srcIndex = srcIndex;
+        this.dstIndex = dstIndex;
+    }
+
+    /**
+     * @return true if both indices hold the same documents with the same sources
+     */
+    public boolean isConsistent() {
+        return srcDocs == dstDocs && differingBuckets == 0;
+    }
+
+    public void write(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), JsonScanner.UTF8);
+        try {
+            new GsonBuilder().setPrettyPrinting().create().toJson(this, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return srcIndex + " " + srcDocs + " documents, " + dstIndex + " " + dstDocs + " documents, " + differingBuckets
+                + " of " + buckets + " buckets differ" + (truncated ? " (too many differences to list them)"
+                : ": " + missing.size() + " missing, " + extra.size() + " extra, " + differing.size() + " differing");
+    }
+
+    public long getSrcDocs() {
+        return srcDocs;
+    }
+
+    void setSrcDocs(long srcDocs) {
+        this.srcDocs = srcDocs;
+    }
+
+    public long getDstDocs() {
+        return dstDocs;
+    }
+
+    void setDstDocs(long dstDocs) {
+        this.dstDocs = dstDocs;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public int getDifferingBuckets() {
+        return differingBuckets;
+    }
+
+    void setBuckets(int buckets, int differingBuckets) {
+        this.buckets = buckets;
+        this.differingBuckets = differingBuckets;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    public List<String> getMissing() {
+        return missing;
+    }
+
+    public List<String> getExtra() {
+        return extra;
+    }
+
+    public List<String> getDiffering() {
+        return differing;
+    }
+}
@@ -0,0 +1,120 @@
+package com.roncia.elasticsearch.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Clone of one source index to one destination index, with the size of the source used to schedule it
+ */
+public class CloneJob {
+
+    /**
+     * Placeholder of the source index name in a rename template, e.g. {index}_copy
+     */
+    public static final String INDEX_PLACEHOLDER = "{index}";
+
+    private final String srcIndex;
+    private final String dstIndex;
+    private final long sizeInBytes;
+    private final long docs;
+
+    public CloneJob(String srcIndex, String dstIndex, long sizeInBytes, long docs) {
+        this.srcIndex = srcIndex;
+        this.dstIndex = dstIndex;
+        this.sizeInBytes = sizeInBytes;
+        this.docs = docs;
+    }
+
+    public String getSrcIndex() {
+        return srcIndex;
+    }
+
+    public String getDstIndex() {
+        return dstIndex;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public long getDocs() {
+        return docs;
+    }
+
+    /**
+     * @param template a destination name, with {index} replaced by the source index name
+     * @param srcIndex the source index name
+     * @return the destination name
+     */
+    public static String rename(String template, String srcIndex) {
+        return template.replace(INDEX_PLACEHOLDER, srcIndex);
+    }
+
+    /**
+     * @return true if the index argument can match several indices: a wildcard or a comma separated list
+     */
+    public static boolean isPattern(String index) {
+        return index.contains("*") || index.contains(",");
+    }
+
+    /**
+     * Sorts the jobs largest first: started in this order on a pool of N workers, the longest clones do not end
+     * up alone at the end of the run (longest processing time first)
+     */
+    public static List<CloneJob> largestFirst(List<CloneJob> jobs) {
+        List<CloneJob> sorted = new ArrayList<CloneJob>(jobs);
+        Collections.sort(sorted, new Comparator<CloneJob>() {
+            @Override
+            public int compare(CloneJob a, CloneJob b) {
+                if (a.sizeInBytes != b.sizeInBytes) {
+                    return a.sizeInBytes > b.sizeInBytes ? -1 : 1;
+                }
+                return a.docs == b.docs ? 0 : a.docs > b.docs ? -1 : 1;
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Reads a job file: one line per source index or pattern, optionally followed by the destination index or
+     * rename template. Blank lines and lines starting with # are skipped.
+     *
+     * @return for every line, the source and the destination, null when not given
+     */
+    public static List<String[]> readJobFile(File file) throws IOException {
+        List<String[]> lines = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+");
+                if (tokens.length > 2) {
+                    throw new RuntimeException("Invalid line " + number + " of " + file + ": " + line
+                            + ". Impossible to continue!");
+                }
+                lines.add(new String[]{tokens[0], tokens.length > 1 ? tokens[1] : null});
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        return srcIndex + " -> " + dstIndex;
+    }
+}
@@ -60,14 +60,65 @@ public class CommandLineUtil {
         return cmd;
     }
 
+    /**
+     * Reads an integer option, falling back to the given default when the option is not set
+     *
+     * @param cmd the parsed command line
+     * @param option the option name
+     * @param defaultValue the value to use when the option is missing or blank
+     * @return the option value as int
+     */
+    public static int getIntOptionValue(CommandLine cmd, String option, int defaultValue) {
+        String value = cmd.getOptionValue(option);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid Number for " + option + " argument! " + e.getMessage());
+        }
+    }
+
     protected static Options createOptions() {
+        Options cloneOptions = createCloneOptions();
+        Options tuningOptions = createTuningOptions();
+        Options options = new Options();
+        // the documents are read from a cluster or an export, and written to a cluster or an export
+        options.addOptionGroup(requiredOneOf(cloneOptions.getOption("srcHost"), tuningOptions.getOption("importDir")));
+        options.addOptionGroup(requiredOneOf(cloneOptions.getOption("dstHost"), tuningOptions.getOption("exportDir")));
+        for (Option option : cloneOptions.getOptions()) {
+            if (!options.hasOption(option.getOpt())) {
+                options.addOption(option);
+            }
+        }
+        for (Option option : tuningOptions.getOptions()) {
+            if (!options.hasOption(option.getOpt())) {
+                options.addOption(option);
+            }
+        }
+        return options;
+    }
+
+    private static OptionGroup requiredOneOf(Option first, Option second) {
+        OptionGroup group = new OptionGroup();
+        group.addOption(first);
+        group.addOption(second);
+        group.setRequired(true);
+        return group;
+    }
+
+    /**
+     * @return the options describing source and destination index, as built by buildCloneArguments
+     */
+    protected static Options createCloneOptions() {
         Options options = new Options();
-        options.addOption(Option.builder("srcHost").hasArg().desc("source: host:port (e.g. localhost:9200)").required().build());
-        options.addOption(Option.builder("srcIndex").hasArg().desc("source: index name").required().build());
+        options.addOption(Option.builder("srcHost").hasArg().desc("source: host:port, or comma separated nodes (e.g. localhost:9200)").required().build());
+        options.addOption(Option.builder("srcIndex").hasArg().desc("source: index name, or pattern like logs-* or a,b").build());
         options.addOption(Option.builder("srcUser").hasArg().desc("source: user authentication").build());
         options.addOption(Option.builder("srcPwd").hasArg().desc("source: password authentication").build());
-        options.addOption(Option.builder("dstHost").hasArg().desc("destination: host:port (e.g. localhost:9200)").required().build());
-        options.addOption(Option.builder("dstIndex").hasArg().desc("destination: index name").required().build());
+        options.addOption(Option.builder("dstHost").hasArg().desc("destination: host:port, or comma separated nodes (e.g. localhost:9200)").required().build());
+        options.addOption(Option.builder("dstIndex").hasArg().desc("destination: index name, or template like {index}_copy (default {index})").build());
         options.addOption(Option.builder("dstUser").hasArg().desc("destination: user authentication").build());
         options.addOption(Option.builder("dstPwd").hasArg().desc("destination: password authentication").build());
         options.addOption(Option.builder("dstIndexReplicas").hasArg().desc("destination: index number of replicas").build());
@@ -76,6 +127,68 @@ public class CommandLineUtil {
         return options;
     }
 
+    /**
+     * @return the optional options tuning the copy pipeline
+     */
+    protected static Options createTuningOptions() {
+        Options options = new Options();
+        options.addOption(Option.builder("bulkWriters").hasArg().desc("number of parallel bulk writers (default 4)").build());
+        options.addOption(Option.builder("bulksInFlight").hasArg().desc("max number of bulks each writer sends without waiting for their response (default 2)").build());
+        options.addOption(Option.builder("srcSlices").hasArg().desc("number of parallel scrolls, each one reading a slice of the source shards (default 1)").build());
+        options.addOption(Option.builder("queueDepth").hasArg().desc("max number of scroll pages waiting for a writer (default 8)").build());
+        options.addOption(Option.builder("srcPageSize").hasArg().desc("number of documents per scroll page and slice (default 500)").build());
+        options.addOption(Option.builder("bulkMaxDocs").hasArg().desc("max number of documents in a bulk request (default 10000)").build());
+        options.addOption(Option.builder("bulkMinKb").hasArg().desc("min size in KB targeted by the adaptive bulk size (default 512)").build());
+        options.addOption(Option.builder("bulkMaxKb").hasArg().desc("max size in KB targeted by the adaptive bulk size (default 16384)").build());
+        options.addOption(Option.builder("bulkTargetLatencyMs").hasArg().desc("bulk latency above which the bulk size is reduced (default 2000)").build());
+        options.addOption(Option.builder("bulkRetries").hasArg().desc("number of retries of a document rejected by the destination (default 5)").build());
+        options.addOption(Option.builder("bulkRetryDelayMs").hasArg().desc("delay before the first retry, doubled at every attempt (default 500)").build());
+        options.addOption(Option.builder("deadLetterFile").hasArg().desc("NDJSON file of the documents refused by the destination (default [dstIndex]-dead-letter.ndjson)").build());
+        options.addOption(Option.builder("checkpointFile").hasArg().desc("file where to save the progress of the copy, to resume it").build());
+        options.addOption(Option.builder("checkpointField").hasArg().desc("field with unique sortable values, ordering the copy to checkpoint it").build());
+        options.addOption(Option.builder("resume").hasArg().desc("true to resume the copy from the checkpointFile, keeping the destination index").build());
+        options.addOption(Option.builder("query").hasArg().desc("JSON query selecting the source documents to copy, or @file holding it").build());
+        options.addOption(Option.builder("sourceIncludes").hasArg().desc("comma separated fields, or patterns, of the _source to copy (default all)").build());
+        options.addOption(Option.builder("sourceExcludes").hasArg().desc("comma separated fields, or patterns, of the _source not to copy").build());
+        options.addOption(Option.builder("sortByDoc").hasArg().desc("false to scroll unsorted rather than sorted on _doc, for clusters before 2.1 (default true)").build());
+        options.addOption(Option.builder("deltaField").hasArg().desc("increasing field, e.g. a modification date, to copy only the documents changed since the previous sync").build());
+        options.addOption(Option.builder("deltaStateFile").hasArg().desc("file keeping the high-water mark of deltaField between two syncs (default [dstIndex]-delta.json)").build());
+        options.addOption(Option.builder("deltaOverlap").hasArg().desc("amount of deltaField, e.g. milliseconds, by which a sync starts before the previous high-water mark (default 60000 for a date field, 0 otherwise)").build());
+        options.addOption(Option.builder("deltaDeletes").hasArg().desc("true to delete from the destination the documents deleted from the source since the previous sync").build());
+        options.addOption(Option.builder("deltaIdPageSize").hasArg().desc("number of ids per scroll page when reconciling the deletes (default 5000)").build());
+        options.addOption(Option.builder("transform").hasArg().desc("; separated transformations of the documents, e.g. exclude:user.password;rename:title=name").build());
+        options.addOption(Option.builder("transformFile").hasArg().desc("file listing one transformation of the documents per line").build());
+        options.addOption(Option.builder("verify").hasArg().desc("true to verify the destination against the source after the copy, only to verify it without copying").build());
+        options.addOption(Option.builder("verifyReport").hasArg().desc("JSON file of the missing, extra and differing documents (default [dstIndex]-verify.json)").build());
+        options.addOption(Option.builder("verifyBuckets").hasArg().desc("number of buckets whose digests are compared (default 4096)").build());
+        options.addOption(Option.builder("verifyMaxDocs").hasArg().desc("max documents of the differing buckets read again per index to list them (default 1000000)").build());
+        options.addOption(Option.builder("jobFile").hasArg().desc("file listing one source index or pattern per line, optionally followed by its destination").build());
+        options.addOption(Option.builder("maxConcurrentJobs").hasArg().desc("number of indices cloned at the same time (default 2)").build());
+        options.addOption(Option.builder("ingestMode").hasArg().desc("true to load the destination without refresh, replicas and translog sync, restoring them at the end").build());
+        options.addOption(Option.builder("forceMergeSegments").hasArg().desc("in ingest mode, segments to force merge the destination to before restoring the replicas (default 0: no merge)").build());
+        options.addOption(Option.builder("greenTimeoutSec").hasArg().desc("in ingest mode, max wait for the destination to be green at the end (default 600)").build());
+        options.addOption(Option.builder("shardRouting").hasArg().desc("true to send each document to the node holding its primary on the destination, instead of the dstHost nodes").build());
+        options.addOption(Option.builder("routingRefreshSec").hasArg().desc("with shardRouting, interval between two reads of the destination routing table (default 30)").build());
+        options.addOption(Option.builder("maxConnections").hasArg().desc("size of the connection pool of each cluster (default (bulkWriters * bulksInFlight + srcSlices) * maxConcurrentJobs)").build());
+        options.addOption(Option.builder("compression").hasArg().desc("true to gzip the request bodies").build());
+        options.addOption(Option.builder("keepAliveSec").hasArg().desc("max time an idle connection is kept open (default 60)").build());
+        options.addOption(Option.builder("connTimeoutSec").hasArg().desc("connection timeout (default 180)").build());
+        options.addOption(Option.builder("readTimeoutSec").hasArg().desc("read timeout of a request (default 180)").build());
+        options.addOption(Option.builder("readDocsPerSec").hasArg().desc("max documents read per second from the source, by all the indices of the run (default 0: unlimited)").build());
+        options.addOption(Option.builder("readMbPerSec").hasArg().desc("max MB read per second from the source, by all the indices of the run (default 0: unlimited)").build());
+        options.addOption(Option.builder("writeDocsPerSec").hasArg().desc("max documents written per second to the destination, by all the indices of the run (default 0: unlimited)").build());
+        options.addOption(Option.builder("writeMbPerSec").hasArg().desc("max MB written per second to the destination, by all the indices of the run (default 0: unlimited)").build());
+        options.addOption(Option.builder("adaptiveReads").hasArg().desc("true to slow down the reads while the search thread pool of the source queues or rejects").build());
+        options.addOption(Option.builder("searchQueueThreshold").hasArg().desc("with adaptiveReads, searches queued on the source nodes above which the reads slow down (default 50)").build());
+        options.addOption(Option.builder("loadPollSec").hasArg().desc("with adaptiveReads, interval between two polls of the source thread pool stats (default 5)").build());
+        options.addOption(Option.builder("exportDir").hasArg().desc("directory where to export the source index, instead of a destination cluster").build());
+        options.addOption(Option.builder("exportChunkMb").hasArg().desc("uncompressed size in MB of the export chunk files (default 256)").build());
+        options.addOption(Option.builder("importDir").hasArg().desc("directory of an export to import, instead of a source cluster").build());
+        options.addOption(Option.builder("progressIntervalSec").hasArg().desc("interval between two progress logs, 0 to log only at the end (default 10)").build());
+        options.addOption(Option.builder("metricsFile").hasArg().desc("JSON file where to write the metrics of the copy when it completes").build());
+        return options;
+    }
+
     private static void help(Options options) {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp("Main", options);
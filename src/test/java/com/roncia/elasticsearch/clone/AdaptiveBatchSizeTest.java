@@ -0,0 +1,55 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatchSizeTest {
+
+  @Test
+  public void fastBulksShouldGrowTheTargetUpToTheMax() {
+    AdaptiveBatchSize size = new AdaptiveBatchSize(1000, 33000, 1000, 100, 500);
+    size.onCompleted(1000, 10);
+    assertEquals(2000, size.getTargetBytes());
+    for (int i = 0; i < 100; i++) {
+      size.onCompleted(size.getTargetBytes(), 10);
+    }
+    assertEquals(33000, size.getTargetBytes());
+  }
+
+  @Test
+  public void smallBulksShouldNotGrowTheTarget() {
+    AdaptiveBatchSize size = new AdaptiveBatchSize(1000, 33000, 8000, 100, 500);
+    size.onCompleted(100, 10);
+    assertEquals(8000, size.getTargetBytes());
+  }
+
+  @Test
+  public void slowBulksShouldShrinkTheTarget() {
+    AdaptiveBatchSize size = new AdaptiveBatchSize(1000, 33000, 8000, 100, 500);
+    size.onCompleted(8000, 900);
+    assertEquals(6000, size.getTargetBytes());
+  }
+
+  @Test
+  public void rejectionsShouldHalveTheTargetDownToTheMin() {
+    AdaptiveBatchSize size = new AdaptiveBatchSize(1000, 33000, 8000, 100, 500);
+    size.onRejected();
+    assertEquals(4000, size.getTargetBytes());
+    for (int i = 0; i < 10; i++) {
+      size.onRejected();
+    }
+    assertEquals(1000, size.getTargetBytes());
+  }
+
+  @Test
+  public void batchShouldBeFullOnBytesOrDocs() {
+    AdaptiveBatchSize size = new AdaptiveBatchSize(1000, 33000, 8000, 100, 500);
+    assertFalse(size.isFull(99, 7999));
+    assertTrue(size.isFull(100, 10));
+    assertTrue(size.isFull(1, 8000));
+  }
+
+}
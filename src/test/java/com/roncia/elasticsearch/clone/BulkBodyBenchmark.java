@@ -0,0 +1,57 @@
+package com.roncia.elasticsearch.clone;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building of the bulk body of a page of documents, as a writer does it, with and without a transformation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BulkBodyBenchmark {
+
+  @Param({"500"})
+  public int hits;
+
+  @Param({"200", "2000"})
+  public int sourceBytes;
+
+  private final BulkBody body = new BulkBody(1024 * 1024);
+  private List<Document> documents;
+  private FieldTransform transform;
+
+  @Setup
+  public void parsePage() {
+    byte[] page = MockCluster.scrollPage("scroll-1", 0, hits, hits, sourceBytes);
+    documents = ScrollResponseParser.parse(page, page.length).getDocuments();
+    transform = new FieldTransform.Builder().exclude("nested.ts").rename("title", "name").build();
+  }
+
+  @Benchmark
+  public int build() {
+    body.reset();
+    for (Document document : documents) {
+      body.appendIndex("dst", document);
+    }
+    return body.size();
+  }
+
+  @Benchmark
+  public int buildTransformed() {
+    body.reset();
+    for (Document document : documents) {
+      body.appendIndex("dst", transform.transform(document));
+    }
+    return body.size();
+  }
+}
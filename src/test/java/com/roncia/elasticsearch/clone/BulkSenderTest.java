@@ -0,0 +1,99 @@
+package com.roncia.elasticsearch.clone;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkSenderTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private CloseableHttpAsyncClient httpClient;
+  private MockCluster cluster;
+
+  @Before
+  public void start() throws Exception {
+    httpClient = HttpAsyncClients.createDefault();
+    httpClient.start();
+    cluster = new MockCluster(0, 0, 0, 0);
+  }
+
+  @After
+  public void stop() throws Exception {
+    cluster.close();
+    httpClient.close();
+  }
+
+  @Test
+  public void partiallyFailedBulkShouldRetryOnlyTheRejectedDocuments() throws Exception {
+    cluster.respondToBulksWith("{\"took\":3,\"errors\":true,\"items\":["
+        + "{\"index\":{\"_id\":\"1\",\"status\":201}},"
+        + "{\"index\":{\"_id\":\"2\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}},"
+        + "{\"create\":{\"_id\":\"3\",\"status\":500,"
+        + "\"error\":\"RemoteTransportException[EsRejectedExecutionException[rejected execution]]\"}},"
+        + "{\"index\":{\"_id\":\"4\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}},"
+        + "{\"index\":{\"_id\":\"5\",\"status\":503}}]}");
+    File deadLetterFile = new File(folder.getRoot(), "dead-letter.ndjson");
+    DeadLetterFile deadLetters = new DeadLetterFile(deadLetterFile);
+    CloneMetrics metrics = new CloneMetrics();
+    BulkSender sender = new BulkSender(new HttpEndpoint(httpClient, cluster.getUrl()), "dst",
+        new AdaptiveBatchSize(1024, 4096, 2048, 100, 2000), deadLetters, null, Throttle.NONE, null, metrics);
+    List<Document> documents = new ArrayList<Document>();
+    BulkBody body = new BulkBody(1024);
+    for (int i = 1; i <= 5; i++) {
+      byte[] source = ("{\"n\":" + i + "}").getBytes(JsonScanner.UTF8);
+      documents.add(new Document("doc", String.valueOf(i), source, 0, source.length));
+      body.appendIndex("dst", documents.get(i - 1));
+    }
+
+    List<Document> retry = sender.send(body, documents);
+    deadLetters.close();
+
+    assertEquals(3, retry.size());
+    assertEquals("2", retry.get(0).getId());
+    assertEquals("3", retry.get(1).getId());
+    assertEquals("5", retry.get(2).getId());
+    assertEquals(1, sender.getIndexed());
+    assertEquals(1, metrics.getDocsIndexed());
+    assertEquals(3, metrics.getDocsRetried());
+    assertEquals(1, metrics.getDocsDeadLettered());
+    List<String> lines = Files.readAllLines(deadLetterFile.toPath(), JsonScanner.UTF8);
+    assertEquals(1, lines.size());
+    assertEquals("{\"_index\":\"dst\",\"_type\":\"doc\",\"_id\":\"4\",\"status\":400,"
+        + "\"error\":{\"type\":\"mapper_parsing_exception\"},\"_source\":{\"n\":4}}", lines.get(0));
+  }
+
+  @Test
+  public void givenUpDocumentsShouldBeDeadLettered() throws Exception {
+    File deadLetterFile = new File(folder.getRoot(), "dead-letter.ndjson");
+    DeadLetterFile deadLetters = new DeadLetterFile(deadLetterFile);
+    CloneMetrics metrics = new CloneMetrics();
+    BulkSender sender = new BulkSender(new HttpEndpoint(httpClient, cluster.getUrl()), "dst",
+        new AdaptiveBatchSize(1024, 4096, 2048, 100, 2000), deadLetters, null, Throttle.NONE, null, metrics);
+    byte[] source = "{\"n\":1}".getBytes(JsonScanner.UTF8);
+    List<Document> documents = new ArrayList<Document>();
+    documents.add(new Document("doc", "1", source, 0, source.length));
+
+    sender.giveUp(documents, "rejected 5 times");
+    deadLetters.close();
+
+    assertEquals(1, deadLetters.getCount());
+    assertEquals(1, metrics.getDocsDeadLettered());
+    assertEquals("{\"_index\":\"dst\",\"_type\":\"doc\",\"_id\":\"1\",\"status\":429,"
+            + "\"error\":\"rejected 5 times\",\"_source\":{\"n\":1}}",
+        Files.readAllLines(deadLetterFile.toPath(), JsonScanner.UTF8).get(0));
+  }
+}
@@ -0,0 +1,48 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CloneMetricsTest {
+
+  @Test
+  public void bulkLatenciesShouldBeReportedInMillis() {
+    CloneMetrics metrics = new CloneMetrics();
+    for (int i = 1; i <= 100; i++) {
+      metrics.onBulk(1000, TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    assertEquals(100, metrics.getBulks());
+    assertEquals(100000, metrics.getBytesWritten());
+    assertEquals(50, metrics.getBulkLatencyP50(), 0.1);
+    assertEquals(99, metrics.getBulkLatencyP99(), 0.1);
+    assertEquals(100, metrics.getBulkLatencyMax(), 0.1);
+    // percentiles are cumulative, not reset by a read
+    assertEquals(50, metrics.getBulkLatencyP50(), 0.1);
+  }
+
+  @Test
+  public void etaShouldBeUnknownWithoutSourceCount() {
+    CloneMetrics metrics = new CloneMetrics();
+    metrics.onIndexed(10);
+    assertEquals(-1, metrics.getEtaSeconds());
+  }
+
+  @Test
+  public void etaShouldCountDocumentsAlreadyIndexed() {
+    CloneMetrics metrics = new CloneMetrics();
+    metrics.setSourceDocs(100, 100);
+    metrics.onIndexed(1);
+    assertEquals(0, metrics.getEtaSeconds());
+    metrics.setSourceDocs(1000000000L, 0);
+    assertTrue(metrics.getEtaSeconds() > 0);
+  }
+
+  @Test
+  public void durationShouldBeFormatted() {
+    assertEquals("1:01:01", ProgressReporter.formatSeconds(3661));
+  }
+}
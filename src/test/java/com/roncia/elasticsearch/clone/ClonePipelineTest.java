@@ -0,0 +1,201 @@
+package com.roncia.elasticsearch.clone;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClonePipelineTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private CloseableHttpAsyncClient httpClient;
+
+  @Before
+  public void createClient() {
+    httpClient = HttpAsyncClients.custom().setMaxConnPerRoute(16).setMaxConnTotal(32).build();
+    httpClient.start();
+  }
+
+  @After
+  public void closeClient() throws Exception {
+    httpClient.close();
+  }
+
+  @Test
+  public void allDocumentsShouldBeCopiedDespiteRejectedBulks() throws Exception {
+    MockCluster cluster = new MockCluster(5000, 300, 0, 0.2);
+    try {
+      CloneMetrics metrics = new CloneMetrics();
+      long written = newPipeline(cluster, "rejecting", metrics).build().run();
+
+      assertEquals(5000, written);
+      assertEquals(5000, cluster.getIndexed());
+      assertEquals(5000, metrics.getDocsRead());
+      assertScrollsCleared(cluster);
+      assertTrue(cluster.getRejectedBulks() > 0);
+      assertEquals(cluster.getRejectedBulks(), metrics.getBulksRejected());
+      assertEquals(0, metrics.getDocsDeadLettered());
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Test
+  public void writeLimitShouldPaceTheCopy() throws Exception {
+    MockCluster cluster = new MockCluster(2000, 300, 0, 0);
+    try {
+      long start = System.currentTimeMillis();
+      long written = newPipeline(cluster, "throttled", new CloneMetrics())
+          .throttle(Throttle.NONE, new Throttle(1000, 0)).build().run();
+
+      assertEquals(2000, written);
+      // one second of burst, then 1000 docs/s
+      assertTrue(System.currentTimeMillis() - start >= 900);
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Test
+  public void eachWriterShouldKeepSeveralBulksInFlight() throws Exception {
+    MockCluster cluster = new MockCluster(3000, 300, 200, 0);
+    try {
+      long written = newPipeline(cluster, "inflight", new CloneMetrics())
+          .bulkWriters(1).bulksInFlight(3).build().run();
+
+      assertEquals(3000, written);
+      assertEquals(3000, cluster.getIndexed());
+      assertTrue(cluster.getBulks() > 3);
+      assertEquals(3, cluster.getMaxRunningBulks());
+      assertScrollsCleared(cluster);
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Test
+  public void routedBulksShouldFallBackToTheDestinationHostsForUnreachableNodes() throws Exception {
+    MockCluster cluster = new MockCluster(3000, 300, 0, 0);
+    try {
+      HttpEndpoint endpoint = new HttpEndpoint(httpClient, cluster.getUrl());
+      byte[] page = MockCluster.scrollPage("scroll-1", 0, 100, 100, 50);
+      Map<HttpEndpoint, List<Document>> nodes = ShardRouter.create(endpoint, "routed")
+          .group(ScrollResponseParser.parse(page, page.length).getDocuments());
+      // the even shards on the cluster itself, the odd ones on an unreachable node
+      assertEquals(2, nodes.size());
+      assertFalse(nodes.containsKey(endpoint));
+
+      long written = newPipeline(cluster, "routed", new CloneMetrics()).shardRouting(30).build().run();
+      assertEquals(3000, written);
+      assertEquals(3000, cluster.getIndexed());
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Test
+  public void aFailedSliceShouldCancelTheWritersAndTheirPendingBulks() throws Exception {
+    MockCluster cluster = new MockCluster(100000, 300, 10000, 0);
+    try {
+      cluster.failScrollsAfter(3);
+      long start = System.currentTimeMillis();
+      try {
+        newPipeline(cluster, "cancelled", new CloneMetrics()).build().run();
+        fail("The failed scroll should fail the clone");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("500"));
+      }
+      // the bulks take 10 seconds: they were aborted, not waited for
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      assertTrue(cluster.getBulks() > 0);
+      assertEquals(0, cluster.getIndexed());
+      assertScrollsCleared(cluster);
+      for (StackTraceElement[] stack : Thread.getAllStackTraces().values()) {
+        for (StackTraceElement frame : stack) {
+          assertFalse("Pipeline task still running", frame.getClassName().endsWith(".BulkWriter")
+              || frame.getClassName().endsWith(".ScrollReader"));
+        }
+      }
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void writersFailingWithAFullQueueShouldFailTheClone() throws Exception {
+    MockCluster cluster = new MockCluster(1000, 300, 1000, 0);
+    try {
+      cluster.failBulks();
+      try {
+        // 4 pages: the writer fails on the first one, the 3 others fill the queue before the end of data
+        newPipeline(cluster, "failed", new CloneMetrics()).bulkWriters(1).queueDepth(3).build().run();
+        fail("The failed bulks should fail the clone");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("500"));
+      }
+      assertEquals(0, cluster.getIndexed());
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Test
+  public void failedCloneShouldSaveItsCheckpoint() throws Exception {
+    MockCluster cluster = new MockCluster(100000, 300, 0, 0);
+    try {
+      cluster.failScrollsAfter(8);
+      File file = new File(folder.getRoot(), "checkpoint.json");
+      CheckpointFile checkpointFile = new CheckpointFile(file,
+          new Checkpoint("src", "checkpointed", "abc", "n", Collections.singletonList((String) null)));
+      try {
+        newPipeline(cluster, "checkpointed", new CloneMetrics()).checkpoint(checkpointFile).build().run();
+        fail("The failed scroll should fail the clone");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("500"));
+      }
+      long acknowledged = checkpointFile.getCheckpoint().getAcknowledgedDocs();
+      assertTrue(acknowledged > 0);
+      assertEquals(acknowledged, CheckpointFile.load(file).getCheckpoint().getAcknowledgedDocs());
+    } finally {
+      cluster.close();
+    }
+  }
+
+  /**
+   * The scrolls are cleared without waiting for the response
+   */
+  private static void assertScrollsCleared(MockCluster cluster) throws InterruptedException {
+    for (int i = 0; i < 50 && cluster.getOpenScrolls() > 0; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(0, cluster.getOpenScrolls());
+  }
+
+  private ClonePipeline.Builder newPipeline(MockCluster cluster, String indexDst, CloneMetrics metrics) {
+    HttpEndpoint endpoint = new HttpEndpoint(httpClient, cluster.getUrl());
+    return new ClonePipeline.Builder(endpoint, endpoint, "src", indexDst)
+        .sizePage(250)
+        .bulkWriters(4)
+        .batchSize(new AdaptiveBatchSize(16 * 1024, 256 * 1024, 64 * 1024, 1000, 2000))
+        .retries(10, 1)
+        .deadLetterFile(new File(folder.getRoot(), indexDst + "-dead-letter.ndjson"))
+        .metrics(metrics)
+        .progressInterval(0);
+  }
+}
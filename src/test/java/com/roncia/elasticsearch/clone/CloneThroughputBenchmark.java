@@ -0,0 +1,85 @@
+package com.roncia.elasticsearch.clone;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End to end copy of an index through the pipeline, from and to a {@link MockCluster} whose bulks take
+ * bulkLatencyMs and are rejected at rejectionRate: the time of a copy of the documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CloneThroughputBenchmark {
+
+  @Param({"50000"})
+  public int documents;
+
+  @Param({"500"})
+  public int sourceBytes;
+
+  @Param({"0", "20"})
+  public long bulkLatencyMs;
+
+  @Param({"0", "0.1"})
+  public double rejectionRate;
+
+  @Param({"4"})
+  public int bulkWriters;
+
+  private MockCluster cluster;
+  private CloseableHttpAsyncClient httpClient;
+  private File deadLetters;
+
+  @Setup
+  public void startCluster() throws IOException {
+    Logger.getLogger("com.roncia.elasticsearch").setLevel(Level.WARNING);
+    cluster = new MockCluster(documents, sourceBytes, bulkLatencyMs, rejectionRate);
+    httpClient = HttpAsyncClients.custom().setMaxConnPerRoute(bulkWriters + 2).setMaxConnTotal(bulkWriters + 2).build();
+    httpClient.start();
+    deadLetters = File.createTempFile("benchmark-dead-letter", ".ndjson");
+  }
+
+  @TearDown
+  public void stopCluster() throws IOException {
+    httpClient.close();
+    cluster.close();
+    deadLetters.delete();
+  }
+
+  @Benchmark
+  public long copy() throws Exception {
+    HttpEndpoint endpoint = new HttpEndpoint(httpClient, cluster.getUrl());
+    long written = new ClonePipeline.Builder(endpoint, endpoint, "src", "dst")
+        .sizePage(500)
+        .bulkWriters(bulkWriters)
+        .batchSize(new AdaptiveBatchSize(512 * 1024, 16 * 1024 * 1024, 5 * 1024 * 1024, 10000, 2000))
+        .retries(10, 1)
+        .deadLetterFile(deadLetters)
+        .progressInterval(0)
+        .build().run();
+    if (written != documents) {
+      throw new RuntimeException("Copied " + written + " documents out of " + documents);
+    }
+    return written;
+  }
+}
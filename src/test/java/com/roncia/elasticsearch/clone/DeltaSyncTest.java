@@ -0,0 +1,143 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonParser;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaSyncTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void rangeQueryShouldIncludeBothBounds() {
+    assertEquals("{\"range\": {\"updated_at\": {\"gte\": 1445385600000, \"lte\": 1445472000000}}}",
+        DeltaSync.rangeQuery("updated_at", "1445385600000", "1445472000000"));
+  }
+
+  @Test
+  public void overlapShouldStartBeforeNumericMarksOnly() {
+    assertEquals("1445385540000", DeltaSync.overlap("1445385600000", 60000));
+    assertEquals("9.5", DeltaSync.overlap("10.5", 1));
+    assertEquals("\"v42\"", DeltaSync.overlap("\"v42\"", 60000));
+  }
+
+  @Test
+  public void dateFieldsShouldBeFoundInTypedAndTypelessMappings() {
+    JsonParser parser = new JsonParser();
+    assertTrue(DeltaSync.isDate(parser.parse("{\"logs\": {\"mappings\": {\"event\": {\"updated_at\": "
+        + "{\"full_name\": \"updated_at\", \"mapping\": {\"updated_at\": {\"type\": \"date\"}}}}}}}")));
+    assertFalse(DeltaSync.isDate(parser.parse("{\"logs\": {\"mappings\": {\"version\": "
+        + "{\"full_name\": \"version\", \"mapping\": {\"version\": {\"type\": \"long\"}}}}}}")));
+    assertFalse(DeltaSync.isDate(parser.parse("{\"logs\": {\"mappings\": {}}}")));
+  }
+
+  @Test
+  public void idsShouldBeParsedFromHitsWithoutSource() {
+    byte[] body = ("{\"_scroll_id\":\"s1\",\"hits\":{\"total\":2,\"hits\":["
+        + "{\"_index\":\"movies\",\"_type\":\"movie\",\"_id\":\"1\",\"_score\":null,\"sort\":[1445472000000]},"
+        + "{\"_index\":\"movies\",\"_type\":\"movie\",\"_id\":\"2\",\"_score\":null,\"sort\":[1445385600000]}"
+        + "]}}").getBytes(JsonScanner.UTF8);
+    ScrollPage page = ScrollResponseParser.parse(body, body.length, false);
+
+    assertEquals(2, page.getDocuments().size());
+    assertEquals("2", page.getDocuments().get(1).getId());
+    assertEquals("", page.getDocuments().get(1).getSource());
+    assertEquals("1445385600000", page.getLastSortValue());
+  }
+
+  @Test
+  public void idHashShouldDependOnTypeAndId() {
+    long hash = DeletionReconciler.hash(new Document("movie", "12", new byte[0], 0, 0));
+    assertEquals(hash, DeletionReconciler.hash(new Document("movie", "12", new byte[0], 0, 0)));
+    assertFalse(hash == DeletionReconciler.hash(new Document("movie", "21", new byte[0], 0, 0)));
+    assertFalse(hash == DeletionReconciler.hash(new Document("movie1", "2", new byte[0], 0, 0)));
+  }
+
+  @Test
+  public void stateShouldBeSavedAndLoaded() throws Exception {
+    File file = new File(folder.getRoot(), "movies-delta.json");
+    new DeltaState("movies", "movies_copy", "updated_at", "1445472000000", 120, 3).save(file);
+    DeltaState state = DeltaState.load(file);
+
+    assertEquals("movies", state.getSrcIndex());
+    assertEquals("movies_copy", state.getDstIndex());
+    assertEquals("updated_at", state.getField());
+    assertEquals("1445472000000", state.getHighWaterMark());
+    assertEquals(120, state.getCopiedDocs());
+    assertEquals(3, state.getDeletedDocs());
+  }
+
+  @Test
+  public void reconcilerShouldCompareTheTransformedSourceIds() throws Exception {
+    CloseableHttpAsyncClient httpClient = HttpAsyncClients.createDefault();
+    httpClient.start();
+    MockCluster src = new MockCluster(500, 50, 0, 0);
+    MockCluster dst = new MockCluster(500, 50, 0, 0);
+    try {
+      dst.setDocumentType("film");
+      TransformPipeline renameType = TransformPipeline.parse(Collections.singletonList("type:doc=film"));
+      HttpEndpoint srcEndpoint = new HttpEndpoint(httpClient, src.getUrl());
+      HttpEndpoint dstEndpoint = new HttpEndpoint(httpClient, dst.getUrl());
+
+      DeadLetterFile deadLetters = new DeadLetterFile(new File(folder.getRoot(), "dead-letter.ndjson"));
+
+      assertEquals(0, new DeletionReconciler(srcEndpoint, "src", ScrollQuery.ALL, dstEndpoint, "dst", renameType, 100,
+          deadLetters).reconcile());
+      assertEquals(0, dst.getBulks());
+      // without the transform, none of the renamed documents is in the source
+      assertEquals(500, new DeletionReconciler(srcEndpoint, "src", ScrollQuery.ALL, dstEndpoint, "dst",
+          TransformPipeline.NONE, 100, deadLetters).reconcile());
+      assertEquals(0, deadLetters.getCount());
+    } finally {
+      src.close();
+      dst.close();
+      httpClient.close();
+    }
+  }
+
+  @Test
+  public void reconcilerShouldCheckEveryDeleteItem() throws Exception {
+    CloseableHttpAsyncClient httpClient = HttpAsyncClients.createDefault();
+    httpClient.start();
+    MockCluster src = new MockCluster(3, 50, 0, 0);
+    MockCluster dst = new MockCluster(6, 50, 0, 0);
+    try {
+      // the error reason holds the tokens the response used to be searched for
+      dst.respondToBulksWith("{\"took\":1,\"errors\":true,\"items\":["
+          + "{\"delete\":{\"_id\":\"3\",\"result\":\"deleted\",\"status\":200}},"
+          + "{\"delete\":{\"_id\":\"4\",\"result\":\"not_found\",\"status\":404}},"
+          + "{\"delete\":{\"_id\":\"5\",\"status\":400,\"error\":{\"type\":\"illegal_argument_exception\","
+          + "\"reason\":\"\\\"found\\\":false\"}}}]}");
+      File file = new File(folder.getRoot(), "dead-letter.ndjson");
+      DeadLetterFile deadLetters = new DeadLetterFile(file);
+
+      assertEquals(1, new DeletionReconciler(new HttpEndpoint(httpClient, src.getUrl()), "src", ScrollQuery.ALL,
+          new HttpEndpoint(httpClient, dst.getUrl()), "dst", TransformPipeline.NONE, 100, deadLetters).reconcile());
+      deadLetters.close();
+
+      List<String> lines = Files.readAllLines(file.toPath(), JsonScanner.UTF8);
+      assertEquals(1, lines.size());
+      assertEquals("{\"_index\":\"dst\",\"_type\":\"doc\",\"_id\":\"5\",\"status\":400,"
+          + "\"error\":{\"type\":\"illegal_argument_exception\",\"reason\":\"\\\"found\\\":false\"},"
+          + "\"_source\":null}", lines.get(0));
+    } finally {
+      src.close();
+      dst.close();
+      httpClient.close();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExportImportTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void exportedDocumentsShouldBeReadBackFromTheChunks() throws Exception {
+    File dir = new File(folder.getRoot(), "export");
+    ExportDirectory export = ExportDirectory.create(dir, new ExportManifest("movies", new JsonObject(), new JsonObject()));
+    BlockingQueue<ScrollPage> pages = new ArrayBlockingQueue<ScrollPage>(10);
+    char[] big = new char[200 * 1024];
+    Arrays.fill(big, 'x');
+    pages.put(page(document("1", "{\"title\":\"été\"}"), document("a\"b", "{\"plot\":\"" + new String(big) + "\"}")));
+    pages.put(page(document("3", "{}")));
+    pages.put(ClonePipeline.END_OF_DATA);
+    long exported = new ExportWriter(export, 0, pages, 1024, TransformPipeline.NONE, new CloneMetrics()).call();
+    export.writeManifest();
+
+    assertEquals(3, exported);
+    ExportDirectory imported = ExportDirectory.open(dir);
+    assertEquals(3, imported.getManifest().getDocuments());
+    assertEquals(2, imported.getManifest().getChunks().size());
+
+    long read = new ChunkReader(new ConcurrentLinkedQueue<File>(imported.getChunkFiles()), 10, pages,
+        new CloneMetrics()).call();
+    assertEquals(3, read);
+    List<Document> documents = new ArrayList<Document>();
+    ScrollPage page;
+    while ((page = pages.poll()) != null) {
+      documents.addAll(page.getDocuments());
+    }
+    assertEquals(3, documents.size());
+    // largest chunk first
+    assertEquals("1", documents.get(0).getId());
+    assertEquals("{\"title\":\"été\"}", documents.get(0).getSource());
+    assertEquals("a\"b", documents.get(1).getId());
+    assertEquals("doc", documents.get(1).getType());
+    assertTrue(documents.get(1).getSource().endsWith("xx\"}"));
+    assertEquals(big.length + 11, documents.get(1).getSourceLength());
+    assertEquals("{}", documents.get(2).getSource());
+  }
+
+  private static Document document(String id, String source) {
+    byte[] bytes = source.getBytes(JsonScanner.UTF8);
+    return new Document("doc", id, bytes, 0, bytes.length);
+  }
+
+  private static ScrollPage page(Document... documents) {
+    ScrollPage page = new ScrollPage(null, Arrays.asList(documents), null);
+    for (Document document : documents) {
+      document.setPage(page);
+    }
+    return page;
+  }
+}
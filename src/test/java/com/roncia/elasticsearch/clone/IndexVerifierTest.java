@@ -0,0 +1,108 @@
+package com.roncia.elasticsearch.clone;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexVerifierTest {
+
+  @Test
+  public void hashShouldDependOnTheSourceBytesOnly() {
+    Document document = document("1", "xx{\"title\":\"Alien\"}", 2);
+    long key = DeletionReconciler.hash(document);
+
+    assertEquals(IndexVerifier.hash(key, document), IndexVerifier.hash(key, document("1", "{\"title\":\"Alien\"}", 0)));
+    assertFalse(IndexVerifier.hash(key, document) == IndexVerifier.hash(key, document("1", "{\"title\":\"Alien \"}", 0)));
+  }
+
+  @Test
+  public void reportShouldBeConsistentOnlyWithoutDifferingBuckets() {
+    VerifyReport report = new VerifyReport("movies", "movies_copy");
+    report.setSrcDocs(10);
+    report.setDstDocs(10);
+    report.setBuckets(16, 0);
+    assertTrue(report.isConsistent());
+
+    report.setBuckets(16, 2);
+    report.getDiffering().add("movie/1");
+    assertFalse(report.isConsistent());
+    assertEquals("movies 10 documents, movies_copy 10 documents, 2 of 16 buckets differ: "
+        + "0 missing, 0 extra, 1 differing", report.toString());
+  }
+
+  @Test
+  public void drillDownShouldReadTheDocumentsOfTheDifferingBucketsOnly() throws Exception {
+    CloseableHttpAsyncClient httpClient = HttpAsyncClients.createDefault();
+    httpClient.start();
+    MockCluster src = new MockCluster(1000, 50, 0, 0);
+    MockCluster dst = new MockCluster(990, 50, 0, 0);
+    try {
+      VerifyReport report = new IndexVerifier(new HttpEndpoint(httpClient, src.getUrl()), "src", ScrollQuery.ALL,
+          Collections.<String>singletonList(null), new HttpEndpoint(httpClient, dst.getUrl()), "dst",
+          Collections.<String>singletonList(null), TransformPipeline.NONE, 100, 4096, 1000).verify();
+
+      assertEquals(Arrays.asList("doc/990", "doc/991", "doc/992", "doc/993", "doc/994", "doc/995", "doc/996",
+          "doc/997", "doc/998", "doc/999"), report.getMissing());
+      assertTrue(report.getExtra().isEmpty());
+      assertTrue(report.getDiffering().isEmpty());
+      // the sources are scrolled once, by the first pass, then the ids only, and the documents of the ids
+      assertSearches(src.getSearches(), 1);
+      assertSearches(dst.getSearches(), 1);
+      assertEquals(0, src.getOpenScrolls());
+      assertEquals(0, dst.getOpenScrolls());
+    } finally {
+      src.close();
+      dst.close();
+      httpClient.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void failingSliceShouldCancelTheOthers() throws Exception {
+    CloseableHttpAsyncClient httpClient = HttpAsyncClients.createDefault();
+    httpClient.start();
+    MockCluster src = new MockCluster(1000, 50, 0, 0);
+    MockCluster dst = new MockCluster(10000000, 50, 0, 0);
+    try {
+      src.failScrollsAfter(2);
+      new IndexVerifier(new HttpEndpoint(httpClient, src.getUrl()), "src", ScrollQuery.ALL,
+          Collections.<String>singletonList(null), new HttpEndpoint(httpClient, dst.getUrl()), "dst",
+          Collections.<String>singletonList(null), TransformPipeline.NONE, 10, 16, 1000).verify();
+      fail("The failed source scroll should fail the verification");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("status 500"));
+    } finally {
+      src.close();
+      dst.close();
+      httpClient.close();
+    }
+  }
+
+  /**
+   * @param scans the number of slices scrolled with their source by the first pass
+   */
+  private static void assertSearches(List<String> searches, int scans) {
+    for (int i = 0; i < searches.size(); i++) {
+      String search = searches.get(i);
+      boolean sourceless = search.contains("\"_source\": false");
+      boolean byIds = search.contains("\"ids\"");
+      assertEquals(search, i >= scans, sourceless || byIds);
+    }
+    assertEquals(scans * 2 + 1, searches.size());
+  }
+
+  private static Document document(String id, String source, int offset) {
+    byte[] bytes = source.getBytes(JsonScanner.UTF8);
+    return new Document("movie", id, bytes, offset, bytes.length - offset);
+  }
+}
@@ -0,0 +1,373 @@
+package com.roncia.elasticsearch.clone;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for an Elasticsearch cluster, to run the copy path without a real cluster: it serves the
+ * count, scroll pages of synthetic documents and thread pool stats of a source index, and accepts bulks after a
+ * latency, rejecting a share of them with a 429. Its cluster state routes the even shards of every index to itself
+ * and the odd ones to an unreachable node. Its scrolls can be made to fail after a number of pages,
+ * and its bulks to fail or to return a given response. An ids query is answered with the documents of its ids
+ * only, in one page, and the bodies of the searches are kept.
+ * Only the requests of the copy path are implemented, whatever the index name.
+ */
+public class MockCluster implements Closeable {
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final int documents;
+  private final int sourceBytes;
+  private final long bulkLatencyMillis;
+  private final double rejectionRate;
+  private final Random random = new Random(42);
+  private final ConcurrentMap<String, int[]> scrolls = new ConcurrentHashMap<String, int[]>();
+  private final AtomicInteger scrollIds = new AtomicInteger();
+  private final AtomicLong indexed = new AtomicLong();
+  private final AtomicLong bulks = new AtomicLong();
+  private final AtomicLong rejectedBulks = new AtomicLong();
+  private final AtomicInteger runningBulks = new AtomicInteger();
+  private final AtomicInteger maxRunningBulks = new AtomicInteger();
+  private final AtomicInteger scrollPages = new AtomicInteger();
+  private final List<String> searches = new CopyOnWriteArrayList<String>();
+  private volatile int failingScrollPage = -1;
+  private volatile String documentType = "doc";
+  private volatile boolean failingBulks;
+  private volatile String bulkResponse;
+
+  /**
+   * @param documents the number of documents of the source index
+   * @param sourceBytes the approximate size of their sources
+   * @param bulkLatencyMillis the time taken by every bulk
+   * @param rejectionRate the share of the bulks rejected, between 0 and 1
+   */
+  public MockCluster(int documents, int sourceBytes, long bulkLatencyMillis, double rejectionRate) throws IOException {
+    this.documents = documents;
+    this.sourceBytes = sourceBytes;
+    this.bulkLatencyMillis = bulkLatencyMillis;
+    this.rejectionRate = rejectionRate;
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          dispatch(exchange);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * @return the base url of the cluster, e.g. http://127.0.0.1:40321
+   */
+  public String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  public long getIndexed() {
+    return indexed.get();
+  }
+
+  public long getBulks() {
+    return bulks.get();
+  }
+
+  public long getRejectedBulks() {
+    return rejectedBulks.get();
+  }
+
+  /**
+   * @return the max number of bulks processed at the same time
+   */
+  public int getMaxRunningBulks() {
+    return maxRunningBulks.get();
+  }
+
+  /**
+   * @return the number of scrolls not cleared yet
+   */
+  public int getOpenScrolls() {
+    return scrolls.size();
+  }
+
+  /**
+   * @return the bodies of the searches starting a scroll, in their order
+   */
+  public List<String> getSearches() {
+    return searches;
+  }
+
+  /**
+   * Fails every bulk with a 500, after the bulk latency
+   */
+  public void failBulks() {
+    failingBulks = true;
+  }
+
+  /**
+   * @param response the body of the response to every bulk, instead of indexing its documents
+   */
+  public void respondToBulksWith(String response) {
+    bulkResponse = response;
+  }
+
+  /**
+   * @param type the _type of the documents, doc by default
+   */
+  public void setDocumentType(String type) {
+    documentType = type;
+  }
+
+  /**
+   * @param page the number of scroll pages served before failing every scroll with a 500
+   */
+  public void failScrollsAfter(int page) {
+    failingScrollPage = page;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void dispatch(HttpExchange exchange) throws IOException, InterruptedException {
+    String path = exchange.getRequestURI().getPath();
+    byte[] body = read(exchange.getRequestBody());
+    if (path.endsWith("/_count")) {
+      respond(exchange, 200, ("{\"count\":" + documents + "}").getBytes(JsonScanner.UTF8));
+    } else if (path.equals("/_search/scroll") && "DELETE".equals(exchange.getRequestMethod())) {
+      scrolls.remove(getParameter(exchange, "scroll_id"));
+      respond(exchange, 200, "{\"succeeded\":true}".getBytes(JsonScanner.UTF8));
+    } else if (path.equals("/_search/scroll")) {
+      String scrollId = getParameter(exchange, "scroll_id");
+      int[] scroll = scrolls.get(scrollId);
+      if (scroll == null) {
+        respond(exchange, 404, "{\"error\":\"search_context_missing_exception\"}".getBytes(JsonScanner.UTF8));
+      } else if (failingScrollPage >= 0 && scrollPages.incrementAndGet() > failingScrollPage) {
+        respond(exchange, 500, "{\"error\":\"search_phase_execution_exception\"}".getBytes(JsonScanner.UTF8));
+      } else {
+        respond(exchange, 200, nextPage(scrollId, scroll));
+      }
+    } else if (path.endsWith("/_search") && new String(body, JsonScanner.UTF8).contains("\"ids\"")) {
+      searches.add(new String(body, JsonScanner.UTF8));
+      String scrollId = "scroll-" + scrollIds.incrementAndGet();
+      scrolls.put(scrollId, new int[]{documents, 0});
+      respond(exchange, 200, scrollPage(scrollId, documentType, getIds(body), documents, sourceBytes));
+    } else if (path.endsWith("/_search")) {
+      searches.add(new String(body, JsonScanner.UTF8));
+      String scrollId = "scroll-" + scrollIds.incrementAndGet();
+      int[] scroll = {0, Integer.parseInt(getParameter(exchange, "size"))};
+      scrolls.put(scrollId, scroll);
+      respond(exchange, 200, nextPage(scrollId, scroll));
+    } else if (path.endsWith("/_bulk") && failingBulks) {
+      bulks.incrementAndGet();
+      TimeUnit.MILLISECONDS.sleep(bulkLatencyMillis);
+      respond(exchange, 500, "{\"error\":\"cluster_block_exception\",\"status\":500}".getBytes(JsonScanner.UTF8));
+    } else if (path.endsWith("/_bulk") && bulkResponse != null) {
+      bulks.incrementAndGet();
+      respond(exchange, 200, bulkResponse.getBytes(JsonScanner.UTF8));
+    } else if (path.endsWith("/_bulk")) {
+      byte[] response = bulk(body);
+      if (response == null) {
+        respond(exchange, 429, "{\"error\":\"es_rejected_execution_exception\",\"status\":429}"
+            .getBytes(JsonScanner.UTF8));
+      } else {
+        respond(exchange, 200, response);
+      }
+    } else if (path.startsWith("/_cluster/state/")) {
+      respond(exchange, 200, clusterState(path.substring(path.lastIndexOf('/') + 1)));
+    } else if (path.equals("/_nodes/http")) {
+      respond(exchange, 200, ("{\"nodes\":{\"mock\":{\"http\":{\"publish_address\":\"mock/127.0.0.1:"
+          + server.getAddress().getPort() + "\"}},\"gone\":{\"http\":{\"publish_address\":\"127.0.0.1:1\"}}}}")
+          .getBytes(JsonScanner.UTF8));
+    } else if (path.startsWith("/_nodes/stats")) {
+      respond(exchange, 200, "{\"nodes\":{\"mock\":{\"thread_pool\":{\"search\":{\"queue\":0,\"rejected\":0}}}}}"
+          .getBytes(JsonScanner.UTF8));
+    } else {
+      respond(exchange, 404, ("{\"error\":\"no handler for " + path + "\"}").getBytes(JsonScanner.UTF8));
+    }
+  }
+
+  private static byte[] clusterState(String index) {
+    StringBuilder shards = new StringBuilder();
+    for (int shard = 0; shard < 4; shard++) {
+      shards.append(shard == 0 ? "" : ",").append("\"").append(shard).append("\":[{\"state\":\"STARTED\",")
+          .append("\"primary\":true,\"node\":\"").append(shard % 2 == 0 ? "mock" : "gone").append("\"}]");
+    }
+    return ("{\"metadata\":{\"indices\":{\"" + index + "\":{\"settings\":{\"index\":{\"number_of_shards\":\"4\"}}}}},"
+        + "\"routing_table\":{\"indices\":{\"" + index + "\":{\"shards\":{" + shards + "}}}}}")
+        .getBytes(JsonScanner.UTF8);
+  }
+
+  private byte[] nextPage(String scrollId, int[] scroll) {
+    int from;
+    int count;
+    synchronized (scroll) {
+      from = scroll[0];
+      count = Math.max(0, Math.min(scroll[1], documents - from));
+      scroll[0] += count;
+    }
+    return scrollPage(scrollId, documentType, from, count, documents, sourceBytes);
+  }
+
+  /**
+   * @return the response of the bulk, null if rejected
+   */
+  private byte[] bulk(byte[] body) throws InterruptedException {
+    bulks.incrementAndGet();
+    int running = runningBulks.incrementAndGet();
+    while (maxRunningBulks.get() < running) {
+      maxRunningBulks.compareAndSet(maxRunningBulks.get(), running);
+    }
+    try {
+      if (bulkLatencyMillis > 0) {
+        TimeUnit.MILLISECONDS.sleep(bulkLatencyMillis);
+      }
+    } finally {
+      runningBulks.decrementAndGet();
+    }
+    if (random.nextDouble() < rejectionRate) {
+      rejectedBulks.incrementAndGet();
+      return null;
+    }
+    StringBuilder response = new StringBuilder(1024).append("{\"took\":1,\"errors\":false,\"items\":[");
+    int items = 0;
+    int start = 0;
+    while (start < body.length) {
+      int end = lineEnd(body, start);
+      boolean delete = new String(body, start, Math.min(end - start, 16), JsonScanner.UTF8).startsWith("{\"delete\"");
+      response.append(items++ == 0 ? "" : ",").append(delete ? "{\"delete\":{\"found\":true,\"status\":200}}"
+          : "{\"index\":{\"_version\":1,\"status\":201}}");
+      if (!delete) {
+        indexed.incrementAndGet();
+        // the source line
+        end = lineEnd(body, end + 1);
+      }
+      start = end + 1;
+    }
+    return response.append("]}").toString().getBytes(JsonScanner.UTF8);
+  }
+
+  private static int lineEnd(byte[] body, int start) {
+    int end = start;
+    while (end < body.length && body[end] != '\n') {
+      end++;
+    }
+    return end;
+  }
+
+  /**
+   * @param from the position of the first document of the page
+   * @param count the number of documents of the page
+   * @param total the number of documents of the index
+   * @return a scroll response of synthetic documents
+   */
+  public static byte[] scrollPage(String scrollId, int from, int count, int total, int sourceBytes) {
+    return scrollPage(scrollId, "doc", from, count, total, sourceBytes);
+  }
+
+  private static byte[] scrollPage(String scrollId, String type, int from, int count, int total, int sourceBytes) {
+    List<Integer> numbers = new ArrayList<Integer>(count);
+    for (int i = from; i < from + count; i++) {
+      numbers.add(i);
+    }
+    return scrollPage(scrollId, type, numbers, total, sourceBytes);
+  }
+
+  private static byte[] scrollPage(String scrollId, String type, List<Integer> numbers, int total, int sourceBytes) {
+    StringBuilder page = new StringBuilder(128 + numbers.size() * (sourceBytes + 128));
+    page.append("{\"_scroll_id\":\"").append(scrollId).append("\",\"took\":1,\"timed_out\":false,")
+        .append("\"hits\":{\"total\":").append(total).append(",\"max_score\":null,\"hits\":[");
+    for (int i = 0; i < numbers.size(); i++) {
+      int n = numbers.get(i);
+      page.append(i == 0 ? "" : ",").append("{\"_index\":\"src\",\"_type\":\"").append(type).append("\",\"_id\":\"").append(n)
+          .append("\",\"_score\":null,\"_source\":");
+      appendSource(page, n, sourceBytes);
+      page.append(",\"sort\":[").append(n).append("]}");
+    }
+    return page.append("]}}").toString().getBytes(JsonScanner.UTF8);
+  }
+
+  /**
+   * @return the numbers of the documents of the ids query of the search, those of the index only
+   */
+  private List<Integer> getIds(byte[] body) {
+    String search = new String(body, JsonScanner.UTF8);
+    String values = search.substring(search.indexOf('[', search.indexOf("\"ids\"")) + 1);
+    List<Integer> numbers = new ArrayList<Integer>();
+    for (String value : values.substring(0, values.indexOf(']')).split(",")) {
+      int n = Integer.parseInt(value.trim().replace("\"", ""));
+      if (n < documents) {
+        numbers.add(n);
+      }
+    }
+    return numbers;
+  }
+
+  private static void appendSource(StringBuilder page, int n, int sourceBytes) {
+    int start = page.length();
+    page.append("{\"n\":").append(n).append(",\"title\":\"Document ").append(n)
+        .append("\",\"tags\":[\"a\",\"b\"],\"nested\":{\"ts\":").append(1500000000000L + n).append("},\"text\":\"");
+    while (page.length() - start < sourceBytes - 2) {
+      page.append("lorem ipsum ");
+    }
+    page.append("\"}");
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private static String getParameter(HttpExchange exchange, String name) throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        if (parameter.startsWith(name + "=")) {
+          return URLDecoder.decode(parameter.substring(name.length() + 1), "UTF-8");
+        }
+      }
+    }
+    return null;
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[64 * 1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      body.write(buffer, 0, read);
+    }
+    return body.toByteArray();
+  }
+}
@@ -0,0 +1,81 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetryQueueTest {
+
+  @Test
+  public void offerShouldBlockOnceTheBoundIsReached() throws Exception {
+    final RetryQueue queue = new RetryQueue(2, 1);
+    queue.offer(documents(2));
+    final CountDownLatch offered = new CountDownLatch(1);
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.offer(documents(1));
+          offered.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    producer.start();
+    assertFalse(offered.await(200, TimeUnit.MILLISECONDS));
+
+    queue.done(queue.take());
+    assertTrue(offered.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void batchRetriedAgainShouldKeepOnlyTheRoomOfItsDocuments() throws Exception {
+    RetryQueue queue = new RetryQueue(2, 1);
+    queue.offer(documents(2));
+    RetryQueue.Batch batch = queue.take();
+    queue.retryAgain(batch, documents(1));
+
+    // the room of the document indexed is released, so the offer does not block
+    queue.offer(documents(1));
+  }
+
+  @Test
+  public void retriesShouldBackOffExponentiallyWithJitter() throws Exception {
+    RetryQueue queue = new RetryQueue(10, 200);
+    long start = System.nanoTime();
+    queue.offer(documents(1));
+    RetryQueue.Batch batch = queue.take();
+    long first = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    // equal jitter: between half and all of the 200 ms
+    assertTrue(String.valueOf(first), first >= 100 && first < 400);
+    assertEquals(1, batch.getAttempt());
+
+    start = System.nanoTime();
+    queue.retryAgain(batch, batch.getDocuments());
+    batch = queue.take();
+    long second = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue(String.valueOf(second), second >= 200 && second < 600);
+    assertEquals(2, batch.getAttempt());
+
+    queue.done(batch);
+    queue.close();
+    assertNull(queue.take());
+  }
+
+  private static List<Document> documents(int count) {
+    List<Document> documents = new ArrayList<Document>();
+    for (int i = 0; i < count; i++) {
+      documents.add(new Document("doc", String.valueOf(i), new byte[0], 0, 0));
+    }
+    return documents;
+  }
+}
@@ -0,0 +1,91 @@
+package com.roncia.elasticsearch.clone;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RoutingTableTest {
+
+  private static final String NODES = "{\"nodes\":{"
+      + "\"n1\":{\"name\":\"one\",\"http\":{\"publish_address\":\"10.0.0.1:9200\"}},"
+      + "\"n2\":{\"name\":\"two\",\"http\":{\"publish_address\":\"two/10.0.0.2:9200\"}}}}";
+
+  @Test
+  public void hashShouldMatchTheMurmur3OfElasticsearch() {
+    assertEquals(0x5a0cb7c3, RoutingTable.hash("hell"));
+    assertEquals(0xd7c31989, RoutingTable.hash("hello"));
+    assertEquals(0x22ab2984, RoutingTable.hash("hello w"));
+    assertEquals(0xdf0ca123, RoutingTable.hash("hello wo"));
+    assertEquals(0xe7744d61, RoutingTable.hash("hello wor"));
+    assertEquals(0xe07db09c, RoutingTable.hash("The quick brown fox jumps over the lazy dog"));
+    assertEquals(0x4e63d2ad, RoutingTable.hash("The quick brown fox jumps over the lazy cog"));
+  }
+
+  @Test
+  public void shardOfShouldDivideTheRoutingShards() {
+    RoutingTable table = new RoutingTable(12, 1, new String[3]);
+    RoutingTable flat = new RoutingTable(3, 1, new String[3]);
+    for (int i = 0; i < 100; i++) {
+      String id = String.valueOf(i);
+      int hash = RoutingTable.hash(id);
+      assertEquals((hash % 12 + 12) % 12 / 4, table.shardOf(id, null));
+      assertEquals((hash % 3 + 3) % 3, flat.shardOf(id, null));
+      assertEquals(flat.shardOf("user", null), flat.shardOf(id, "user"));
+    }
+  }
+
+  @Test
+  public void partitionsShouldOffsetTheRoutingByTheId() {
+    RoutingTable table = new RoutingTable(8, 3, new String[8]);
+    int base = table.shardOf("user", null);
+    for (int i = 0; i < 100; i++) {
+      int offset = (table.shardOf(String.valueOf(i), "user") - base + 8) % 8;
+      assertEquals(((RoutingTable.hash(String.valueOf(i)) % 3) + 3) % 3, offset);
+    }
+  }
+
+  @Test
+  public void parseShouldMapTheStartedPrimariesToTheirNodes() {
+    RoutingTable table = RoutingTable.parse("movies", json("{\"metadata\":{\"indices\":{\"movies\":{"
+        + "\"settings\":{\"index\":{\"number_of_shards\":\"3\",\"version\":{\"created\":\"5060499\"}}},"
+        + "\"routing_num_shards\":6}}},"
+        + "\"routing_table\":{\"indices\":{\"movies\":{\"shards\":{"
+        + "\"0\":[" + copy(0, "n1", true, "STARTED") + "," + copy(0, "n2", false, "STARTED") + "],"
+        + "\"1\":[" + copy(1, "n1", false, "STARTED") + "," + copy(1, "n2", true, "RELOCATING") + "],"
+        + "\"2\":[" + copy(2, null, true, "UNASSIGNED") + "]}}}}}"), json(NODES));
+
+    assertEquals(3, table.getShards());
+    assertEquals("10.0.0.1:9200", table.getPrimaryAddress(0));
+    assertEquals("10.0.0.2:9200", table.getPrimaryAddress(1));
+    assertNull(table.getPrimaryAddress(2));
+    assertEquals((RoutingTable.hash("42") % 6 + 6) % 6 / 2, table.shardOf("42", null));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void parseShouldRefuseIndicesCreatedBefore2() {
+    RoutingTable.parse("movies", json("{\"metadata\":{\"indices\":{\"movies\":{"
+        + "\"settings\":{\"index.number_of_shards\":\"1\",\"index.version.created\":\"1070599\"}}}},"
+        + "\"routing_table\":{\"indices\":{\"movies\":{\"shards\":{\"0\":[" + copy(0, "n1", true, "STARTED")
+        + "]}}}}}"), json(NODES));
+  }
+
+  @Test
+  public void parseAddressShouldKeepTheIpAndPort() {
+    assertEquals("10.0.0.1:9200", RoutingTable.parseAddress("10.0.0.1:9200"));
+    assertEquals("10.0.0.1:9200", RoutingTable.parseAddress("node1/10.0.0.1:9200"));
+    assertEquals("10.0.0.1:9200", RoutingTable.parseAddress("inet[/10.0.0.1:9200]"));
+  }
+
+  private static String copy(int shard, String node, boolean primary, String state) {
+    return "{\"state\":\"" + state + "\",\"primary\":" + primary + ",\"node\":"
+        + (node == null ? "null" : "\"" + node + "\"") + ",\"relocating_node\":null,\"shard\":" + shard
+        + ",\"index\":\"movies\"}";
+  }
+
+  private static JsonObject json(String json) {
+    return new JsonParser().parse(json).getAsJsonObject();
+  }
+}
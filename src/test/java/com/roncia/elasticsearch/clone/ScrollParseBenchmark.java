@@ -0,0 +1,39 @@
+package com.roncia.elasticsearch.clone;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the hits of a scroll page into documents referencing the response buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScrollParseBenchmark {
+
+  @Param({"500"})
+  public int hits;
+
+  @Param({"200", "2000"})
+  public int sourceBytes;
+
+  private byte[] page;
+
+  @Setup
+  public void createPage() {
+    page = MockCluster.scrollPage("scroll-1", 0, hits, hits, sourceBytes);
+  }
+
+  @Benchmark
+  public ScrollPage parse() {
+    return ScrollResponseParser.parse(page, page.length);
+  }
+}
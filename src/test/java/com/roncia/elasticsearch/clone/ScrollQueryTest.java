@@ -0,0 +1,46 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ScrollQueryTest {
+
+  @Test
+  public void allDocumentsShouldBeScrolledSortedOnDoc() {
+    assertEquals("{\"size\": 500, \"sort\": [\"_doc\"]}", ScrollQuery.ALL.toSearchBody(500, null, null));
+    assertNull(ScrollQuery.ALL.toCountBody());
+    assertEquals("", ScrollQuery.ALL.getSelection());
+  }
+
+  @Test
+  public void queryShouldBeUnwrappedAndProjected() {
+    ScrollQuery query = new ScrollQuery.Builder().query("{\"query\": {\"term\": {\"genre\": \"sf\"}}}")
+        .sourceIncludes(Arrays.asList("title", "cast.*")).sourceExcludes(Arrays.asList("cast.age"))
+        .sortByDoc(false).build();
+
+    assertEquals("{\"size\": 10, \"query\": {\"term\":{\"genre\":\"sf\"}}, "
+        + "\"_source\": {\"includes\":[\"title\",\"cast.*\"],\"excludes\":[\"cast.age\"]}}",
+        query.toSearchBody(10, null, null));
+    assertEquals("{\"query\": {\"term\":{\"genre\":\"sf\"}}}", query.toCountBody());
+  }
+
+  @Test
+  public void clausesShouldBeCombinedWithTheResumeRange() {
+    ScrollQuery query = new ScrollQuery.Builder().query("{\"term\": {\"genre\": \"sf\"}}").build()
+        .and(DeltaSync.rangeQuery("updated", "10", "20"));
+
+    assertEquals("{\"size\": 10, \"query\": {\"bool\": {\"must\": [{\"term\":{\"genre\":\"sf\"}}, "
+        + "{\"range\": {\"updated\": {\"gte\": 10, \"lte\": 20}}}, {\"bool\": {\"should\": [{\"range\": {\"id\": {\"gte\": 15}}}, "
+        + "{\"bool\": {\"must_not\": {\"exists\": {\"field\": \"id\"}}}}]}}]}}, "
+        + "\"sort\": [{\"id\": \"asc\"}]}", query.toSearchBody(10, "id", "15"));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void invalidQueryShouldFail() {
+    new ScrollQuery.Builder().query("{\"term\": ");
+  }
+}
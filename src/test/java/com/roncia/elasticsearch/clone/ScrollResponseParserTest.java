@@ -0,0 +1,74 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScrollResponseParserTest {
+
+  private static final String RESPONSE = "{\"_scroll_id\":\"c2Nhbj\\u003d\\u003d\",\"took\":3,\"timed_out\":false,"
+      + "\"_shards\":{\"total\":5,\"successful\":5,\"failed\":0},"
+      + "\"hits\":{\"total\":2,\"max_score\":1.0,\"hits\":["
+      + "{\"_index\":\"movies\",\"_type\":\"movie\",\"_id\":\"1\",\"_score\":1.0,"
+      + "\"_source\" : {\"title\":\"The \\\"Thing\\\" }\",\"tags\":[\"a\",{\"b\":[]}],\"year\":1982} },"
+      + "{\"_index\":\"movies\",\"_type\":\"movie\",\"_id\":\"café/2\",\"_score\":1.0,\"_source\":{\"title\":\"À bout\"}}"
+      + "]}}";
+
+  @Test
+  public void parseShouldExtractScrollIdAndDocuments() {
+    byte[] body = RESPONSE.getBytes(JsonScanner.UTF8);
+    ScrollPage page = ScrollResponseParser.parse(body, body.length);
+    List<Document> documents = page.getDocuments();
+
+    assertEquals("c2Nhbj==", page.getScrollId());
+    assertEquals(2, documents.size());
+    assertEquals("movie", documents.get(0).getType());
+    assertEquals("1", documents.get(0).getId());
+    assertEquals("{\"title\":\"The \\\"Thing\\\" }\",\"tags\":[\"a\",{\"b\":[]}],\"year\":1982}",
+        documents.get(0).getSource());
+    assertEquals("café/2", documents.get(1).getId());
+    assertEquals("{\"title\":\"À bout\"}", documents.get(1).getSource());
+  }
+
+  @Test
+  public void parseShouldReturnNoDocumentsAtTheEndOfTheScroll() {
+    byte[] body = "{\"_scroll_id\":\"abc\",\"hits\":{\"total\":2,\"hits\":[]}}".getBytes(JsonScanner.UTF8);
+    assertEquals(0, ScrollResponseParser.parse(body, body.length).getDocuments().size());
+  }
+
+  @Test
+  public void bulkBodyShouldCopyTheSourcesAfterTheIndexAction() {
+    byte[] body = RESPONSE.getBytes(JsonScanner.UTF8);
+    BulkBody bulk = new BulkBody(16);
+    for (Document document : ScrollResponseParser.parse(body, body.length).getDocuments()) {
+      bulk.appendIndex("movies_copy", document);
+    }
+
+    assertEquals("{\"index\":{\"_index\":\"movies_copy\",\"_type\":\"movie\",\"_id\":\"1\"}}\n"
+        + "{\"title\":\"The \\\"Thing\\\" }\",\"tags\":[\"a\",{\"b\":[]}],\"year\":1982}\n"
+        + "{\"index\":{\"_index\":\"movies_copy\",\"_type\":\"movie\",\"_id\":\"café/2\"}}\n"
+        + "{\"title\":\"À bout\"}\n", new String(bulk.getBuffer(), 0, bulk.size(), JsonScanner.UTF8));
+  }
+
+  @Test
+  public void routingShouldBeCopiedToTheBulkAction() {
+    byte[] body = ("{\"hits\":{\"hits\":[{\"_type\":\"t\",\"_id\":\"1\",\"_routing\":\"user\\\"1\","
+        + "\"_source\":{}}]}}").getBytes(JsonScanner.UTF8);
+    Document document = ScrollResponseParser.parse(body, body.length).getDocuments().get(0);
+    BulkBody bulk = new BulkBody(16);
+    bulk.appendIndex(null, document);
+
+    assertEquals("user\"1", document.getRouting());
+    assertEquals("{\"index\":{\"_type\":\"t\",\"_id\":\"1\",\"_routing\":\"user\\\"1\"}}\n{}\n",
+        new String(bulk.getBuffer(), 0, bulk.size(), JsonScanner.UTF8));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void parseShouldFailOnHitsWithoutSource() {
+    byte[] body = "{\"hits\":{\"hits\":[{\"_type\":\"t\",\"_id\":\"1\"}]}}".getBytes(JsonScanner.UTF8);
+    ScrollResponseParser.parse(body, body.length);
+  }
+
+}
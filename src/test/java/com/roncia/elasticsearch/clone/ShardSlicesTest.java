@@ -0,0 +1,32 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShardSlicesTest {
+
+  @Test
+  public void singleSliceShouldNotSetAnyPreference() {
+    assertEquals(Collections.singletonList((String) null), ShardSlices.preferences(1, 5));
+  }
+
+  @Test
+  public void shardsShouldBeAssignedRoundRobin() {
+    assertEquals(Arrays.asList("_shards:0,2,4", "_shards:1,3"), ShardSlices.preferences(2, 5));
+  }
+
+  @Test
+  public void slicesShouldBeCappedToTheNumberOfShards() {
+    assertEquals(Arrays.asList("_shards:0", "_shards:1"), ShardSlices.preferences(8, 2));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void zeroSlicesShouldBeRejected() {
+    ShardSlices.preferences(0, 5);
+  }
+
+}
@@ -0,0 +1,58 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SliceProgressTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void checkpointShouldOnlyAdvanceOverLeadingAcknowledgedPages() throws Exception {
+    File file = folder.newFile("clone.checkpoint");
+    Checkpoint checkpoint = new Checkpoint("src", "dst", "abc", "n", Collections.singletonList((String) null));
+    CheckpointFile checkpointFile = new CheckpointFile(file, checkpoint);
+    Checkpoint.Slice slice = checkpoint.getSlices().get(0);
+    SliceProgress progress = new SliceProgress(slice, checkpointFile);
+
+    ScrollPage first = page("10");
+    ScrollPage second = page("20");
+    progress.register(first);
+    progress.register(second);
+
+    second.acknowledge(2);
+    assertEquals(null, slice.getLastSortValue());
+
+    first.acknowledge(1);
+    assertEquals(null, slice.getLastSortValue());
+    first.acknowledge(1);
+    assertEquals("20", slice.getLastSortValue());
+    assertEquals(4, checkpoint.getAcknowledgedDocs());
+    assertFalse(slice.isCompleted());
+
+    progress.onReaderFinished();
+    assertTrue(slice.isCompleted());
+
+    checkpointFile.flush();
+    Checkpoint saved = CheckpointFile.load(file).getCheckpoint();
+    assertEquals("20", saved.getSlices().get(0).getLastSortValue());
+    assertEquals(4, saved.getAcknowledgedDocs());
+  }
+
+  private static ScrollPage page(String lastSortValue) {
+    byte[] source = "{}".getBytes(JsonScanner.UTF8);
+    return new ScrollPage("scroll", Arrays.asList(new Document("t", "1", source, 0, 2),
+        new Document("t", "2", source, 0, 2)), lastSortValue);
+  }
+
+}
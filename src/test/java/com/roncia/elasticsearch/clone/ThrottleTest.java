@@ -0,0 +1,77 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottleTest {
+
+  @Test
+  public void acquireShouldSleepOffTheDebtBeyondTheBurst() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter(1000);
+    long start = System.nanoTime();
+    limiter.acquire(1000);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    limiter.acquire(300);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+  }
+
+  @Test
+  public void unlimitedShouldNeverSleep() throws InterruptedException {
+    long start = System.nanoTime();
+    Throttle.NONE.acquire(1000000, Long.MAX_VALUE / 2);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+  }
+
+  @Test
+  public void permitsTakenShouldBeCountedEvenUnlimited() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter(0);
+    limiter.acquire(500);
+    limiter.acquire(700);
+    assertEquals(1200, limiter.getAcquired());
+  }
+
+  @Test
+  public void loadShouldBackOffThenRampUpToTheLimit() {
+    RateLimiter limiter = new RateLimiter(1000);
+    SourceLoadMonitor monitor = new SourceLoadMonitor(null, limiter, 10);
+    monitor.onStats(0, 5, 1000);
+    assertEquals(1000, limiter.getRate(), 0);
+    monitor.onStats(0, 7, 1000);
+    assertEquals(500, limiter.getRate(), 0);
+    monitor.onStats(20, 7, 500);
+    assertEquals(250, limiter.getRate(), 0);
+    monitor.onStats(0, 7, 250);
+    assertEquals(300, limiter.getRate(), 0.001);
+    for (int i = 0; i < 20; i++) {
+      monitor.onStats(0, 7, 1000);
+    }
+    assertEquals(1000, limiter.getRate(), 0);
+  }
+
+  @Test
+  public void unlimitedReadsShouldBackOffFromTheMeasuredRateAndReturnToUnlimited() {
+    RateLimiter limiter = new RateLimiter(0);
+    SourceLoadMonitor monitor = new SourceLoadMonitor(null, limiter, 10);
+    monitor.onStats(30, 0, 4000);
+    assertEquals(2000, limiter.getRate(), 0);
+    monitor.onStats(0, 0, 2000);
+    assertEquals(2400, limiter.getRate(), 0.001);
+    monitor.onStats(0, 0, 1000);
+    assertEquals(0, limiter.getRate(), 0);
+  }
+
+  @Test
+  public void searchPoolStatsShouldBeSummedOverTheNodes() throws IOException {
+    byte[] body = ("{\"cluster_name\":\"c\",\"nodes\":{"
+        + "\"a\":{\"thread_pool\":{\"search\":{\"threads\":7,\"queue\":3,\"rejected\":10},\"bulk\":{\"queue\":99}}},"
+        + "\"b\":{\"thread_pool\":{\"search\":{\"queue\":4,\"rejected\":1}}},"
+        + "\"c\":{\"name\":\"client\"}}}").getBytes(JsonScanner.UTF8);
+    assertArrayEquals(new long[]{7, 11}, SourceLoadMonitor.readSearchPool(body, body.length));
+  }
+}
@@ -0,0 +1,101 @@
+package com.roncia.elasticsearch.clone;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransformPipelineTest {
+
+  private static final String SOURCE = "{\"title\": \"Alien\", \"year\":1979,"
+      + "\"user\":{\"mail\":\"a@b.c\",\"password\":\"x\\\"}\",\"phone\":123},"
+      + "\"cast\":[{\"name\":\"Sigourney\",\"age\":30},{\"name\":\"Ian\",\"age\":40}],\"internal\":{\"a\":[1,{}]}}";
+
+  @Test
+  public void fieldsShouldBeExcludedRenamedAndRedacted() {
+    Document document = transform("exclude:internal,user.password,cast.age", "rename:user.mail=email,title=name",
+        "redact:user.phone");
+
+    assertEquals("{\"name\":\"Alien\",\"year\":1979,\"user\":{\"email\":\"a@b.c\",\"phone\":null},"
+        + "\"cast\":[{\"name\":\"Sigourney\"},{\"name\":\"Ian\"}]}", document.getSource());
+  }
+
+  @Test
+  public void onlyIncludedFieldsShouldBeKept() {
+    Document document = transform("include:title,cast.name,user");
+
+    assertEquals("{\"title\": \"Alien\",\"user\":{\"mail\":\"a@b.c\",\"password\":\"x\\\"}\",\"phone\":123},"
+        + "\"cast\":[{\"name\":\"Sigourney\"},{\"name\":\"Ian\"}]}", document.getSource());
+  }
+
+  @Test
+  public void typeShouldBeRenamedWithoutCopyingTheSource() {
+    Document source = document();
+    Document document = TransformPipeline.parse(Arrays.asList("type:movie=film")).apply(source, new CloneMetrics());
+
+    assertEquals("film", document.getType());
+    assertSame(source.getBuffer(), document.getBuffer());
+    assertEquals(SOURCE, document.getSource());
+  }
+
+  @Test
+  public void customTransformShouldSkipDocuments() {
+    CloneMetrics metrics = new CloneMetrics();
+    TransformPipeline transform = TransformPipeline.parse(Arrays.asList(
+        "# drops everything", "class:" + SkipAll.class.getName()));
+
+    assertNull(transform.apply(document(), metrics));
+    assertEquals(1, metrics.getDocsSkipped());
+  }
+
+  @Test
+  public void customTransformFailingToBeCreatedShouldFail() {
+    try {
+      TransformPipeline.parse(Arrays.asList("class:" + FailingConstructor.class.getName()));
+      fail("The checked exception of the constructor should be wrapped");
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage(), e.getMessage().endsWith("java.io.IOException: no config"));
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void unknownOperationShouldFail() {
+    TransformPipeline.parse(Arrays.asList("drop:title"));
+  }
+
+  public static class SkipAll implements DocumentTransform {
+    @Override
+    public Document transform(Document document) {
+      return null;
+    }
+  }
+
+  public static class FailingConstructor implements DocumentTransform {
+    public FailingConstructor() throws IOException {
+      throw new IOException("no config");
+    }
+
+    @Override
+    public Document transform(Document document) {
+      return document;
+    }
+  }
+
+  private static Document transform(String... operations) {
+    Document document = TransformPipeline.parse(Arrays.asList(operations)).apply(document(), new CloneMetrics());
+    assertEquals("movie", document.getType());
+    assertEquals("1", document.getId());
+    return document;
+  }
+
+  private static Document document() {
+    byte[] bytes = ("xx" + SOURCE).getBytes(JsonScanner.UTF8);
+    return new Document("movie", "1", bytes, 2, bytes.length - 2);
+  }
+}
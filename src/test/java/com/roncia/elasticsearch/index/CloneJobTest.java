@@ -0,0 +1,55 @@
+package com.roncia.elasticsearch.index;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CloneJobTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void renameShouldReplaceThePlaceholder() {
+    assertEquals("logs-1_copy", CloneJob.rename("{index}_copy", "logs-1"));
+    assertEquals("fixed", CloneJob.rename("fixed", "logs-1"));
+  }
+
+  @Test
+  public void wildcardsAndListsShouldBePatterns() {
+    assertTrue(CloneJob.isPattern("logs-*"));
+    assertTrue(CloneJob.isPattern("a,b"));
+    assertFalse(CloneJob.isPattern("movies"));
+  }
+
+  @Test
+  public void largestIndexShouldBeScheduledFirst() {
+    CloneJob small = new CloneJob("small", "small", 10, 1000);
+    CloneJob big = new CloneJob("big", "big", 500, 10);
+    CloneJob medium = new CloneJob("medium", "medium", 10, 2000);
+    List<CloneJob> sorted = CloneJob.largestFirst(Arrays.asList(small, big, medium));
+    assertEquals(Arrays.asList(big, medium, small), sorted);
+  }
+
+  @Test
+  public void jobFileShouldSkipCommentsAndBlankLines() throws Exception {
+    File file = folder.newFile("jobs.txt");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("# daily indices\nlogs-*   {index}_v2\n\nmovies\n".getBytes("UTF-8"));
+    out.close();
+    List<String[]> jobs = CloneJob.readJobFile(file);
+    assertEquals(2, jobs.size());
+    assertArrayEquals(new String[]{"logs-*", "{index}_v2"}, jobs.get(0));
+    assertArrayEquals(new String[]{"movies", null}, jobs.get(1));
+  }
+}
@@ -7,6 +7,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.ExpectedSystemExit;
 
+import java.util.Arrays;
+
 import static com.roncia.elasticsearch.tools.com.roncia.elasticsearch.util.CommandLineUtil.*;
 import static org.junit.Assert.assertEquals;
 
@@ -43,7 +45,7 @@ public class CommandLineUtilTest {
 
   @Test
   public void buildCloneArgumentsShouldMatchNumberOfOptions() throws Exception {
-    int optionsLength = createOptions().getOptions().size();
+    int optionsLength = createCloneOptions().getOptions().size();
     IndexRef srcIndex = new IndexRef("srcHost", "user", "pwd", "myIndex");
     IndexRef dstIndex = new IndexRef("dstHost", "user", "pwd", "myIndex");
     String[] cloneArguments = buildCloneArguments(srcIndex, dstIndex, "0", "4", true);
@@ -52,6 +54,20 @@ public class CommandLineUtilTest {
     assertEquals("Clone Args does not Match Options", optionsLength, cloneArgumentsLength);
   }
 
+  @Test
+  public void readCommandLineShouldAcceptTuningOptions() throws Exception {
+    IndexRef srcIndex = new IndexRef("srcHost", "user", "pwd", "myIndex");
+    IndexRef dstIndex = new IndexRef("dstHost", "user", "pwd", "myIndex");
+    String[] cloneArguments = buildCloneArguments(srcIndex, dstIndex, "0", "4", true);
+    String[] arguments = Arrays.copyOf(cloneArguments, cloneArguments.length + 2);
+    arguments[cloneArguments.length] = "-bulkWriters";
+    arguments[cloneArguments.length + 1] = "6";
+    CommandLine commandLine = readCommandLine(arguments);
+
+    assertEquals("Bulk writers not as expected", 6, getIntOptionValue(commandLine, "bulkWriters", 4));
+    assertEquals("Queue depth default not as expected", 8, getIntOptionValue(commandLine, "queueDepth", 8));
+  }
+
   @Test
   public void shouldThrowExceptionForInvalidArguments() throws ParseException {
     final String[] invalidArguments = {"this", "isInvalid"};